@@ -7,8 +7,10 @@ package com.mobilewallet.bank.jersey.BankModule;
 
 import com.mobilewallet.bank.jersey.BankModule.Model.Bank;
 import com.mobilewallet.bank.jersey.BankModule.Test.Client;
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankDirectory;
 import com.mobilewallet.bank.jersey.BankModule.Manager.ConfigManager;
-import com.mobilewallet.bank.jersey.BankModule.Manager.DatabaseManager;
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankStorage;
+import com.mobilewallet.bank.jersey.BankModule.Manager.StorageManager;
 import com.mobilewallet.bank.jersey.HttpsCertificateUtils;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -16,7 +18,6 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.SQLException;
 import java.util.ArrayList;
 
 /**
@@ -27,7 +28,7 @@ public class BankApp {
 
     private static BankApp instance = null;
     private ConfigManager cm;
-    private static DatabaseManager dm;
+    private static BankStorage dm;
     private final Logger logger = LoggerFactory.getLogger(BankApp.class);
 
     // list of banks stored in DB and bank clients
@@ -42,17 +43,12 @@ public class BankApp {
 
     /**
      * BankApp singleton
-     * Set all banks from database to array
+     * Set all banks from bank directory to array
      */
     private BankApp() {
-        dm = DatabaseManager.getInstance();
+        dm = StorageManager.getInstance();
         cm = ConfigManager.getInstance();
-        try {
-            banks = dm.getAllBanks();
-        } catch (SQLException e) {
-            logger.error("Error: ", e);
-            e.printStackTrace();
-        }
+        banks = new ArrayList<>(BankDirectory.getInstance().getBanks());
     }
 
 
@@ -106,14 +102,22 @@ public class BankApp {
 
     /**
      * Method connect all clients that are stored in database
+     * With MULTIPLEX_CONNECTION one client serves all banks over one connection, otherwise every bank has its own client
+     * Clients are not started again until they are disconnected by {@link #endClients()}
      * @return status message
      */
-    public String startClients() {
+    public synchronized String startClients() {
 
         String status = "Bank clients connected";
+        if(!bankClients.isEmpty()) {
+            logger.info("Bank clients are already started");
+            return "Bank clients are already connected";
+        }
 
         MqttConnectOptions connOpts = new MqttConnectOptions();
         connOpts.setCleanSession(true);
+        // window of bank client has to fit into window of Mqtt client
+        connOpts.setMaxInflight(cm.getIntPropValues("MQTT_MAX_INFLIGHT", 100));
         try {
             connOpts.setSocketFactory(HttpsCertificateUtils.getSslContextWithTrustedCertificate().getSocketFactory());
         } catch (Exception e) {
@@ -122,10 +126,22 @@ public class BankApp {
         }
 
         try {
+            if(Boolean.valueOf(cm.getPropValues("MULTIPLEX_CONNECTION", "false"))) {
+                String clientId = cm.getPropValues("MULTIPLEX_CLIENT_ID", "bank");
+                BankClient bankClient = new BankClient(cm.getPropValues("BROKER"), clientId, banks, new MemoryPersistence());
+
+                bankClient.connect(connOpts).waitForCompletion();
+                bankClient.subscribeTopics();
+
+                logger.info(clientId + " is connected for " + banks.size() + " banks");
+                bankClients.add(bankClient);
+                return status;
+            }
+
             for(Bank bank : banks) {
-                BankClient bankClient = new BankClient(cm.getPropValues("BROKER"), bank.getShortName(), bank.getBic(), new MemoryPersistence());
+                BankClient bankClient = new BankClient(cm.getPropValues("BROKER"), bank.getShortName(), bank, new MemoryPersistence());
 
-                bankClient.connect(connOpts);
+                bankClient.connect(connOpts).waitForCompletion();
                 bankClient.subscribeTopics();
 
                 logger.info(bank.getShortName() + " is connected");
@@ -141,20 +157,21 @@ public class BankApp {
 
 
     /**
-     * Method for disconnecting all bank clients
+     * Method for disconnecting all bank clients, disconnected clients are removed so they can be started again
      * @return status message
      */
-    public String endClients() {
+    public synchronized String endClients() {
         String status = "Bank clients disconnected";
-        try {
-            for(BankClient bankClient : bankClients) {
-                bankClient.disconnect();
+        for(BankClient bankClient : bankClients) {
+            try {
+                bankClient.disconnect().waitForCompletion();
                 logger.info(bankClient.getClientId() + " is disconnected");
+            } catch (MqttException e) {
+                logger.error("Error: ", e);
+                e.printStackTrace();
             }
-        } catch (MqttException e) {
-            logger.error("Error: ", e);
-            e.printStackTrace();
         }
+        bankClients.clear();
 
         return status;
     }
@@ -187,16 +204,32 @@ public class BankApp {
 
     }
 
+    /**
+     * Get client serving bank
+     * @param bic String, bank identification code
+     * @return BankClient, null if bank is not served
+     */
+    public BankClient getBankClient(String bic) {
+        for(BankClient bankClient : bankClients) {
+            if(bankClient.serves(bic)) {
+                return bankClient;
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Check connection of bank, by String id
-     * @param bankId id of bank, String
+     * @param bankId id of bank, String, short name of bank
      * @return connection Status, boolean
      */
     public boolean isConnected(String bankId) {
 
+        Bank bank = BankDirectory.getInstance().getByShortName(bankId);
         boolean connectionStatus = false;
         for (BankClient bankClient : bankClients) {
-            if(bankClient.getClientId().equals(bankId)) {
+            if(bankClient.getClientId().equals(bankId) || (bank != null && bankClient.serves(bank.getBic()))) {
                 connectionStatus = bankClient.isConnected();
             }
         }
@@ -8,12 +8,20 @@ package com.mobilewallet.bank.jersey.BankModule;
 import com.mobilewallet.bank.jersey.BankModule.Model.Account;
 import com.mobilewallet.bank.jersey.BankModule.Model.AccountTransaction;
 import com.mobilewallet.bank.jersey.BankModule.Model.Bank;
+import com.mobilewallet.bank.jersey.BankModule.Model.HistoryQuery;
+import com.mobilewallet.bank.jersey.BankModule.Model.Money;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentOrder;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
 import com.mobilewallet.bank.jersey.BankRest.IdentityMessage;
 import com.mobilewallet.bank.jersey.HttpsCertificateUtils;
 import com.mobilewallet.bank.jersey.NullHostNameVerifier;
 import org.apache.http.entity.StringEntity;
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankDirectory;
 import com.mobilewallet.bank.jersey.BankModule.Manager.ConfigManager;
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankStorage;
 import com.mobilewallet.bank.jersey.BankModule.Manager.DatabaseManager;
+import com.mobilewallet.bank.jersey.BankModule.Manager.HoldLedger;
+import com.mobilewallet.bank.jersey.BankModule.Manager.StorageManager;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.concurrent.FutureCallback;
@@ -30,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
@@ -39,9 +48,12 @@ import static java.sql.Types.NULL;
 
 /**
  * Defines the bank client and all logic in sending mqtt messages and sending HTTP requests
+ * Client is asynchronous, responses are pipelined by {@link PublishWindow}, so sending thread does not wait for acknowledgement of broker
+ * One client can serve more banks over one connection, it subscribes topics of all banks by wildcard and messages are demultiplexed
+ * by bic level of topic, messages of banks that are not served are ignored
  * @author Martin Stepanek
  */
-public class BankClient extends MqttClient implements MqttCallback {
+public class BankClient extends MqttAsyncClient implements MqttCallback {
 
     public static final String TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
     public static final String BANK_TOPIC = "/bank";
@@ -53,16 +65,43 @@ public class BankClient extends MqttClient implements MqttCallback {
     public static final String RESPONSE_HISTORY = BANK_TOPIC + "/response/history";
     public static final String REQUEST_BANK_ACCOUNT = BANK_TOPIC + "/request/link_account";
 
+    /**
+     * Kinds of arrived messages, resolved from topic by {@link #ROUTER}
+     */
+    public enum Route {
+        PAYMENT_ORDER,
+        BALANCE,
+        HISTORY,
+        LINK_ACCOUNT
+    }
+
+    private static final TopicRouter<Route> ROUTER = createTopicRouter();
+
     private final Logger logger = LoggerFactory.getLogger(BankClient.class);
 
     private String clientId;
-    private String bic;
+
+    /**
+     * Served banks by bic
+     */
+    private final Map<String, Bank> banks;
 
     /**
      * Managers that is using
      */
-    private DatabaseManager dm;
+    private BankStorage dm;
     private ConfigManager cm;
+    private HoldLedger holds;
+
+    /**
+     * Arrived messages are handled by lanes of dispatcher, not by callback thread of Mqtt client
+     */
+    private MessageDispatcher dispatcher;
+
+    /**
+     * Sent messages that are not acknowledged by broker yet and messages waiting for them
+     */
+    private PublishWindow window;
 
     /**
      * List of topics where the bank client subscribe
@@ -88,23 +127,43 @@ public class BankClient extends MqttClient implements MqttCallback {
      * The constructor creates Trust strategy for validating self signed certificates on the server
      * @param serverURI server where is the MQTT broker
      * @param clientId String, id of client, that will be sent in mqtt messages
-     * @param bic String, bank identification code
+     * @param bank Bank, served bank
      * @param persistence MqttClientPersistence
      * @throws MqttException on Mqtt error
      */
-    public BankClient(String serverURI, String clientId, String bic, MqttClientPersistence persistence) throws MqttException {
+    public BankClient(String serverURI, String clientId, Bank bank, MqttClientPersistence persistence) throws MqttException {
+        this(serverURI, clientId, Collections.singletonList(bank), persistence);
+    }
+
+    /**
+     * Constructor for bank client serving more banks over one connection
+     * If there is more banks, topics are subscribed with wildcard + instead of bic
+     * @param serverURI server where is the MQTT broker
+     * @param clientId String, id of client, has to be unique on broker
+     * @param banks Collection of Bank, served banks
+     * @param persistence MqttClientPersistence
+     * @throws MqttException on Mqtt error
+     */
+    public BankClient(String serverURI, String clientId, Collection<Bank> banks, MqttClientPersistence persistence) throws MqttException {
         super(serverURI, clientId, persistence);
         this.clientId = clientId;
-        this.bic = bic;
+
+        Map<String, Bank> served = new HashMap<>();
+        for(Bank bank : banks) {
+            served.put(bank.getBic(), bank);
+        }
+        this.banks = Collections.unmodifiableMap(served);
 
         // Create all subscription topics
+        String bic = served.size() == 1 ? served.keySet().iterator().next() : "+";
         subscriptionTopics = new String[]{REQUEST_BALANCE + "/" + bic + "/#",
                 REQUEST_HISTORY + "/" + bic + "/#",
                 REQUEST_BANK_ACCOUNT + "/" + bic + "/#",
                 PAYMENT_ORDERS + "/" + bic + "/#"};
 
-        dm = DatabaseManager.getInstance();
+        dm = StorageManager.getInstance();
         cm = ConfigManager.getInstance();
+        holds = HoldLedger.getInstance();
         setCallback(this);
 
         // Get all needed values from config settings to local variables
@@ -114,6 +173,10 @@ public class BankClient extends MqttClient implements MqttCallback {
         this.authUrl = cm.getPropValues("AUTH_URL");
         this.transactionAuthUrl = cm.getPropValues("TRANSACTION_AUTH_URL");
         this.linkAccountUrl = cm.getPropValues("LINK_ACCOUNT_URL");
+        this.dispatcher = new MessageDispatcher(clientId, cm.getIntPropValues("DISPATCH_LANES", Runtime.getRuntime().availableProcessors()),
+                cm.getIntPropValues("DISPATCH_QUEUE_SIZE", 1000), cm.getIntPropValues("DISPATCH_OFFER_TIMEOUT", 1000));
+        this.window = new PublishWindow(this, cm.getIntPropValues("MQTT_MAX_INFLIGHT", 100),
+                cm.getIntPropValues("PUBLISH_QUEUE_SIZE", 10000));
 
         // Set httpclient logger only to errors
         java.util.logging.Logger.getLogger("org.apache.http.wire").setLevel(java.util.logging.Level.FINEST);
@@ -136,6 +199,22 @@ public class BankClient extends MqttClient implements MqttCallback {
         }
     }
 
+    /**
+     * Create router of all subscribed topics, account number is the level after bic if topic has it
+     * @return TopicRouter
+     */
+    public static TopicRouter<Route> createTopicRouter() {
+        TopicRouter<Route> router = new TopicRouter<>();
+        router.add(PAYMENT_ORDERS + "/{bic}/#", Route.PAYMENT_ORDER);
+        router.add(REQUEST_BALANCE + "/{bic}/{accountNumber}", Route.BALANCE);
+        router.add(REQUEST_BALANCE + "/{bic}/#", Route.BALANCE);
+        router.add(REQUEST_HISTORY + "/{bic}/{accountNumber}", Route.HISTORY);
+        router.add(REQUEST_HISTORY + "/{bic}/#", Route.HISTORY);
+        router.add(REQUEST_BANK_ACCOUNT + "/{bic}/#", Route.LINK_ACCOUNT);
+
+        return router;
+    }
+
     /**
      * Set Mqtt message with content
      * @param content String, content of MqttMessage
@@ -149,19 +228,61 @@ public class BankClient extends MqttClient implements MqttCallback {
     }
 
     /**
-     * Subscribe all topics set by constructor
+     * Publish message through window of in-flight messages, returns before broker acknowledges message
+     * Answers to balance and history queries are dropped first when too many messages wait, wallet can ask again
+     * @param topic String, topic path
+     * @param content String, content of MqttMessage
+     * @throws MqttException on Mqtt error, also if window is full of payment statuses
+     */
+    private void send(String topic, String content) throws MqttException {
+        window.publish(topic, setMessage(content), topic.startsWith(RESPONSE_BALANCE) || topic.startsWith(RESPONSE_HISTORY));
+    }
+
+    /**
+     * Subscribe all topics set by constructor with QoS 1 and wait until broker confirms subscription
      * @throws MqttException on Mqtt error
      */
     public void subscribeTopics() throws MqttException {
-        subscribe(subscriptionTopics);
+        int[] qos = new int[subscriptionTopics.length];
+        Arrays.fill(qos, 1);
+        subscribe(subscriptionTopics, qos).waitForCompletion();
     }
 
-    public String getBic() {
-        return bic;
+    /**
+     * Check if client serves bank
+     * @param bic String, bank identification code
+     * @return boolean, true if messages of bank are handled by this client
+     */
+    public boolean serves(String bic) {
+        return banks.containsKey(bic);
+    }
+
+    public Collection<Bank> getBanks() {
+        return banks.values();
+    }
+
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public PublishWindow getPublishWindow() {
+        return window;
     }
 
-    public void setBic(String bic) {
-        this.bic = bic;
+    /**
+     * Handle messages that already arrived, wait until their responses are sent and disconnect from Mqtt broker
+     * @return IMqttToken, token of disconnection
+     * @throws MqttException on Mqtt error
+     */
+    @Override
+    public IMqttToken disconnect() throws MqttException {
+        long timeout = cm.getIntPropValues("DISPATCH_CLOSE_TIMEOUT", 5000);
+        dispatcher.close(timeout);
+        if(!window.drain(timeout)) {
+            logger.error("Bank client: " + clientId + " disconnects with unsent messages.");
+        }
+
+        return super.disconnect();
     }
 
     /**
@@ -170,12 +291,13 @@ public class BankClient extends MqttClient implements MqttCallback {
      */
     @Override
     public void connectionLost(Throwable throwable) {
-        logger.error("Bank client: " + this.bic + " lost connection with Mqtt broker.");
+        logger.error("Bank client: " + clientId + " lost connection with Mqtt broker.");
     }
 
     /**
      * On Mqtt message arrive
-     * Decision logic what to do when given message arrives
+     * Message is parsed once and queued to lane of its account {@see MessageDispatcher}, so callback thread is not blocked by database
+     * Malformed payment order is rejected here
      * @param s String, topic path
      * @param message MqttMessage, message arrived
      * @throws Exception on Exception
@@ -183,13 +305,61 @@ public class BankClient extends MqttClient implements MqttCallback {
     @Override
     public void messageArrived(String s, MqttMessage message) throws Exception {
 
-        logger.debug(clientId + ": Delivered message is '" + message + "' from " + s);
+        if(logger.isDebugEnabled()) {
+            logger.debug(clientId + ": Delivered message is '" + message + "' from " + s);
+        }
+
+        TopicRouter.Match<Route> match = ROUTER.route(s);
+        if(match == null || match.getHandler() == Route.LINK_ACCOUNT) {
+            logger.debug(clientId + ": No route for topic " + s);
+            return;
+        }
+        if(!banks.containsKey(match.get("bic"))) {
+            logger.debug(clientId + ": Bank of topic " + s + " is not served");
+            return;
+        }
 
-        if(isConfirmIdentity) {
-            doWithIdentityConfirmation(s, message);
+        final JSONObject json = parseJson(message);
+        if(json == null) {
+            logger.error(clientId + ": Message from " + s + " is not json object");
+            return;
+        }
+
+        if(match.getHandler() == Route.PAYMENT_ORDER) {
+            final PaymentOrder order;
+            try {
+                order = PaymentOrder.fromJson(json);
+            } catch (JSONException e) {
+                rejectMalformedOrder(json, e.getMessage());
+                return;
+            }
+            boolean dispatched = dispatcher.dispatch(order.getSourceAccount(), new MessageDispatcher.Task() {
+                @Override
+                public void run() throws Exception {
+                    handlePaymentOrder(order);
+                }
+            });
+            // order is not stored yet, so it can be sent again with the same payment id
+            if(!dispatched) {
+                rejectOrder(order.getPaymentId(), "Bank is busy, payment order rejected");
+            }
         }
         else {
-            doWithoutIdentityConfirmation(s, message);
+            final Route route = match.getHandler();
+            final String accountNumber = getAccountNumber(match, json);
+            if(accountNumber == null) {
+                logger.error(clientId + ": Request from " + s + " has no account number");
+                return;
+            }
+            boolean dispatched = dispatcher.dispatch(accountNumber, new MessageDispatcher.Task() {
+                @Override
+                public void run() throws Exception {
+                    handleAccountRequest(route, accountNumber, json);
+                }
+            });
+            if(!dispatched) {
+                logger.error(clientId + ": Bank is busy, request from " + s + " dropped, wallet can ask again");
+            }
         }
     }
 
@@ -203,73 +373,98 @@ public class BankClient extends MqttClient implements MqttCallback {
     }
 
     /**
-     * Decision logic for Mqtt messages if identity confirmation is required
-     * @param s String, topic path
-     * @param message Mqtt message
+     * Decision logic for payment order, called by lane of dispatcher
+     * If identity confirmation is required, order is stored as requested and processed after confirmation
+     * @param order PaymentOrder, parsed payment order
      * @throws Exception on exception
      */
-    private void doWithIdentityConfirmation(String s, MqttMessage message) throws Exception {
-
-        if(s.contains(PAYMENT_ORDERS) || ((s.contains(REQUEST_BALANCE) || s.contains(REQUEST_HISTORY)) && isJSONObject(message.toString()))) {
-            if(s.contains(PAYMENT_ORDERS)) {
-                JSONObject json = new JSONObject(message.toString());
-                String accountNumber = json.getString("sourceAccount");
-                // save requested status of transaction every time, if transaction was already processed don't do authentication request
-                boolean status = publishPaymentStatus(message.toString(), DatabaseManager.REQUESTED);
-                if(status) {
-                    authRequest(accountNumber, "transaction", message);
-                }
-            }
-            if(s.contains(REQUEST_BALANCE)) {
-                JSONObject json = new JSONObject(message.toString());
-                String accountNumber = json.getString("accountNumber");
-                authRequest(accountNumber,"balance", message);
-            }
-            if(s.contains(REQUEST_HISTORY)) {
-                JSONObject json = new JSONObject(message.toString());
-                String accountNumber = json.getString("accountNumber");
-                authRequest(accountNumber,"history", message);
+    private void handlePaymentOrder(PaymentOrder order) throws Exception {
+        if(isConfirmIdentity) {
+            // save requested status of transaction every time, if transaction was already processed don't do authentication request
+            if(createPayment(order, PaymentStatus.REQUESTED)) {
+                authRequest(order.getSourceAccount(), "transaction", order.getPaymentId());
             }
         }
-
+        else {
+            paymentOrderRequest(order);
+        }
     }
 
     /**
-     * Decision logic for Mqtt messages if identity confirmation is NOT required
-     * @param s String, topic path
-     * @param message Mqtt message
+     * Decision logic for balance and history requests, called by lane of dispatcher
+     * @param route Route, balance or history
+     * @param accountNumber String, account number
+     * @param json JSONObject, request
      * @throws Exception on exception
      */
-    private void doWithoutIdentityConfirmation(String s, MqttMessage message) throws Exception {
+    private void handleAccountRequest(Route route, String accountNumber, JSONObject json) throws Exception {
+        if(isConfirmIdentity) {
+            authRequest(accountNumber, route == Route.BALANCE ? "balance" : "history", null);
+        }
+        else if(route == Route.BALANCE) {
+            getBalance(accountNumber);
+        }
+        else {
+            getHistory(accountNumber, HistoryQuery.fromJson(json, TIME_FORMAT));
+        }
+    }
 
-        if(s.contains(PAYMENT_ORDERS)) {
-            paymentOrderRequest(message.toString());
+    /**
+     * Account number of balance or history request, from message or from topic if message does not have it
+     * @return String, null if neither message nor topic has account number
+     */
+    private String getAccountNumber(TopicRouter.Match<Route> match, JSONObject json) {
+        String accountNumber = json.optString("accountNumber", null);
+        if(accountNumber != null && !accountNumber.isEmpty()) {
+            return accountNumber;
         }
-        if((s.contains(REQUEST_BALANCE) || s.contains(REQUEST_HISTORY)) && isJSONObject(message.toString())) {
 
-            JSONObject json;
-            json = new JSONObject(message.toString());
+        return match.get("accountNumber");
+    }
 
-            if (s.contains(REQUEST_BALANCE) && json.has("accountNumber")) {
-                try {
-                    String accountNumber = json.getString("accountNumber");
-                    getBalance(accountNumber);
-                }
-                catch(Exception e) {
-                    logger.error("Error: ", e);
-                    e.printStackTrace();
-                }
-            }
-            if (s.contains(REQUEST_HISTORY) && json.has("accountNumber")) {
-                try {
-                    String accountNumber = json.getString("accountNumber");
-                    getHistory(accountNumber);
-                }
-                catch(Exception e) {
-                    logger.error("Error: ", e);
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Decode payload of message, payload is decoded only here
+     * @param message MqttMessage, message arrived
+     * @return JSONObject, null if payload is not json object
+     */
+    private static JSONObject parseJson(MqttMessage message) {
+        try {
+            return new JSONObject(new String(message.getPayload(), StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Answer malformed payment order, order is not stored, so only answer with payment id is published
+     * @param json JSONObject, malformed payment order
+     * @param reason String, why order is not valid
+     */
+    private void rejectMalformedOrder(JSONObject json, String reason) {
+        logger.error(clientId + ": Malformed payment order rejected - " + reason);
+        String paymentId = json.optString("paymentId", null);
+        if(paymentId == null) {
+            return;
+        }
+
+        rejectOrder(paymentId, "Malformed payment order: " + reason);
+    }
+
+    /**
+     * Answer payment order which is not stored, only answer with payment id is published
+     * @param paymentId String, payment id of order
+     * @param message String, why order is rejected
+     */
+    private void rejectOrder(String paymentId, String message) {
+        try {
+            JSONObject jsonResponse = new JSONObject();
+            jsonResponse.put("orderId", paymentId);
+            jsonResponse.put("success", 0);
+            jsonResponse.put("message", message);
+            send(PAYMENT_ORDER_RESPONSES, jsonResponse.toString());
+        } catch (JSONException | MqttException e) {
+            logger.error("Error: ", e);
+            e.printStackTrace();
         }
     }
 
@@ -280,24 +475,33 @@ public class BankClient extends MqttClient implements MqttCallback {
      */
     public void paymentOrderRequestByPaymentId(String paymentId) throws Exception {
         Transaction t = dm.getTransactionByPaymentId(paymentId);
-        String accountNumber = dm.getUserAccount(t.getFromId()).getAccountNumber();
+        PaymentOrder order = loadOrder(t);
+        String accountNumber = order.getSourceAccount();
 
         try {
-            // send not enough money message if user has less money on account than the price of all items
-            double balanceUser = dm.getUserAccountByNumber(accountNumber).getBalance();
-            if(balanceUser < t.getAmount()) {
+            // send not enough money message if user has less available money on account than the price of all items
+            HoldLedger.Result hold = holds.reserve(accountNumber, paymentId, order.getTotal());
+            if(hold == HoldLedger.Result.INSUFFICIENT) {
                 logger.debug("Account number " + accountNumber + " has not enough money.");
                 String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
-                dm.updateTransactionStatus(t.getId(),DatabaseManager.REJECTED, timestamp);
+                if(!dm.transitionTransactionStatus(paymentId, PaymentStatus.REJECTED, timestamp)) {
+                    logger.error("Transaction with payment id: " + paymentId + " was already processed.");
+                    return;
+                }
                 JSONObject jsonResponse = new JSONObject();
                 jsonResponse.put("orderId", paymentId);
-                jsonResponse.put("balance", balanceUser);
+                jsonResponse.put("balance", Money.toDecimal(holds.getAvailable(accountNumber)));
                 jsonResponse.put("success", 0);
                 jsonResponse.put("message", "Not enough money");
-                this.publish(PAYMENT_ORDER_RESPONSES, this.setMessage(jsonResponse.toString()));
+                send(PAYMENT_ORDER_RESPONSES, jsonResponse.toString());
             } else {
-                publishPaymentStatus(createMessageFromTransaction(t), DatabaseManager.PENDING);
-                authTransactionRequest(accountNumber, paymentId, this.setMessage(createMessageFromTransaction(t)));
+                if(!publishPaymentStatus(order, PaymentStatus.PENDING)) {
+                    if(hold == HoldLedger.Result.RESERVED) {
+                        holds.release(accountNumber, paymentId);
+                    }
+                    return;
+                }
+                authTransactionRequest(accountNumber, paymentId, order.getTotal());
             }
         }
         catch (Exception e) {
@@ -308,28 +512,33 @@ public class BankClient extends MqttClient implements MqttCallback {
 
     /**
      * Payment order request selected by message
-     * @param message String, encoded json into String message
+     * @param order PaymentOrder, parsed payment order
      * @throws Exception on exception
      */
-    public void paymentOrderRequest(String message) throws Exception {
-        JSONObject json = new JSONObject(message);
-        String accountNumber = json.getString("sourceAccount");
-        String paymentId = json.getString("paymentId");
+    public void paymentOrderRequest(PaymentOrder order) throws Exception {
+        String accountNumber = order.getSourceAccount();
+        String paymentId = order.getPaymentId();
 
         try {
-            // send not enough money message if user has less money on account than the price of item is
-            double balanceUser = dm.getUserAccountByNumber(accountNumber).getBalance();
-            if(balanceUser < getTotalAmount(message)) {
+            // send not enough money message if user has less available money on account than the price of item is
+            HoldLedger.Result hold = holds.reserve(accountNumber, paymentId, order.getTotal());
+            if(hold == HoldLedger.Result.INSUFFICIENT) {
                 logger.debug("Account number " + accountNumber + " has not enough money.");
                 JSONObject jsonResponse = new JSONObject();
                 jsonResponse.put("orderId", paymentId);
-                jsonResponse.put("balance", balanceUser);
+                jsonResponse.put("balance", Money.toDecimal(holds.getAvailable(accountNumber)));
                 jsonResponse.put("success", 0);
                 jsonResponse.put("message", "Not enough money");
-                this.publish(PAYMENT_ORDER_RESPONSES, this.setMessage(jsonResponse.toString()));
+                send(PAYMENT_ORDER_RESPONSES, jsonResponse.toString());
             } else {
-                publishPaymentStatus(message, DatabaseManager.PENDING);
-                authTransactionRequest(accountNumber, paymentId, this.setMessage(message));
+                if(!createPayment(order, PaymentStatus.PENDING)) {
+                    // hold of the same payment received before stays
+                    if(hold == HoldLedger.Result.RESERVED) {
+                        holds.release(accountNumber, paymentId);
+                    }
+                    return;
+                }
+                authTransactionRequest(accountNumber, paymentId, order.getTotal());
             }
         }
         catch (Exception e) {
@@ -341,49 +550,55 @@ public class BankClient extends MqttClient implements MqttCallback {
     /**
      * Process transaction and update all account balances
      * Here the whole money related stuff happens
-     * @param message Mqtt Mesagge
-     * @throws JSONException
-     * @throws SQLException
-     * @throws MqttException
+     * Settling payment is changed to received together with balances, if settlement fails payment is rejected.
+     * Hold of payment is released in any case, money of payment is debited, rejected or stays settling only until its status can be written
+     * @param order PaymentOrder, settling payment
+     * @return boolean, true if final status of settling payment was published
      */
-    private void makeTransaction(MqttMessage message) throws JSONException, SQLException, MqttException {
-
-        // PREPARATION
+    private boolean makeTransaction(PaymentOrder order) {
 
-        JSONObject json = new JSONObject(message.toString());
-        String accountNumber = json.getString("sourceAccount");
-        JSONArray destinations = json.getJSONArray("paymentDestinations");
-        String destinationAccount;
-        double totalPrice = json.getDouble("amount");
+        logger.debug("Payment from: " + order.getSourceAccount() + " is going to be processed");
 
-        logger.debug("Payment from: " + accountNumber + " is going to be processed");
-
-        // PAYMENT PROCESS
-        dm.updateAccountSum(accountNumber, (-1)*totalPrice);
-
-        for(int i = 0; i < destinations.length(); i++) {
-            JSONObject destination = destinations.getJSONObject(i);
-            destinationAccount = destination.getString("destinationAccount");
-            Account acc = dm.getUserAccountByNumber(destinationAccount);
-            double price = destination.getDouble("amount");
-
-            dm.updateAccountSum(acc.getAccountNumber(), price);
+        // PAYMENT PROCESS, status, debit and all credits (summed for every destination account) are applied at once or not at all
+        String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
+        boolean settled;
+        try {
+            settled = dm.settlePayment(order.getPaymentId(), order.getSourceAccount(), order.getTotal(), order.getCredits(), timestamp);
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Error: Settlement of payment " + order.getPaymentId() + " failed - ", e);
+            settled = false;
+        }
+        if(!settled) {
+            boolean rejected = publishPaymentStatus(order, PaymentStatus.REJECTED);
+            if(!rejected) {
+                releaseHold(order);
+            }
+            return rejected;
         }
 
         // SEND NOTIFICATIONS TO DESTINATION ACCOUNTS
         // TODO send notification to destination accounts, these represent merchants
 
-        publishPaymentStatus(message.toString(), DatabaseManager.RECEIVED);
+        try {
+            announceStatus(order, PaymentStatus.RECEIVED, timestamp);
+        } catch (MqttException | SQLException | JSONException e) {
+            logger.error("Error: ", e);
+            e.printStackTrace();
+            return false;
+        }
+
+        return true;
     }
 
     /**
      * Method on success will send POST with encoded JSON to {@link #linkAccountUrl} with newly added account to the database
      * Returns generated token in uuid format for given account number
      * Otherwise will print an error message
+     * @param bic String, bank identification code of served bank
      * @param accountNumber stored in Bank DB
      * @return uuid String, generated token of account number
      */
-    public String generateLinkAccString(final String accountNumber) throws UnsupportedEncodingException, SQLException, JSONException {
+    public String generateLinkAccString(String bic, final String accountNumber) throws UnsupportedEncodingException, SQLException, JSONException {
 
         final String uuid;
 
@@ -395,6 +610,11 @@ public class BankClient extends MqttClient implements MqttCallback {
             uuid = String.valueOf(UUID.randomUUID());
         }
 
+        if(!banks.containsKey(bic)) {
+            logger.error("Bank " + bic + " is not served by " + clientId);
+            return "";
+        }
+
         // TODO change IBAN check... now needs 24 chars
         if(accountNumber.length() != 24) {
             logger.error("Account number is not in valid IBAN format");
@@ -485,62 +705,87 @@ public class BankClient extends MqttClient implements MqttCallback {
      * @throws MqttException
      */
     public void getBalance(String accountNumber) throws JSONException, SQLException, MqttException {
-        Account account = dm.getUserAccountByNumber(accountNumber);
-        double balance = account.getBalance();
-        Bank bank = dm.getBank(account.getBankId());
+        Account account = dm.getAccountSnapshot(accountNumber);
+        long balance = account.getBalance();
+        Bank bank = BankDirectory.getInstance().getById(account.getBankId());
 
         String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
 
         JSONObject jsonResponse = new JSONObject();
         jsonResponse.put("bankId", bank.getBic());
         jsonResponse.put("accountNumber", accountNumber);
-        jsonResponse.put("balance", balance);
+        jsonResponse.put("balance", Money.toDecimal(balance));
         jsonResponse.put("currency", "EUR");
         jsonResponse.put("message", "balance");
         jsonResponse.put("time", timestamp);
-        this.publish(RESPONSE_BALANCE + "/" + bank.getBic() + "/" + accountNumber, this.setMessage(jsonResponse.toString()));
+        send(RESPONSE_BALANCE + "/" + bank.getBic() + "/" + accountNumber, jsonResponse.toString());
     }
 
 
     /**
      * Method will send Mqtt message with encapsulated data in JSON format about history
-     * with all informations related with each payment in history
+     * with all informations related with each payment in history, only the first page of history is sent
      * @param accountNumber String, account number
      * @throws JSONException
      * @throws SQLException
      * @throws MqttException
      */
     public void getHistory(String accountNumber) throws JSONException, SQLException, MqttException {
-        Account account = dm.getUserAccountByNumber(accountNumber);
-        ArrayList<Transaction> transactions = dm.getHistory(account.getId());
-        Bank bank = dm.getBank(account.getBankId());
+        getHistory(accountNumber, new HistoryQuery());
+    }
+
+
+    /**
+     * Method will send Mqtt message with encapsulated data in JSON format about one page of history
+     * with all informations related with each payment in history
+     * If there are older payments, response contains cursor that should be sent in request for the next page
+     * @param accountNumber String, account number
+     * @param query HistoryQuery, page size, cursor and time window
+     * @throws JSONException
+     * @throws SQLException
+     * @throws MqttException
+     */
+    public void getHistory(String accountNumber, HistoryQuery query) throws JSONException, SQLException, MqttException {
+        Account account = dm.getAccountSnapshot(accountNumber);
+        // transactions, destinations and destination account numbers are read by single query
+        ArrayList<Transaction> transactions = dm.getHistoryPage(account.getId(), query);
+        Bank bank = BankDirectory.getInstance().getById(account.getBankId());
+
+        // one more transaction than page size is read only to find out if next page exists
+        boolean hasNextPage = transactions.size() > query.getPageSize();
+        if(hasNextPage) {
+            transactions.remove(transactions.size() - 1);
+        }
 
         JSONObject jsonResponse = new JSONObject();
         jsonResponse.put("bankId", bank.getBic());
         jsonResponse.put("accountNumber", account.getAccountNumber());
         jsonResponse.put("message", "history");
+        jsonResponse.put(HistoryQuery.PAGE_SIZE, query.getPageSize());
         JSONArray jsonArray = new JSONArray();
         for(Transaction t : transactions) {
             JSONObject jsonPayment = new JSONObject();
             jsonPayment.put("paymentId", t.getPaymentId());
             jsonPayment.put("status", t.getStatus());
-            jsonPayment.put("amount", t.getAmount());
+            jsonPayment.put("amount", Money.toDecimal(t.getAmount()));
             jsonPayment.put("currency", "EUR");
-            jsonPayment.put("time_sent", t.getDateCreated());
+            jsonPayment.put("time_sent", new SimpleDateFormat(TIME_FORMAT).format(t.getDateCreated()));
             jsonPayment.put("message", "message about payment");
             JSONArray destinations = new JSONArray();
-            JSONObject destination = new JSONObject();
-            ArrayList<AccountTransaction> accountTransactions = dm.getTransactionDestinations(t.getId());
-            for(AccountTransaction at : accountTransactions) {
-                destination.put("destinationAccount", at.getToId());
-                destination.put("amount", at.getAmount());
+            for(AccountTransaction at : t.getDestinations()) {
+                JSONObject destination = new JSONObject();
+                destination.put("destinationAccount", at.getToAccountNumber());
+                destination.put("amount", Money.toDecimal(at.getAmount()));
                 destinations.put(destination);
             }
             jsonPayment.put("paymentDestinations", destinations);
             jsonArray.put(jsonPayment);
         }
         jsonResponse.put("paymentOrders", jsonArray);
-        this.publish(RESPONSE_HISTORY + "/" + bank.getBic() + "/" + accountNumber, this.setMessage(jsonResponse.toString()));
+        if(hasNextPage) {
+            jsonResponse.put("nextCursor", HistoryQuery.cursorToJson(transactions.get(transactions.size() - 1), TIME_FORMAT));
+        }
+        send(RESPONSE_HISTORY + "/" + bank.getBic() + "/" + accountNumber, jsonResponse.toString());
     }
 
 
@@ -548,14 +793,12 @@ public class BankClient extends MqttClient implements MqttCallback {
      * Method will send POST request to {@link #transactionAuthUrl} for transaction authentication
      * @param accountNumber String, account number
      * @param paymentId String, id of payment in uuid format
-     * @param message Mqtt message
+     * @param amount long, total amount of payment in minor units
      * @throws InterruptedException
      * @throws JSONException
      * @throws UnsupportedEncodingException
      */
-    private void authTransactionRequest(String accountNumber, final String paymentId, final MqttMessage message) throws InterruptedException, JSONException, UnsupportedEncodingException {
-
-        double amount = getTotalAmount(message.toString());
+    private void authTransactionRequest(final String accountNumber, final String paymentId, long amount) throws InterruptedException, JSONException, UnsupportedEncodingException {
 
         // Start the client if not started
         if(!httpclient.isRunning()) {
@@ -570,7 +813,7 @@ public class BankClient extends MqttClient implements MqttCallback {
         JSONObject json = new JSONObject();
         json.put("accountNumber", accountNumber);
         json.put("paymentId", paymentId);
-        json.put("amount", String.valueOf(amount));
+        json.put("amount", Money.format(amount));
         json.put("timestamp", timestamp);
         StringEntity params = new StringEntity(json.toString());
         request.setHeader("content-type", "application/json");
@@ -595,32 +838,22 @@ public class BankClient extends MqttClient implements MqttCallback {
                         logger.debug("HTTP request transaction authentication - Successfully received.");
                     }
                     else {
-                        updatePaymentStatus(paymentId, DatabaseManager.REJECTED);
+                        sendRejectedTransactionMessage(accountNumber, paymentId);
                         logger.error("Error in transaction confirmation - receiving POST, payment rejected");
                     }
-                } catch (IOException | JSONException | SQLException | MqttException e) {
+                } catch (IOException | JSONException e) {
                     logger.error("Error: ", e);
                     e.printStackTrace();
                 }
             }
 
             public void failed(final Exception ex) {
-                try {
-                    updatePaymentStatus(paymentId, DatabaseManager.REJECTED);
-                } catch (SQLException | MqttException | JSONException e) {
-                    logger.error("Error: ", e);
-                    e.printStackTrace();
-                }
+                sendRejectedTransactionMessage(accountNumber, paymentId);
                 logger.error(request.getRequestLine() + "->" + ex);
             }
 
             public void cancelled() {
-                try {
-                    updatePaymentStatus(paymentId, DatabaseManager.REJECTED);
-                } catch (SQLException | MqttException | JSONException e) {
-                    logger.error("Error: ", e);
-                    e.printStackTrace();
-                }
+                sendRejectedTransactionMessage(accountNumber, paymentId);
                 logger.error(request.getRequestLine() + " cancelled");
             }
 
@@ -632,12 +865,12 @@ public class BankClient extends MqttClient implements MqttCallback {
      * Method will send POST request to {@link #authUrl} for request authentication
      * @param accountNumber String, account number
      * @param action String, action of request find in {@see BankRest/IdentityMessage class}
-     * @param message Mqtt emssage
+     * @param paymentId String, payment rejected if confirmation fails, null if request is not transaction
      * @throws InterruptedException
      * @throws JSONException
      * @throws UnsupportedEncodingException
      */
-    public void authRequest(String accountNumber, final String action, final MqttMessage message) throws InterruptedException, JSONException, UnsupportedEncodingException {
+    public void authRequest(final String accountNumber, final String action, final String paymentId) throws InterruptedException, JSONException, UnsupportedEncodingException {
 
         // Start the client if not started
         if(!httpclient.isRunning()) {
@@ -679,7 +912,7 @@ public class BankClient extends MqttClient implements MqttCallback {
                     else {
                         // if transaction was requested reject it if error in receiving POST message
                         if(action.equals(IdentityMessage.TRANSACTION_ACTION)) {
-                            sendRejectedTransactionMessage(message);
+                            sendRejectedTransactionMessage(accountNumber, paymentId);
                         }
                         logger.error("Identity confirmation error - receiving POST");
                     }
@@ -692,7 +925,7 @@ public class BankClient extends MqttClient implements MqttCallback {
             public void failed(final Exception ex) {
                 // if transaction was requested reject it if error in receiving POST message
                 if(action.equals(IdentityMessage.TRANSACTION_ACTION)) {
-                    sendRejectedTransactionMessage(message);
+                    sendRejectedTransactionMessage(accountNumber, paymentId);
                 }
                 logger.error(request.getRequestLine() + "->" + ex);
             }
@@ -700,7 +933,7 @@ public class BankClient extends MqttClient implements MqttCallback {
             public void cancelled() {
                 // if transaction was requested reject it if error in receiving POST message
                 if(action.equals(IdentityMessage.TRANSACTION_ACTION)) {
-                    sendRejectedTransactionMessage(message);
+                    sendRejectedTransactionMessage(accountNumber, paymentId);
                 }
                 logger.error(request.getRequestLine() + " cancelled");
             }
@@ -710,15 +943,23 @@ public class BankClient extends MqttClient implements MqttCallback {
 
     /**
      * Method used for processing rejectd transaction messages
-     * @param message Mqtt message
+     * Payment is rejected in lane of its account {@see MessageDispatcher}, so it is ordered with other messages of account
+     * @param accountNumber String, source account of payment
+     * @param paymentId String, payment id in UUID format
      */
-    private void sendRejectedTransactionMessage(MqttMessage message){
-        JSONObject jsonPayment = null;
+    private void sendRejectedTransactionMessage(String accountNumber, final String paymentId){
         try {
-            jsonPayment = new JSONObject(message.toString());
-            String paymentId = jsonPayment.getString("paymentId");
-            updatePaymentStatus(paymentId, DatabaseManager.REJECTED);
-        } catch (JSONException | SQLException | MqttException e) {
+            boolean dispatched = dispatcher.dispatch(accountNumber, new MessageDispatcher.Task() {
+                @Override
+                public void run() throws Exception {
+                    updatePaymentStatus(paymentId, DatabaseManager.REJECTED);
+                }
+            });
+            if(!dispatched) {
+                logger.error("Bank is busy, payment " + paymentId + " is not rejected and stays requested");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             logger.error("Error: ", e);
             e.printStackTrace();
         }
@@ -735,38 +976,15 @@ public class BankClient extends MqttClient implements MqttCallback {
     }
 
     /**
-     * Check if String is encoded as JSON
-     * @param message String message
-     * @return boolean
-     */
-    private boolean isJSONObject(String message) {
-        String firstChar = String.valueOf(message.charAt(0));
-
-        if(firstChar.equalsIgnoreCase("[")) {
-            return false;
-        }
-        else {
-            return true;
-        }
-    }
-
-    /**
-     * Method returns the total amount of money in payment for all payment destinations
-     * @param message String, converted from Mqtt Message, encoded Json in string
-     * @return double, total amount
-     * @throws JSONException on exception
+     * Read payment order of stored transaction with its destinations
+     * @param tr Transaction object
+     * @return PaymentOrder
+     * @throws JSONException if stored payment is not valid order
+     * @throws SQLException
      */
-    private double getTotalAmount(String message) throws JSONException {
-        JSONObject jsonObject = new JSONObject(message);
-        JSONArray destinations = jsonObject.getJSONArray("paymentDestinations");
-        double totalPrice = 0;
-
-        for(int i = 0; i < destinations.length(); i++) {
-            JSONObject destination = destinations.getJSONObject(i);
-            totalPrice += destination.getDouble("amount");
-        }
-
-        return totalPrice;
+    private PaymentOrder loadOrder(Transaction tr) throws JSONException, SQLException {
+        Account acc = dm.getUserAccount(tr.getFromId());
+        return PaymentOrder.fromTransaction(tr, acc, dm.getTransactionDestinationsWithAccounts(tr.getId()));
     }
 
     /**
@@ -777,161 +995,161 @@ public class BankClient extends MqttClient implements MqttCallback {
      * @throws SQLException
      */
     public String createMessageFromTransaction(Transaction tr) throws JSONException, SQLException {
-
-        JSONObject jsonResponse = new JSONObject();
-        JSONArray destinations = new JSONArray();
-
         String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
-
-        Account acc = dm.getUserAccount(tr.getFromId());
-        String accountNumber = acc.getAccountNumber();
-
-        jsonResponse.put("paymentId", tr.getPaymentId());
-        jsonResponse.put("status", tr.getStatus());
-        jsonResponse.put("amount", tr.getAmount());
-        jsonResponse.put("bankId", acc.getBankId());
-        jsonResponse.put("sourceAccount", accountNumber);
-        jsonResponse.put("currency", "EUR");
-        jsonResponse.put("timeSent", timestamp);
-        jsonResponse.put("message", tr.getMessage());
-        ArrayList<AccountTransaction> paymentDestinations = dm.getTransactionDestinations(tr.getId());
-        for(AccountTransaction at : paymentDestinations) {
-            JSONObject destination = new JSONObject();
-            Account account = dm.getUserAccount(at.getToId());
-            destination.put("destinationAccount", account.getAccountNumber());
-            destination.put("amount", at.getAmount());
-            destinations.put(destination);
-        }
-
-        jsonResponse.put("paymentDestinations", destinations);
-
-        return jsonResponse.toString();
+        return loadOrder(tr).toJson(tr.getStatus(), timestamp).toString();
     }
 
 
     /**
      * Method used for processing transactions by payment id.
-     * Transaction is obtained from database (if successfully) and send to be updated, otherwise nothing proceeds
+     * Status is changed first by conditional update, transaction is obtained from database only after it was changed
+     * Received payment is first changed to settling, so money of payment is moved only once
      * @param paymentId String, payment id in UUID format
      * @param status String status of message {@see BankModule/Manager/DatabaseManager class}
+     * @return boolean, true if status was changed, false if payment does not exist or was already processed
      * @throws SQLException
      * @throws MqttException
      * @throws JSONException
      */
-    public void updatePaymentStatus(String paymentId, String status) throws SQLException, MqttException, JSONException {
-        Transaction tr = dm.getTransactionByPaymentId(paymentId);
-
-        if(tr.getId() != NULL) {
-            JSONObject jsonResponse = new JSONObject();
-            JSONArray destinations = new JSONArray();
-
-            String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
+    public boolean updatePaymentStatus(String paymentId, String status) throws SQLException, MqttException, JSONException {
+        PaymentStatus next = PaymentStatus.fromValue(status);
+        if(next == null) {
+            logger.error("Unknown payment status: " + status);
+            return false;
+        }
+        String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
+        PaymentStatus claimed = next == PaymentStatus.RECEIVED ? PaymentStatus.SETTLING : next;
+        if(!dm.transitionTransactionStatus(paymentId, claimed, timestamp)) {
+            logger.error("Transaction with payment id: " + paymentId + " can not change to " + next.getValue() + ", it does not exist or was already processed.");
+            return false;
+        }
 
-            Account acc = dm.getUserAccount(tr.getFromId());
-            String accountNumber = acc.getAccountNumber();
-
-            jsonResponse.put("paymentId", paymentId);
-            jsonResponse.put("status", status);
-            jsonResponse.put("amount", tr.getAmount());
-            jsonResponse.put("bankId", acc.getBankId());
-            jsonResponse.put("sourceAccount", accountNumber);
-            jsonResponse.put("currency", "EUR");
-            jsonResponse.put("timeSent", timestamp);
-            jsonResponse.put("message", tr.getMessage());
-            ArrayList<AccountTransaction> paymentDestinations = dm.getTransactionDestinations(tr.getId());
-            for(AccountTransaction at : paymentDestinations) {
-                JSONObject destination = new JSONObject();
-                Account account = dm.getUserAccount(at.getToId());
-                destination.put("destinationAccount", account.getAccountNumber());
-                destination.put("amount", at.getAmount());
-                destinations.put(destination);
+        PaymentOrder order;
+        try {
+            order = loadOrder(dm.getTransactionByPaymentId(paymentId));
+        } catch (SQLException | JSONException e) {
+            // payment can not be settled without its order, it is not left settling
+            if(next == PaymentStatus.RECEIVED) {
+                dm.transitionTransactionStatus(paymentId, PaymentStatus.REJECTED, timestamp);
             }
+            throw e;
+        }
+        if(next == PaymentStatus.RECEIVED) {
+            return makeTransaction(order);
+        }
 
-            jsonResponse.put("paymentDestinations", destinations);
+        announceStatus(order, next, timestamp);
+        return true;
+    }
 
-            if(status.equals(DatabaseManager.RECEIVED)) {
-                makeTransaction(setMessage(jsonResponse.toString()));
+
+    /**
+     * Method used for storing new payment and publishing its status
+     * If payment with the same payment id already exists, e.g. redelivered order or retry of wallet,
+     * stored status is published again and payment is not processed second time
+     * @param order PaymentOrder, parsed payment order
+     * @param status PaymentStatus, initial status, requested if identity has to be confirmed, pending otherwise
+     * @return boolean, true -> payment was stored, false -> payment already exists or was not stored
+     */
+    public boolean createPayment(PaymentOrder order, PaymentStatus status) {
+        try {
+            Account account = dm.getUserAccountByNumber(order.getSourceAccount());
+            int transactionId = dm.insertTransactionIfAbsent(account.getId(), order.getPaymentId(), order.getTotal(), status.getValue(), order.getMessage());
+            if(transactionId == 0) {
+                publishStoredStatus(order.getPaymentId());
+                return false;
             }
-            else {
-                publishPaymentStatus(jsonResponse.toString(), status);
+            for(PaymentOrder.Destination destination : order.getDestinations()) {
+                dm.linkTransactionDestination(destination.getAccountNumber(), transactionId, destination.getAmount(), order.getMessage());
+            }
+
+            // Requested is only proceed before confirmation
+            if(status != PaymentStatus.REQUESTED) {
+                String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
+                send(PAYMENT_ORDER_RESPONSES, order.toJson(status.getValue(), timestamp).toString());
             }
+        } catch (MqttException | SQLException | JSONException e) {
+            logger.error("Error: ", e);
+            e.printStackTrace();
+            return false;
         }
+
+        return true;
     }
 
 
     /**
-     * Method used for publishing transaction status information
-     * Transaction is obtained from database and (if successfully) updated, otherwise new transaction is created
-     * @param message String, encoded transaction in json in String
-     * @param status String status of message {@see BankModule/Manager/DatabaseManager class}
-     * @return boolean, true -> payment status was published with Mqtt, false -> payment status was not published
+     * Answer duplicate payment order by status of stored payment
+     * Requested payment is waiting for identity confirmation, its status is published after confirmation
+     * @param paymentId String, payment id in UUID format
      */
-    public boolean publishPaymentStatus(String message, String status) {
-        JSONObject json = null;
-        JSONObject jsonResponse = new JSONObject();
-        JSONArray destinations = new JSONArray();
-        Account account = null;
-        String paymentId = "";
-        String msg = "";
-        double amount = 0;
-
-        try {
+    private void publishStoredStatus(String paymentId) throws SQLException, JSONException, MqttException {
+        Transaction tr = dm.getTransactionByPaymentId(paymentId);
+        logger.debug("Transaction with payment id: " + paymentId + " was already received, status: " + tr.getStatus());
 
-            json = new JSONObject(message);
-            paymentId = json.getString("paymentId");
-            amount = getTotalAmount(message);
-            Transaction tr;
-            String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
-            String accountNumber = json.getString("sourceAccount");
-            destinations = json.getJSONArray("paymentDestinations");
-
-            jsonResponse.put("paymentId", paymentId);
-            jsonResponse.put("status", status);
-            jsonResponse.put("amount", amount);
-            jsonResponse.put("bankId", json.get("bankId"));
-            jsonResponse.put("sourceAccount", accountNumber);
-            jsonResponse.put("currency", json.get("currency"));
-            jsonResponse.put("timeSent", timestamp);
-            jsonResponse.put("message", json.get("message"));
-            jsonResponse.put("paymentDestinations", json.getJSONArray("paymentDestinations"));
-
-            // if transaction exists update status, else create new transaction
-            if((tr = dm.getTransactionByPaymentId(paymentId)).getId() != NULL) {
-                // if transaction is going to be changed from requested to pending or from pending to any state except requested
-                if((tr.getStatus().equals(DatabaseManager.REQUESTED) && status.equals(DatabaseManager.PENDING)) ||
-                        (tr.getStatus().equals(DatabaseManager.PENDING) && !status.equals(DatabaseManager.REQUESTED))) {
-                    dm.updateTransactionStatus(tr.getId(), status, timestamp);
-                    publish(PAYMENT_ORDER_RESPONSES, setMessage(jsonResponse.toString()));
-                }
-                else {
-                    logger.error("Transaction with payment id: " + tr.getPaymentId() + " was already processed.");
-                    return false;
-                }
-            }
-            else {
+        if(tr.getId() != NULL && !PaymentStatus.REQUESTED.getValue().equals(tr.getStatus())) {
+            send(PAYMENT_ORDER_RESPONSES, createMessageFromTransaction(tr));
+        }
+    }
 
-                msg = json.getString("message");
-                account = dm.getUserAccountByNumber(accountNumber);
 
-                int transactionId = dm.insertTransaction(account.getId(), paymentId, amount, status, msg);
-                for (int i = 0; i < destinations.length(); i++) {
-                    JSONObject destination = destinations.getJSONObject(i);
-                    String destinationAccount = destination.getString("destinationAccount");
-                    dm.linkTransactionDestination(destinationAccount, transactionId, destination.getDouble("amount"), msg);
-                }
+    /**
+     * Method used for changing and publishing transaction status
+     * Status is changed only if transaction is in one of previous states of new status {@see PaymentStatus},
+     * check and change is one conditional update, so from concurrent changes of the same payment only one is published
+     * Hold of finished payment is released {@see HoldLedger}
+     * @param order PaymentOrder, payment
+     * @param status PaymentStatus, new status of transaction
+     * @return boolean, true -> payment status was changed and published with Mqtt, false -> payment status was not changed
+     */
+    public boolean publishPaymentStatus(PaymentOrder order, PaymentStatus status) {
+        try {
+            String paymentId = order.getPaymentId();
+            String timestamp = new SimpleDateFormat(TIME_FORMAT).format(Calendar.getInstance().getTime());
 
-                // Requested is only proceed before confirmation
-                if(!status.equals(DatabaseManager.REQUESTED)) {
-                    publish(PAYMENT_ORDER_RESPONSES, setMessage(jsonResponse.toString()));
-                }
+            if(!dm.transitionTransactionStatus(paymentId, status, timestamp)) {
+                logger.error("Transaction with payment id: " + paymentId + " can not change to " + status.getValue() + ", it was already processed.");
+                return false;
             }
 
+            announceStatus(order, status, timestamp);
         } catch (MqttException | SQLException | JSONException e) {
             logger.error("Error: ", e);
             e.printStackTrace();
+            return false;
         }
 
         return true;
     }
 
+    /**
+     * Release hold of payment that can not be published
+     * @param order PaymentOrder, payment
+     */
+    private void releaseHold(PaymentOrder order) {
+        try {
+            holds.release(order.getSourceAccount(), order.getPaymentId());
+        } catch (SQLException e) {
+            logger.error("Error: ", e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Publish changed status of payment, hold of received payment is converted to debit, hold of other finished payment is released
+     * @param order PaymentOrder, payment
+     * @param status PaymentStatus, new status already stored
+     * @param timestamp String, time of change
+     */
+    private void announceStatus(PaymentOrder order, PaymentStatus status, String timestamp) throws SQLException, JSONException, MqttException {
+        // received payment is already committed, so its hold is debited from balance kept by holds
+        if(status == PaymentStatus.RECEIVED) {
+            holds.convert(order.getSourceAccount(), order.getPaymentId());
+        } else if(status.isFinal()) {
+            holds.release(order.getSourceAccount(), order.getPaymentId());
+        }
+
+        send(PAYMENT_ORDER_RESPONSES, order.toJson(status.getValue(), timestamp).toString());
+    }
+
 }
@@ -0,0 +1,733 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Ledger;
+
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankStorage;
+import com.mobilewallet.bank.jersey.BankModule.Manager.SettlementMetrics;
+import com.mobilewallet.bank.jersey.BankModule.Model.Account;
+import com.mobilewallet.bank.jersey.BankModule.Model.AccountTransaction;
+import com.mobilewallet.bank.jersey.BankModule.Model.Bank;
+import com.mobilewallet.bank.jersey.BankModule.Model.HistoryQuery;
+import com.mobilewallet.bank.jersey.BankModule.Model.Money;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatusChange;
+import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ledger keeps authoritative balances of all accounts in memory, storage holds only their projection
+ *
+ * Every balance change is checked and applied by one sequencer, appended to {@link WriteAheadLog} and acknowledged
+ * after the log is synced. Settlement decides status of payment in memory and logs it in the same record as balances.
+ * Projector thread writes changed balances and statuses to storage together in batches, so settlement does not
+ * wait for database. Snapshot of all balances and not projected statuses is saved periodically and log is truncated after it.
+ * On start, state is loaded from the last snapshot (or from storage on the first start), the log is replayed
+ * and recovered balances and statuses are projected again before ledger is used.
+ *
+ * Payment is settled only if it was changed to settling through this ledger. Status decided by ledger is final,
+ * so other changes of the payment are refused until it is projected and storage refuses them itself.
+ * All other operations are passed to storage, account balances and not projected statuses are taken from ledger.
+ * @author Martin Stepanek
+ */
+public class LedgerEngine implements BankStorage {
+
+    private static final String SNAPSHOT_FILE = "ledger.snapshot";
+    private static final String LOG_FILE = "ledger.wal";
+    private static final int SNAPSHOT_MAGIC = 0x4c454447;
+    private static final int SNAPSHOT_MAGIC_STATUSES = 0x4c454448;
+
+    private final Logger logger = LoggerFactory.getLogger(LedgerEngine.class);
+
+    private final BankStorage storage;
+    private final File directory;
+    private final int snapshotRecords;
+    private final int projectionBatch;
+
+    /**
+     * Balances by account id, changed only by thread holding sequencer, read without lock
+     */
+    private final Object sequencer = new Object();
+    private final ConcurrentHashMap<Integer, Long> balances = new ConcurrentHashMap<>();
+    private long recordsSinceSnapshot = 0;
+
+    /**
+     * Accounts changed since their last projection to storage
+     */
+    private final Set<Integer> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * Locks of payments by hash of payment id, status of settling payment can not change while its money is moved
+     */
+    private final Object[] paymentLocks = new Object[64];
+
+    /**
+     * Payments changed to settling through this ledger and statuses decided by ledger and not projected yet, by payment id
+     */
+    private final Set<String> settling = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentHashMap<String, DecidedStatus> statuses = new ConcurrentHashMap<>();
+
+    private final WriteAheadLog log;
+    private final ScheduledExecutorService projector;
+
+    private final SettlementMetrics settlementMetrics = new SettlementMetrics();
+    private final AtomicLong projectedBalances = new AtomicLong();
+    private final AtomicLong projectedStatuses = new AtomicLong();
+    private final AtomicLong projectionFailures = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+
+
+    /**
+     * LedgerEngine constructor, recovers balances and starts projection
+     * @param storage BankStorage, storage where balances are projected
+     * @param directory File, directory of snapshot and log
+     * @param snapshotRecords int, number of log records after which snapshot is saved
+     * @param projectionInterval long, delay between projections, in milliseconds
+     * @param projectionBatch int, maximum number of balances written in one batch
+     * @throws IOException if snapshot or log can not be read or written
+     * @throws SQLException if balances can not be loaded from storage
+     */
+    public LedgerEngine(BankStorage storage, File directory, int snapshotRecords, long projectionInterval, int projectionBatch) throws IOException, SQLException {
+        this.storage = storage;
+        this.directory = directory;
+        this.snapshotRecords = Math.max(1, snapshotRecords);
+        this.projectionBatch = Math.max(1, projectionBatch);
+        for(int i = 0; i < paymentLocks.length; i++) {
+            paymentLocks[i] = new Object();
+        }
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Ledger directory " + directory.getAbsolutePath() + " can not be created");
+        }
+
+        long sequence = recover();
+        log = new WriteAheadLog(new File(directory, LOG_FILE), sequence);
+        // replayed records are in the new snapshot, log starts empty so torn record at its end is dropped
+        log.truncate();
+        // storage is repaired before first payment, statuses that can not be projected yet stay decided in memory
+        project();
+
+        projector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ledger-projector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        projector.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                project();
+            }
+        }, projectionInterval, Math.max(1, projectionInterval), TimeUnit.MILLISECONDS);
+
+        logger.info("Ledger started with " + balances.size() + " accounts at sequence " + sequence + ", not projected statuses: " + statuses.size());
+    }
+
+
+    /**
+     * Settle payment in memory, returns after the change is synced to log
+     * Received status is logged in the same record as balances and projected to storage later together with them
+     * @param paymentId String, payment id of payment changed to settling through this ledger
+     * @param sourceAccount String, account number of payer
+     * @param debit long, total amount taken from source account
+     * @param credits Map, destination account number to amount, every account only once
+     * @param date String, date of realization in format yyyy-MM-dd HH:mm:ss
+     * @return boolean, true if payment was settled
+     * @throws SQLException if account can not be read or log write failed
+     */
+    public boolean settlePayment(String paymentId, String sourceAccount, long debit, Map<String, Long> credits, String date) throws SQLException {
+        synchronized (paymentLock(paymentId)) {
+            if(!settling.contains(paymentId)) {
+                logger.error("Payment " + paymentId + " is not settling, it was not settled");
+                return false;
+            }
+            if(!moveMoney(new PaymentStatusChange(paymentId, PaymentStatus.RECEIVED, date), sourceAccount, debit, credits)) {
+                return false;
+            }
+            settling.remove(paymentId);
+        }
+
+        return true;
+    }
+
+    private Object paymentLock(String paymentId) {
+        return paymentLocks[(paymentId.hashCode() & Integer.MAX_VALUE) % paymentLocks.length];
+    }
+
+    private boolean moveMoney(PaymentStatusChange status, String sourceAccount, long debit, Map<String, Long> credits) throws SQLException {
+        long start = System.nanoTime();
+        boolean settled = false;
+
+        Map<String, Long> changes = new HashMap<>(credits);
+        Long sourceChange = changes.get(sourceAccount);
+        changes.put(sourceAccount, Money.subtract(sourceChange == null ? Money.ZERO : sourceChange, debit));
+
+        try {
+            int[] accountIds = new int[changes.size()];
+            long[] amounts = new long[changes.size()];
+            int count = 0;
+            for(Map.Entry<String, Long> change : changes.entrySet()) {
+                Account acc = getUserAccountByNumber(change.getKey());
+                if(acc.getAccountNumber() == null) {
+                    logger.error("Payment from: " + sourceAccount + " contains account that does not exist");
+                    return false;
+                }
+                accountIds[count] = acc.getId();
+                amounts[count] = change.getValue();
+                count++;
+            }
+
+            settled = apply(status, accountIds, amounts, count, true);
+            if(settled) {
+                logger.info("Payment from: " + sourceAccount + " settled, amount: " + Money.format(debit) + ", destinations: " + credits.size());
+            }
+            else {
+                logger.error("Account: " + sourceAccount + " has not enough money, payment rolled back");
+            }
+        } finally {
+            settlementMetrics.record(credits.size(), System.nanoTime() - start, settled);
+        }
+
+        return settled;
+    }
+
+    public void updateAccountSum(String accountNumber, long change) throws SQLException {
+        Account acc = getUserAccountByNumber(accountNumber);
+        if(acc.getAccountNumber() != null) {
+            apply(null, new int[]{acc.getId()}, new long[]{change}, 1, false);
+        }
+    }
+
+    public void applyProjection(Map<Integer, Long> newBalances, List<PaymentStatusChange> newStatuses) throws SQLException {
+        int[] accountIds = new int[newBalances.size()];
+        long[] values = new long[newBalances.size()];
+        int count = 0;
+        for(Map.Entry<Integer, Long> balance : newBalances.entrySet()) {
+            accountIds[count] = balance.getKey();
+            values[count] = balance.getValue();
+            count++;
+        }
+
+        long sequence;
+        synchronized (sequencer) {
+            sequence = append(null, accountIds, values, count);
+            // record holds status of one payment, other statuses are logged without balances
+            for(PaymentStatusChange status : newStatuses) {
+                sequence = append(status, new int[0], new long[0], 0);
+            }
+        }
+        awaitDurable(sequence);
+    }
+
+    public Map<Integer, Long> getAllBalances() {
+        return new HashMap<>(balances);
+    }
+
+
+    /**
+     * Apply balance changes, all changes are applied or none
+     * @param status PaymentStatusChange, status of payment decided by the change, null if there is no payment
+     * @param accountIds int[], ids of accounts
+     * @param amounts long[], changes in minor units
+     * @param count int, number of changes
+     * @param rejectNegative boolean, whether negative change could not make balance negative
+     * @return boolean, false if change was rejected
+     * @throws SQLException if log write failed, nothing is changed
+     */
+    private boolean apply(PaymentStatusChange status, int[] accountIds, long[] amounts, int count, boolean rejectNegative) throws SQLException {
+        long[] values = new long[count];
+        long sequence;
+
+        synchronized (sequencer) {
+            for(int i = 0; i < count; i++) {
+                Long balance = balances.get(accountIds[i]);
+                values[i] = Money.add(balance == null ? Money.ZERO : balance, amounts[i]);
+                if(rejectNegative && amounts[i] < 0 && values[i] < 0) {
+                    return false;
+                }
+            }
+            sequence = append(status, accountIds, values, count);
+        }
+        awaitDurable(sequence);
+
+        return true;
+    }
+
+    /**
+     * Append record to log and apply it to memory, caller has to hold sequencer
+     */
+    private long append(PaymentStatusChange status, int[] accountIds, long[] values, int count) throws SQLException {
+        long sequence;
+        try {
+            sequence = log.append(status, accountIds, values, count);
+        } catch (IOException e) {
+            throw new SQLException("Ledger log write failed", e);
+        }
+        for(int i = 0; i < count; i++) {
+            balances.put(accountIds[i], values[i]);
+            dirty.add(accountIds[i]);
+        }
+        if(status != null) {
+            statuses.put(status.getPaymentId(), new DecidedStatus(status, Arrays.copyOf(accountIds, count)));
+        }
+        recordsSinceSnapshot++;
+
+        return sequence;
+    }
+
+    private void awaitDurable(long sequence) throws SQLException {
+        try {
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new SQLException("Ledger log sync failed", e);
+        }
+    }
+
+
+    /**
+     * Write balances and statuses changed since last projection to storage, snapshot is saved if enough records were appended
+     * Status of payment is written in the same batch as balances of its accounts, status stays decided in memory
+     * until it is written
+     */
+    private void project() {
+        try {
+            while(!dirty.isEmpty() || !statuses.isEmpty()) {
+                List<DecidedStatus> decided = new ArrayList<>();
+                List<PaymentStatusChange> changes = new ArrayList<>();
+                Map<Integer, Long> batch = new HashMap<>();
+                Iterator<DecidedStatus> decidedIterator = statuses.values().iterator();
+                while(decidedIterator.hasNext() && decided.size() < projectionBatch) {
+                    DecidedStatus status = decidedIterator.next();
+                    decided.add(status);
+                    changes.add(status.change);
+                    for(int accountId : status.accountIds) {
+                        dirty.remove(accountId);
+                        batch.put(accountId, balances.get(accountId));
+                    }
+                }
+                Iterator<Integer> iterator = dirty.iterator();
+                while(iterator.hasNext() && batch.size() < projectionBatch) {
+                    Integer accountId = iterator.next();
+                    iterator.remove();
+                    // balance is read after removal, change applied meanwhile marks account dirty again
+                    batch.put(accountId, balances.get(accountId));
+                }
+
+                try {
+                    storage.applyProjection(batch, changes);
+                    projectedBalances.addAndGet(batch.size());
+                    projectedStatuses.addAndGet(changes.size());
+                } catch (SQLException e) {
+                    dirty.addAll(batch.keySet());
+                    projectionFailures.incrementAndGet();
+                    logger.error("Error while projecting balances and statuses: ", e);
+                    break;
+                }
+                for(DecidedStatus status : decided) {
+                    statuses.remove(status.change.getPaymentId(), status);
+                }
+            }
+
+            boolean snapshotNeeded;
+            synchronized (sequencer) {
+                snapshotNeeded = recordsSinceSnapshot >= snapshotRecords;
+            }
+            if(snapshotNeeded) {
+                snapshot();
+            }
+        } catch (Exception e) {
+            logger.error("Error: ", e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Save snapshot of all balances and truncate log, settlement waits while snapshot is written
+     * @throws IOException on IO error
+     */
+    private void snapshot() throws IOException {
+        synchronized (sequencer) {
+            long sequence = log.getAppendedSequence();
+            writeSnapshot(sequence);
+            log.truncate();
+            recordsSinceSnapshot = 0;
+            snapshots.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Load balances from snapshot or storage, replay log and save new snapshot
+     * @return long, sequence of the last recovered record
+     */
+    private long recover() throws IOException, SQLException {
+        File snapshotFile = new File(directory, SNAPSHOT_FILE);
+        long sequence = 0;
+
+        if(snapshotFile.exists()) {
+            sequence = readSnapshot(snapshotFile);
+            logger.info("Ledger snapshot loaded at sequence " + sequence);
+        }
+        else {
+            balances.putAll(storage.getAllBalances());
+            logger.info("Ledger initialized from storage");
+        }
+
+        long replayed = WriteAheadLog.replay(new File(directory, LOG_FILE), sequence, new WriteAheadLog.Replayer() {
+            @Override
+            public void replay(long sequence, PaymentStatusChange status, int[] accountIds, long[] values) {
+                for(int i = 0; i < accountIds.length; i++) {
+                    balances.put(accountIds[i], values[i]);
+                }
+                // status could be already projected, projection is conditional so writing it again changes nothing
+                if(status != null) {
+                    statuses.put(status.getPaymentId(), new DecidedStatus(status, accountIds));
+                }
+            }
+        });
+        if(replayed > sequence) {
+            logger.info("Ledger log replayed from sequence " + sequence + " to " + replayed);
+        }
+
+        // balances changed before crash could be not projected yet, they are projected again
+        Map<Integer, Long> stored = storage.getAllBalances();
+        for(Map.Entry<Integer, Long> balance : balances.entrySet()) {
+            if(!balance.getValue().equals(stored.get(balance.getKey()))) {
+                dirty.add(balance.getKey());
+            }
+        }
+
+        writeSnapshot(replayed);
+        return replayed;
+    }
+
+    private long readSnapshot(File snapshotFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            int magic = in.readInt();
+            if(magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_STATUSES) {
+                throw new IOException("File " + snapshotFile.getAbsolutePath() + " is not ledger snapshot");
+            }
+            long sequence = in.readLong();
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                balances.put(in.readInt(), in.readLong());
+            }
+
+            // snapshot of older version has only balances
+            if(magic == SNAPSHOT_MAGIC_STATUSES) {
+                int statusCount = in.readInt();
+                for(int i = 0; i < statusCount; i++) {
+                    String paymentId = in.readUTF();
+                    PaymentStatus status = PaymentStatus.fromValue(in.readUTF());
+                    String date = in.readUTF();
+                    int[] accountIds = new int[in.readInt()];
+                    for(int j = 0; j < accountIds.length; j++) {
+                        accountIds[j] = in.readInt();
+                    }
+                    if(status == null) {
+                        throw new IOException("File " + snapshotFile.getAbsolutePath() + " contains unknown status of payment " + paymentId);
+                    }
+                    statuses.put(paymentId, new DecidedStatus(new PaymentStatusChange(paymentId, status, date), accountIds));
+                }
+            }
+
+            return sequence;
+        }
+    }
+
+    /**
+     * Write snapshot to temporary file and replace old snapshot by it, so there is always one complete snapshot
+     */
+    private void writeSnapshot(long sequence) throws IOException {
+        File temporary = new File(directory, SNAPSHOT_FILE + ".tmp");
+        Map<Integer, Long> copy = new HashMap<>(balances);
+        List<DecidedStatus> decided = new ArrayList<>(statuses.values());
+
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(SNAPSHOT_MAGIC_STATUSES);
+            out.writeLong(sequence);
+            out.writeInt(copy.size());
+            for(Map.Entry<Integer, Long> balance : copy.entrySet()) {
+                out.writeInt(balance.getKey());
+                out.writeLong(balance.getValue());
+            }
+            // statuses not projected yet, their records are removed from log with the snapshot
+            out.writeInt(decided.size());
+            for(DecidedStatus status : decided) {
+                out.writeUTF(status.change.getPaymentId());
+                out.writeUTF(status.change.getStatus().getValue());
+                out.writeUTF(status.change.getDate());
+                out.writeInt(status.accountIds.length);
+                for(int accountId : status.accountIds) {
+                    out.writeInt(accountId);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary.toPath(), new File(directory, SNAPSHOT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     * Convert ledger statistics to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("accounts", balances.size());
+        json.put("appendedSequence", log.getAppendedSequence());
+        json.put("durableSequence", log.getDurableSequence());
+        json.put("syncs", log.getSyncs());
+        json.put("averageGroupSize", log.getAverageGroupSize());
+        json.put("pendingProjection", dirty.size());
+        json.put("projectedBalances", projectedBalances.get());
+        json.put("pendingStatuses", statuses.size());
+        json.put("settling", settling.size());
+        json.put("projectedStatuses", projectedStatuses.get());
+        json.put("projectionFailures", projectionFailures.get());
+        json.put("snapshots", snapshots.get());
+        json.put("settlement", settlementMetrics.toJson());
+
+        return json;
+    }
+
+    /**
+     * Get storage where balances are projected
+     * @return BankStorage
+     */
+    public BankStorage getStorage() {
+        return storage;
+    }
+
+    public SettlementMetrics getSettlementMetrics() {
+        return settlementMetrics;
+    }
+
+    /**
+     * Project all changed balances, save snapshot and close log and storage
+     */
+    public void shutdown() {
+        projector.shutdown();
+        try {
+            projector.awaitTermination(10, TimeUnit.SECONDS);
+            project();
+            snapshot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Error while saving ledger snapshot: ", e);
+        }
+        log.close();
+        storage.shutdown();
+    }
+
+
+    public boolean linkAccount(String accountNumber, String bic) throws SQLException {
+        boolean status = storage.linkAccount(accountNumber, bic);
+        if(status) {
+            Account acc = storage.getUserAccountByNumber(accountNumber);
+            balances.putIfAbsent(acc.getId(), acc.getBalance());
+        }
+
+        return status;
+    }
+
+    public List<String> linkAccounts(Map<String, String> accounts) throws SQLException {
+        // balances of new accounts are added to ledger on first read by withBalance
+        return storage.linkAccounts(accounts);
+    }
+
+    public Set<String> getExistingAccountNumbers(Collection<String> accountNumbers) throws SQLException {
+        return storage.getExistingAccountNumbers(accountNumbers);
+    }
+
+    public Account getUserAccountByNumber(String accountNumber) throws SQLException {
+        return withBalance(storage.getUserAccountByNumber(accountNumber));
+    }
+
+    public Account getAccountSnapshot(String accountNumber) throws SQLException {
+        // balance in ledger is always the latest one
+        return withBalance(storage.getAccountSnapshot(accountNumber));
+    }
+
+    public Account getUserAccount(int userId) throws SQLException {
+        return withBalance(storage.getUserAccount(userId));
+    }
+
+    public ArrayList<Account> getAllAccounts() throws SQLException {
+        ArrayList<Account> accounts = storage.getAllAccounts();
+        for(Account acc : accounts) {
+            withBalance(acc);
+        }
+
+        return accounts;
+    }
+
+    /**
+     * Replace balance read from storage by balance from ledger, storage balance could be not projected yet
+     */
+    private Account withBalance(Account acc) {
+        if(acc.getAccountNumber() != null) {
+            Long balance = balances.get(acc.getId());
+            if(balance != null) {
+                acc.setBalance(balance);
+            }
+            else {
+                // account added directly to storage, its stored balance is the first known one
+                balances.putIfAbsent(acc.getId(), acc.getBalance());
+            }
+        }
+
+        return acc;
+    }
+
+    public ArrayList<Bank> getAllBanks() throws SQLException {
+        return storage.getAllBanks();
+    }
+
+    public Bank getBank(int bankId) throws SQLException {
+        return storage.getBank(bankId);
+    }
+
+    public Bank getBankByBic(String bic) throws SQLException {
+        return storage.getBankByBic(bic);
+    }
+
+    public int insertTransaction(int fromId, String paymentId, long amount, String status, String message) throws SQLException {
+        return storage.insertTransaction(fromId, paymentId, amount, status, message);
+    }
+
+    public int insertTransactionIfAbsent(int fromId, String paymentId, long amount, String status, String message) throws SQLException {
+        return storage.insertTransactionIfAbsent(fromId, paymentId, amount, status, message);
+    }
+
+    public int linkTransactionDestination(String accountNumber, int transactionId, long amount, String message) throws SQLException {
+        return storage.linkTransactionDestination(accountNumber, transactionId, amount, message);
+    }
+
+    public ArrayList<AccountTransaction> getTransactionDestinations(int transactionId) throws SQLException {
+        return storage.getTransactionDestinations(transactionId);
+    }
+
+    public ArrayList<AccountTransaction> getTransactionDestinationsWithAccounts(int transactionId) throws SQLException {
+        return storage.getTransactionDestinationsWithAccounts(transactionId);
+    }
+
+    public Transaction getTransactionByPaymentId(String paymentId) throws SQLException {
+        return withStatus(storage.getTransactionByPaymentId(paymentId));
+    }
+
+    public ArrayList<Transaction> getTransactionsByAccNumberStatus(String accountNumber, String status) throws SQLException {
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for(Transaction t : storage.getTransactionsByAccNumberStatus(accountNumber, status)) {
+            // payment with status decided by ledger has other status than stored one
+            if(status.equals(withStatus(t).getStatus())) {
+                transactions.add(t);
+            }
+        }
+
+        return transactions;
+    }
+
+    public void updateTransactionStatus(int id, String status, String date) throws SQLException {
+        storage.updateTransactionStatus(id, status, date);
+    }
+
+    public boolean transitionTransactionStatus(String paymentId, PaymentStatus status, String date) throws SQLException {
+        synchronized (paymentLock(paymentId)) {
+            // status decided by ledger is final, storage does not know it until it is projected
+            if(statuses.containsKey(paymentId) || !storage.transitionTransactionStatus(paymentId, status, date)) {
+                return false;
+            }
+            if(status == PaymentStatus.SETTLING) {
+                settling.add(paymentId);
+            }
+            else {
+                settling.remove(paymentId);
+            }
+        }
+
+        return true;
+    }
+
+    public ArrayList<Transaction> getHistory(int accountId) throws SQLException {
+        return withStatuses(storage.getHistory(accountId));
+    }
+
+    public ArrayList<Transaction> getHistoryWithDestinations(int accountId) throws SQLException {
+        return withStatuses(storage.getHistoryWithDestinations(accountId));
+    }
+
+    public ArrayList<Transaction> getHistoryPage(int accountId, HistoryQuery query) throws SQLException {
+        return withStatuses(storage.getHistoryPage(accountId, query));
+    }
+
+    /**
+     * Replace status read from storage by status decided by ledger and not projected yet
+     */
+    private Transaction withStatus(Transaction t) {
+        DecidedStatus status = t.getPaymentId() == null ? null : statuses.get(t.getPaymentId());
+        return status != null ? status.change.applyTo(t) : t;
+    }
+
+    private ArrayList<Transaction> withStatuses(ArrayList<Transaction> transactions) {
+        for(Transaction t : transactions) {
+            withStatus(t);
+        }
+
+        return transactions;
+    }
+
+
+    /**
+     * Status decided by ledger with accounts changed in the same record, they are projected together
+     */
+    private static final class DecidedStatus {
+        private final PaymentStatusChange change;
+        private final int[] accountIds;
+
+        private DecidedStatus(PaymentStatusChange change, int[] accountIds) {
+            this.change = change;
+            this.accountIds = accountIds;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Ledger;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatusChange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of balance changes, one record per settled payment
+ * Record holds absolute balances of all changed accounts after settlement and new status of settled payment,
+ * so replaying is idempotent and payment is never settled in log without its status
+ *
+ * Records are appended to memory buffer and written by one flusher thread, all records appended while previous
+ * write was synced are written and synced at once (group commit), so one fsync serves many payments
+ *
+ * Record format: int length | long sequence | short payment id length | payment id | short status length | status
+ * | short date length | date | int count | count * (int account id, long balance) | long crc32
+ * Strings are in UTF-8, record without payment has empty payment id, status and date
+ * Replay stops at the first incomplete or corrupted record, such record was never acknowledged
+ * @author Martin Stepanek
+ */
+public class WriteAheadLog {
+
+    private static final int HEADER = 4 + 8 + 3 * 2 + 4;
+    private static final int ACCOUNT = 4 + 8;
+    private static final int CRC = 8;
+
+    private final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private final File file;
+    private final FileChannel channel;
+    private final Thread flusher;
+
+    /**
+     * Records appended and not written yet, guarded by this
+     */
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private long appendedSequence;
+    private long durableSequence;
+    private IOException failure;
+    private volatile boolean closed = false;
+
+    private long syncs = 0;
+    private long syncedRecords = 0;
+
+
+    /**
+     * Open log file, new records are appended after existing ones
+     * @param file File, log file
+     * @param lastSequence long, sequence of the last record that is already in log or snapshot
+     * @throws IOException if file can not be opened
+     */
+    public WriteAheadLog(File file, long lastSequence) throws IOException {
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.channel.position(channel.size());
+        this.appendedSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        this.pending = ByteBuffer.allocate(64 * 1024);
+        this.writing = ByteBuffer.allocate(64 * 1024);
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "ledger-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+
+    /**
+     * Append record with post balances of changed accounts, record is not durable until {@link #awaitDurable(long)}
+     * @param status PaymentStatusChange, new status of payment, null if record changes only balances
+     * @param accountIds int[], ids of changed accounts
+     * @param balances long[], balances after change in minor units
+     * @param count int, number of used items in arrays
+     * @return long, sequence of appended record
+     * @throws IOException if log is closed or previous write failed
+     */
+    public synchronized long append(PaymentStatusChange status, int[] accountIds, long[] balances, int count) throws IOException {
+        if(failure != null) {
+            throw failure;
+        }
+        if(closed) {
+            throw new IOException("Write-ahead log is closed");
+        }
+
+        byte[] paymentId = bytes(status == null ? null : status.getPaymentId());
+        byte[] value = bytes(status == null ? null : status.getStatus().getValue());
+        byte[] date = bytes(status == null ? null : status.getDate());
+        int length = HEADER + paymentId.length + value.length + date.length + count * ACCOUNT + CRC;
+        if(pending.remaining() < length) {
+            pending = grow(pending, length);
+        }
+
+        long sequence = ++appendedSequence;
+        int start = pending.position();
+        pending.putInt(length);
+        pending.putLong(sequence);
+        putString(pending, paymentId);
+        putString(pending, value);
+        putString(pending, date);
+        pending.putInt(count);
+        for(int i = 0; i < count; i++) {
+            pending.putInt(accountIds[i]);
+            pending.putLong(balances[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(pending.array(), start, length - CRC);
+        pending.putLong(crc.getValue());
+
+        notifyAll();
+        return sequence;
+    }
+
+    /**
+     * Wait until record with given sequence is synced to disk
+     * @param sequence long, sequence returned by {@link #append(PaymentStatusChange, int[], long[], int)}
+     * @throws IOException if write failed
+     */
+    public synchronized void awaitDurable(long sequence) throws IOException {
+        boolean interrupted = false;
+        while(durableSequence < sequence) {
+            if(failure != null) {
+                throw failure;
+            }
+            if(closed && !flusher.isAlive()) {
+                throw new IOException("Write-ahead log is closed");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Remove all records, must be called only after snapshot containing all appended records was saved
+     * @throws IOException on IO error
+     */
+    public synchronized void truncate() throws IOException {
+        awaitDurable(appendedSequence);
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    public synchronized long getAppendedSequence() {
+        return appendedSequence;
+    }
+
+    public synchronized long getDurableSequence() {
+        return durableSequence;
+    }
+
+    public synchronized long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * Get average number of records synced by one fsync
+     * @return double, records per sync
+     */
+    public synchronized double getAverageGroupSize() {
+        return syncs == 0 ? 0 : (double) syncedRecords / syncs;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+
+    /**
+     * Write all appended records and close the file
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Error while closing write-ahead log: ", e);
+        }
+    }
+
+
+    /**
+     * Read all valid records of log file
+     * @param file File, log file
+     * @param afterSequence long, records with lower or equal sequence are skipped
+     * @param replayer Replayer, called for every record in order
+     * @return long, sequence of the last valid record or afterSequence if there is none
+     * @throws IOException on IO error
+     */
+    public static long replay(File file, long afterSequence, Replayer replayer) throws IOException {
+        long last = afterSequence;
+        if(!file.exists()) {
+            return last;
+        }
+
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(in.size(), Integer.MAX_VALUE));
+            while(buffer.hasRemaining() && in.read(buffer) >= 0) {
+                // read whole file
+            }
+            buffer.flip();
+
+            while(buffer.remaining() >= HEADER + CRC) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                if(length < HEADER + CRC || length > buffer.remaining() + 4) {
+                    break;
+                }
+                long sequence = buffer.getLong();
+                String paymentId = getString(buffer, start + length);
+                String value = getString(buffer, start + length);
+                String date = getString(buffer, start + length);
+                if(paymentId == null || value == null || date == null || buffer.remaining() < 4) {
+                    break;
+                }
+                int count = buffer.getInt();
+                if(count < 0 || length != buffer.position() - start + count * ACCOUNT + CRC) {
+                    break;
+                }
+                int[] accountIds = new int[count];
+                long[] balances = new long[count];
+                for(int i = 0; i < count; i++) {
+                    accountIds[i] = buffer.getInt();
+                    balances[i] = buffer.getLong();
+                }
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), start, length - CRC);
+                if(crc.getValue() != buffer.getLong()) {
+                    break;
+                }
+
+                if(sequence > last) {
+                    PaymentStatus status = PaymentStatus.fromValue(value);
+                    replayer.replay(sequence, paymentId.isEmpty() || status == null ? null : new PaymentStatusChange(paymentId, status, date),
+                            accountIds, balances);
+                    last = sequence;
+                }
+            }
+        }
+
+        return last;
+    }
+
+
+    private void flushLoop() {
+        while(true) {
+            long sequence;
+            long records;
+            synchronized (this) {
+                while(pending.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // flusher is stopped only by close
+                    }
+                }
+                if(pending.position() == 0) {
+                    return;
+                }
+
+                // swap buffers, appenders continue with empty buffer while this group is synced
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                sequence = appendedSequence;
+                records = sequence - durableSequence;
+            }
+
+            try {
+                writing.flip();
+                while(writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+                writing.clear();
+
+                synchronized (this) {
+                    syncs++;
+                    syncedRecords += records;
+                    durableSequence = sequence;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                logger.error("Error while writing write-ahead log: ", e);
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    /**
+     * Read string written by {@link #putString(ByteBuffer, byte[])}
+     * @return String, null if string does not end before end of record
+     */
+    private static String getString(ByteBuffer buffer, int end) {
+        if(buffer.remaining() < 2) {
+            return null;
+        }
+        int length = buffer.getShort() & 0xffff;
+        if(buffer.position() + length > end) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        bigger.put(buffer);
+
+        return bigger;
+    }
+
+
+    /**
+     * Callback for records read by {@link #replay(File, long, Replayer)}
+     */
+    public interface Replayer {
+        void replay(long sequence, PaymentStatusChange status, int[] accountIds, long[] balances);
+    }
+}
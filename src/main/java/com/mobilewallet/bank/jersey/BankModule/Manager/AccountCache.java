@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Account;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of accounts by id and by account number, least recently used account is evicted
+ * Cache keeps own copies of accounts, so callers can not change cached values
+ *
+ * Every write to account has to invalidate it. Loading is done in two steps {@link #beginLoad(String)} and
+ * {@link #completeLoad(Account, String, long)}, so account read from database before concurrent write is never cached
+ * @author Martin Stepanek
+ */
+public class AccountCache {
+
+    private static final int STRIPES = 256;
+
+    private final int maxSize;
+
+    /**
+     * Accounts by id in access order and ids by account number
+     */
+    private final LinkedHashMap<Integer, Account> accounts;
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Invalidation counters by account number and for all accounts
+     */
+    private final long[] stamps = new long[STRIPES];
+    private long globalStamp = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    /**
+     * AccountCache constructor
+     * @param maxSize int, maximum number of cached accounts
+     */
+    @SuppressWarnings("serial")
+    public AccountCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.accounts = new LinkedHashMap<Integer, Account>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Account> eldest) {
+                if(size() > AccountCache.this.maxSize) {
+                    ids.remove(eldest.getValue().getAccountNumber());
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * Get cached account by id
+     * @param id int, account id
+     * @return Account, copy of cached account or null if account is not cached
+     */
+    public synchronized Account getById(int id) {
+        Account acc = accounts.get(id);
+        count(acc);
+
+        return acc == null ? null : copy(acc);
+    }
+
+    /**
+     * Get cached account by account number
+     * @param accountNumber String, account number
+     * @return Account, copy of cached account or null if account is not cached
+     */
+    public synchronized Account getByNumber(String accountNumber) {
+        Integer id = ids.get(accountNumber);
+        Account acc = id == null ? null : accounts.get(id);
+        count(acc);
+
+        return acc == null ? null : copy(acc);
+    }
+
+
+    /**
+     * Start loading account from database, must be called before database is read
+     * @param accountNumber String, account number if known before load, otherwise null
+     * @return long, token for {@link #completeLoad(Account, String, long)}
+     */
+    public synchronized long beginLoad(String accountNumber) {
+        return accountNumber == null ? globalStamp : stamps[stripe(accountNumber)];
+    }
+
+    /**
+     * Cache account loaded from database, account is not cached if it was invalidated since load started
+     * @param acc Account, loaded account, accounts not found in database are not cached
+     * @param accountNumber String, the same account number as in {@link #beginLoad(String)}
+     * @param token long, token returned by {@link #beginLoad(String)}
+     */
+    public synchronized void completeLoad(Account acc, String accountNumber, long token) {
+        if(acc == null || acc.getAccountNumber() == null) {
+            return;
+        }
+
+        long current = accountNumber == null ? globalStamp : stamps[stripe(accountNumber)];
+        if(current == token) {
+            accounts.put(acc.getId(), copy(acc));
+            ids.put(acc.getAccountNumber(), acc.getId());
+        }
+    }
+
+
+    /**
+     * Remove account from cache, must be called after every change of account
+     * @param accountNumber String, account number
+     */
+    public synchronized void invalidate(String accountNumber) {
+        Integer id = ids.remove(accountNumber);
+        if(id != null) {
+            accounts.remove(id);
+        }
+        stamps[stripe(accountNumber)]++;
+        globalStamp++;
+    }
+
+    /**
+     * Remove account from cache by id, must be called after every change of account
+     * @param id int, account id
+     */
+    public synchronized void invalidate(int id) {
+        Account acc = accounts.remove(id);
+        if(acc != null) {
+            ids.remove(acc.getAccountNumber());
+            stamps[stripe(acc.getAccountNumber())]++;
+        }
+        globalStamp++;
+    }
+
+    /**
+     * Remove all accounts from cache
+     */
+    public synchronized void clear() {
+        accounts.clear();
+        ids.clear();
+        for(int i = 0; i < STRIPES; i++) {
+            stamps[i]++;
+        }
+        globalStamp++;
+    }
+
+    public synchronized int size() {
+        return accounts.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+
+    /**
+     * Convert cache statistics to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("size", size());
+        json.put("maxSize", maxSize);
+        json.put("hits", hits.get());
+        json.put("misses", misses.get());
+        json.put("evictions", evictions.get());
+
+        return json;
+    }
+
+    private void count(Account acc) {
+        if(acc == null) {
+            misses.incrementAndGet();
+        }
+        else {
+            hits.incrementAndGet();
+        }
+    }
+
+    private static int stripe(String accountNumber) {
+        return (accountNumber.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private static Account copy(Account acc) {
+        Account copy = new Account();
+        copy.setId(acc.getId());
+        copy.setBankId(acc.getBankId());
+        copy.setUserId(acc.getUserId());
+        copy.setAccountNumber(acc.getAccountNumber());
+        copy.setBalance(acc.getBalance());
+        copy.setDateCreated(acc.getDateCreated());
+
+        return copy;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Money;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Striping of hot accounts, e.g. merchants credited by almost every payment
+ * Credit of hot account is not added to its row in account table, but to one of {@link #stripes} rows in account_stripe
+ * table chosen randomly per payment, so concurrent payments do not wait for one row lock.
+ * Logical balance of account is its balance plus sum of all its stripes, compaction periodically folds stripes back to account
+ *
+ * Accounts are locked always in order account row, then its stripes, so compaction never deadlocks with payments
+ * @author Martin Stepanek
+ */
+public class AccountStripes {
+
+    private final Logger logger = LoggerFactory.getLogger(AccountStripes.class);
+
+    private final ConnectionPool pool;
+    private final Set<String> hotAccounts;
+    private final int stripes;
+    private final ScheduledExecutorService compactor;
+
+    private final AtomicLong credits = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong foldedAccounts = new AtomicLong();
+
+
+    /**
+     * AccountStripes constructor, compacts stripes left from previous run and schedules compaction
+     * @param pool ConnectionPool, pool of database
+     * @param hotAccounts String, comma separated account numbers of hot accounts
+     * @param stripes int, number of stripes of every hot account
+     * @param compactionInterval long, time between compactions in milliseconds, 0 disables scheduled compaction
+     */
+    public AccountStripes(ConnectionPool pool, String hotAccounts, int stripes, long compactionInterval) {
+        this.pool = pool;
+        this.stripes = Math.max(1, stripes);
+
+        Set<String> accounts = new HashSet<>();
+        for(String accountNumber : hotAccounts.split(",")) {
+            if(!accountNumber.trim().isEmpty()) {
+                accounts.add(accountNumber.trim());
+            }
+        }
+        this.hotAccounts = Collections.unmodifiableSet(accounts);
+
+        // stripes of accounts that are not hot anymore are folded too
+        try {
+            compact();
+        } catch (SQLException e) {
+            logger.error("Error while compacting account stripes: ", e);
+        }
+
+        if(compactionInterval > 0 && !this.hotAccounts.isEmpty()) {
+            compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "account-stripe-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (SQLException e) {
+                        logger.error("Error while compacting account stripes: ", e);
+                    }
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        }
+        else {
+            compactor = null;
+        }
+
+        logger.info("Hot accounts: " + this.hotAccounts.size() + ", stripes: " + this.stripes);
+    }
+
+
+    /**
+     * Check if credits of account are striped
+     * @param accountNumber String, account number
+     * @return boolean
+     */
+    public boolean isHot(String accountNumber) {
+        return accountNumber != null && hotAccounts.contains(accountNumber);
+    }
+
+    /**
+     * Add credit to random stripe of hot account, statement is only added to batch
+     * @param pc PooledConnection, connection of running database transaction
+     * @param accountId int, id of hot account
+     * @param amount long, positive amount in minor units
+     * @return PreparedStatement, batch that has to be executed
+     * @throws SQLException on SQL error
+     */
+    PreparedStatement addCredit(PooledConnection pc, int accountId, long amount) throws SQLException {
+        PreparedStatement statement = pc.prepare(StatementCatalog.INSERT_STRIPE_CREDIT);
+        statement.setInt(1, accountId);
+        statement.setInt(2, ThreadLocalRandom.current().nextInt(stripes));
+        statement.setBigDecimal(3, Money.toDecimal(amount));
+        statement.addBatch();
+        credits.incrementAndGet();
+
+        return statement;
+    }
+
+    /**
+     * Get sum of all stripes of account
+     * @param pc PooledConnection, leased connection
+     * @param accountId int, id of account
+     * @return long, sum in minor units
+     * @throws SQLException on SQL error
+     */
+    long getStripeSum(PooledConnection pc, int accountId) throws SQLException {
+        PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_STRIPE_SUM);
+        statement.setInt(1, accountId);
+        try (ResultSet result = statement.executeQuery()) {
+            return result.next() ? Money.fromDecimal(result.getBigDecimal(1)) : Money.ZERO;
+        }
+    }
+
+    /**
+     * Fold stripes of all accounts back to their balances, every account in its own database transaction
+     * Logical balances do not change, so cached accounts stay valid
+     * @return int, number of folded accounts
+     * @throws SQLException on SQL error
+     */
+    public int compact() throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_STRIPED_ACCOUNTS);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    ids.add(result.getInt(1));
+                }
+            }
+
+            for(int id : ids) {
+                fold(pc, id);
+            }
+        } finally {
+            pool.release(pc);
+        }
+
+        compactions.incrementAndGet();
+        foldedAccounts.addAndGet(ids.size());
+        if(!ids.isEmpty()) {
+            logger.debug("Account stripes compacted, accounts: " + ids.size());
+        }
+
+        return ids.size();
+    }
+
+    /**
+     * Stop scheduled compaction
+     */
+    public void close() {
+        if(compactor != null) {
+            compactor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Convert striping statistics to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("hotAccounts", hotAccounts.size());
+        json.put("stripes", stripes);
+        json.put("credits", credits.get());
+        json.put("compactions", compactions.get());
+        json.put("foldedAccounts", foldedAccounts.get());
+
+        return json;
+    }
+
+
+    private void fold(PooledConnection pc, int accountId) throws SQLException {
+        Connection conn = pc.getConnection();
+        conn.setAutoCommit(false);
+        try {
+            PreparedStatement lockAccount = pc.prepare(StatementCatalog.LOCK_ACCOUNT_BY_ID);
+            lockAccount.setInt(1, accountId);
+            try (ResultSet result = lockAccount.executeQuery()) {
+                if(!result.next()) {
+                    return;
+                }
+            }
+
+            BigDecimal sum;
+            PreparedStatement lockStripes = pc.prepare(StatementCatalog.LOCK_STRIPE_SUM);
+            lockStripes.setInt(1, accountId);
+            try (ResultSet result = lockStripes.executeQuery()) {
+                result.next();
+                sum = result.getBigDecimal(1);
+            }
+
+            PreparedStatement update = pc.prepare(StatementCatalog.UPDATE_ACCOUNT_SUM_BY_ID);
+            update.setBigDecimal(1, sum);
+            update.setInt(2, accountId);
+            update.setBigDecimal(3, sum);
+            update.setBigDecimal(4, sum);
+            update.executeUpdate();
+
+            PreparedStatement reset = pc.prepare(StatementCatalog.RESET_STRIPES);
+            reset.setInt(1, accountId);
+            reset.executeUpdate();
+
+            conn.commit();
+        } finally {
+            if(!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Money;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconciliation of account balances with payments
+ * Balance of account (with its stripes) has to be its opening balance plus credits minus debits of all received payments.
+ * Opening balance is not part of schema, it is taken when account is checked for the first time and stored in account_reconciliation.
+ *
+ * Accounts are checked in chunks of consecutive ids, chunks are split and checked in parallel by fork-join pool, every chunk
+ * reads balances and sums of payments in one transaction, so they are from the same snapshot. Accounts with settling payment
+ * are skipped, their balance could be already changed while status is not. Payment settling longer than settling timeout
+ * is not in flight anymore, its accounts are checked.
+ *
+ * High-water mark (last transaction id and time of run) is stored after every run, next run checks only accounts of payments
+ * created or realized since then. The first run checks all accounts.
+ * @author Martin Stepanek
+ */
+public class BalanceReconciler {
+
+    private final Logger logger = LoggerFactory.getLogger(BalanceReconciler.class);
+
+    private final ConnectionPool pool;
+    private final int chunkSize;
+    private final long overlap;
+    private final int maxMismatches;
+    private final long settlingTimeout;
+    private final ForkJoinPool workers;
+    private final ScheduledExecutorService runner;
+
+    private volatile ReconciliationReport lastReport;
+
+
+    /**
+     * BalanceReconciler constructor, schedules periodic run if interval is set
+     * @param pool ConnectionPool, pool of database
+     * @param parallelism int, number of chunks checked at once
+     * @param chunkSize int, maximum number of account ids of one chunk
+     * @param overlap long, time subtracted from last run, so statuses written late are not missed, in milliseconds
+     * @param maxMismatches int, maximum number of mismatches kept in report
+     * @param interval long, time between runs in milliseconds, 0 runs only on request
+     * @param settlingTimeout long, time after which settling payment does not skip its accounts, in milliseconds
+     */
+    public BalanceReconciler(ConnectionPool pool, int parallelism, int chunkSize,
+                             long overlap, int maxMismatches, long interval, long settlingTimeout) {
+        this.pool = pool;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.overlap = overlap;
+        this.maxMismatches = maxMismatches;
+        this.settlingTimeout = settlingTimeout;
+        this.workers = new ForkJoinPool(Math.max(1, parallelism));
+
+        runner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "balance-reconciler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if(interval > 0) {
+            runner.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    ReconciliationReport report = new ReconciliationReport(false, BalanceReconciler.this.maxMismatches);
+                    lastReport = report;
+                    reconcile(report);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * Start run in background
+     * @param full boolean, true if all accounts have to be checked, otherwise only accounts touched since last run
+     * @return ReconciliationReport, report of started run, null if other run is in progress
+     */
+    public synchronized ReconciliationReport start(boolean full) {
+        if(lastReport != null && ReconciliationReport.RUNNING.equals(lastReport.getStatus())) {
+            return null;
+        }
+
+        final ReconciliationReport report = new ReconciliationReport(full, maxMismatches);
+        lastReport = report;
+        runner.execute(new Runnable() {
+            @Override
+            public void run() {
+                reconcile(report);
+            }
+        });
+
+        return report;
+    }
+
+    /**
+     * Get report of the last run
+     * @return ReconciliationReport, null if nothing was run yet
+     */
+    public ReconciliationReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Stop scheduled runs and running checks
+     */
+    public void close() {
+        runner.shutdownNow();
+        workers.shutdownNow();
+    }
+
+
+    private void reconcile(ReconciliationReport report) {
+        try {
+            // new high-water mark is taken before accounts are read, payments created meanwhile are checked again next time
+            Timestamp started = new Timestamp(System.currentTimeMillis());
+            int lastTransactionId = 0;
+            Timestamp lastRun = null;
+            int maxTransactionId;
+
+            PooledConnection pc = pool.lease();
+            try {
+                PreparedStatement state = pc.prepare(StatementCatalog.SELECT_RECONCILE_STATE);
+                try (ResultSet result = state.executeQuery()) {
+                    if(result.next()) {
+                        lastTransactionId = result.getInt(1);
+                        lastRun = new Timestamp(result.getTimestamp(2).getTime() - overlap);
+                    }
+                }
+                PreparedStatement max = pc.prepare(StatementCatalog.SELECT_MAX_TRANSACTION_ID);
+                try (ResultSet result = max.executeQuery()) {
+                    result.next();
+                    maxTransactionId = result.getInt(1);
+                }
+            } finally {
+                pool.release(pc);
+            }
+
+            if(report.isFull() || lastRun == null) {
+                checkAll(report);
+            }
+            else {
+                checkTouched(report, lastTransactionId, lastRun);
+            }
+
+            pc = pool.lease();
+            try {
+                PreparedStatement update = pc.prepare(StatementCatalog.UPDATE_RECONCILE_STATE);
+                update.setInt(1, maxTransactionId);
+                update.setTimestamp(2, started);
+                update.executeUpdate();
+            } finally {
+                pool.release(pc);
+            }
+
+            report.finish();
+            logger.info("Balance reconciliation finished: " + report.toJson());
+        } catch (Exception e) {
+            logger.error("Error: Balance reconciliation - ", e);
+            e.printStackTrace();
+            report.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check all accounts in id ranges
+     */
+    private void checkAll(ReconciliationReport report) throws SQLException {
+        int min;
+        int max;
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement range = pc.prepare(StatementCatalog.SELECT_ACCOUNT_ID_RANGE);
+            try (ResultSet result = range.executeQuery()) {
+                result.next();
+                min = result.getInt(1);
+                max = result.getInt(2);
+                if(result.wasNull()) {
+                    return;
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
+
+        workers.invoke(new Chunk(report, null, min, max + 1));
+    }
+
+    /**
+     * Check only accounts of payments created or realized since last run
+     */
+    private void checkTouched(ReconciliationReport report, int lastTransactionId, Timestamp lastRun) throws SQLException {
+        List<Integer> touched = new ArrayList<>();
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_TOUCHED_ACCOUNTS);
+            statement.setInt(1, lastTransactionId);
+            statement.setTimestamp(2, lastRun);
+            statement.setInt(3, lastTransactionId);
+            statement.setTimestamp(4, lastRun);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    touched.add(result.getInt(1));
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
+        if(touched.isEmpty()) {
+            return;
+        }
+
+        int[] ids = new int[touched.size()];
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = touched.get(i);
+        }
+        Arrays.sort(ids);
+
+        workers.invoke(new Chunk(report, ids, 0, ids.length));
+    }
+
+    /**
+     * Check accounts with ids between lo and hi, if only is set, other accounts of range are ignored
+     */
+    private void check(ReconciliationReport report, int lo, int hi, Set<Integer> only) throws SQLException {
+        Map<Integer, Long> balances = new HashMap<>();
+        Map<Integer, Long> net = new HashMap<>();
+        Map<Integer, Long> openings = new HashMap<>();
+        Set<Integer> inFlight = new HashSet<>();
+        int checked = 0;
+
+        PooledConnection pc = pool.lease();
+        try {
+            // all reads of chunk see the same snapshot
+            pc.getConnection().setAutoCommit(false);
+
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_RECONCILE_BALANCES);
+            statement.setInt(1, lo);
+            statement.setInt(2, hi);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    balances.put(result.getInt(1), Money.fromDecimal(result.getBigDecimal(2)));
+                }
+            }
+
+            statement = pc.prepare(StatementCatalog.SELECT_RECONCILE_DEBITS);
+            statement.setInt(1, lo);
+            statement.setInt(2, hi);
+            statement.setString(3, PaymentStatus.RECEIVED.getValue());
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    addNet(net, result.getInt(1), Money.negate(Money.fromDecimal(result.getBigDecimal(2))));
+                }
+            }
+
+            statement = pc.prepare(StatementCatalog.SELECT_RECONCILE_CREDITS);
+            statement.setInt(1, lo);
+            statement.setInt(2, hi);
+            statement.setString(3, PaymentStatus.RECEIVED.getValue());
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    addNet(net, result.getInt(1), Money.fromDecimal(result.getBigDecimal(2)));
+                }
+            }
+
+            Timestamp settlingSince = new Timestamp(System.currentTimeMillis() - settlingTimeout);
+            statement = pc.prepare(StatementCatalog.SELECT_RECONCILE_IN_FLIGHT);
+            statement.setInt(1, lo);
+            statement.setInt(2, hi);
+            statement.setString(3, PaymentStatus.SETTLING.getValue());
+            statement.setTimestamp(4, settlingSince);
+            statement.setInt(5, lo);
+            statement.setInt(6, hi);
+            statement.setString(7, PaymentStatus.SETTLING.getValue());
+            statement.setTimestamp(8, settlingSince);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    inFlight.add(result.getInt(1));
+                }
+            }
+
+            statement = pc.prepare(StatementCatalog.SELECT_RECONCILE_OPENINGS);
+            statement.setInt(1, lo);
+            statement.setInt(2, hi);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    openings.put(result.getInt(1), Money.fromDecimal(result.getBigDecimal(2)));
+                }
+            }
+
+            PreparedStatement insert = pc.prepare(StatementCatalog.INSERT_RECONCILE_OPENING);
+            boolean inserted = false;
+            for(Map.Entry<Integer, Long> balance : balances.entrySet()) {
+                int accountId = balance.getKey();
+                if(only != null && !only.contains(accountId)) {
+                    continue;
+                }
+                checked++;
+                if(inFlight.contains(accountId)) {
+                    report.inFlight();
+                    continue;
+                }
+
+                Long change = net.get(accountId);
+                long expectedChange = change == null ? Money.ZERO : change;
+                Long opening = openings.get(accountId);
+                if(opening == null) {
+                    insert.setInt(1, accountId);
+                    insert.setBigDecimal(2, Money.toDecimal(Money.subtract(balance.getValue(), expectedChange)));
+                    insert.addBatch();
+                    inserted = true;
+                    report.opened();
+                    continue;
+                }
+
+                long expected = Money.add(opening, expectedChange);
+                if(expected != balance.getValue()) {
+                    logger.warn("Balance of account " + accountId + " is " + Money.format(balance.getValue()) + ", expected " + Money.format(expected));
+                    report.mismatch(accountId, balance.getValue(), expected);
+                }
+            }
+
+            if(inserted) {
+                insert.executeBatch();
+            }
+            pc.getConnection().commit();
+        } finally {
+            pool.release(pc);
+        }
+
+        report.chunkDone(checked);
+    }
+
+    private static void addNet(Map<Integer, Long> net, int accountId, long change) {
+        Long current = net.get(accountId);
+        net.put(accountId, Money.add(current == null ? Money.ZERO : current, change));
+    }
+
+
+    /**
+     * Range of accounts, split in halves until it has at most {@link #chunkSize} ids
+     * If ids is null, range is from (inclusive) to (exclusive) account id, otherwise it is range of indexes to sorted ids
+     */
+    private final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ReconciliationReport report;
+        private final int[] ids;
+        private final int from;
+        private final int to;
+
+        private Chunk(ReconciliationReport report, int[] ids, int from, int to) {
+            this.report = report;
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > chunkSize) {
+                int middle = from + (to - from) / 2;
+                invokeAll(new Chunk(report, ids, from, middle), new Chunk(report, ids, middle, to));
+                return;
+            }
+
+            try {
+                if(ids == null) {
+                    check(report, from, to - 1, null);
+                }
+                else {
+                    Set<Integer> only = new HashSet<>();
+                    for(int i = from; i < to; i++) {
+                        only.add(ids[i]);
+                    }
+                    check(report, ids[from], ids[to - 1], only);
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Chunk " + from + " - " + to + " failed: " + e.getMessage(), e);
+            }
+        }
+    }
+}
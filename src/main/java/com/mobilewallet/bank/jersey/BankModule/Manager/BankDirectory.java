@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Bank;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In memory directory of all banks indexed by id, bic and short name
+ * Banks are loaded once from database, directory is never changed, {@link #refresh()} replaces it by new one at once
+ * @author Martin Stepanek
+ */
+public class BankDirectory {
+
+    private static BankDirectory instance;
+
+    private final Logger logger = LoggerFactory.getLogger(BankDirectory.class);
+
+    private volatile Snapshot snapshot = new Snapshot(new ArrayList<Bank>());
+
+
+    private BankDirectory() {}
+
+
+    /**
+     * Method for returning singleton instance, banks are loaded on first call
+     * @return BankDirectory
+     */
+    public static synchronized BankDirectory getInstance() {
+        if(instance == null) {
+            instance = new BankDirectory();
+            instance.refresh();
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Load all banks from storage and replace current directory
+     * Current directory is kept if banks can not be loaded
+     * @return boolean, true if directory was refreshed
+     */
+    public boolean refresh() {
+        try {
+            snapshot = new Snapshot(StorageManager.getInstance().getAllBanks());
+            logger.info("Bank directory loaded with " + snapshot.banks.size() + " banks");
+            return true;
+        } catch (SQLException e) {
+            logger.error("Error while loading banks: ", e);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+
+    /**
+     * Get all banks
+     * @return List of Bank, unmodifiable
+     */
+    public List<Bank> getBanks() {
+        return snapshot.banks;
+    }
+
+    /**
+     * Get bank by id
+     * @param bankId int, bank id
+     * @return Bank, empty bank with id 0 if bank does not exist
+     */
+    public Bank getById(int bankId) {
+        return copy(snapshot.byId.get(bankId));
+    }
+
+    /**
+     * Get bank by bic
+     * @param bic String, bank identification code
+     * @return Bank, empty bank with id 0 if bank does not exist
+     */
+    public Bank getByBic(String bic) {
+        return copy(snapshot.byBic.get(bic));
+    }
+
+    /**
+     * Get bank by short name
+     * @param shortName String, short name of bank
+     * @return Bank, empty bank with id 0 if bank does not exist
+     */
+    public Bank getByShortName(String shortName) {
+        return copy(snapshot.byShortName.get(shortName));
+    }
+
+    private static Bank copy(Bank bank) {
+        Bank copy = new Bank();
+        if(bank != null) {
+            copy.setId(bank.getId());
+            copy.setBic(bank.getBic());
+            copy.setShortName(bank.getShortName());
+            copy.setName(bank.getName());
+        }
+
+        return copy;
+    }
+
+
+    /**
+     * Immutable set of banks with all indexes
+     */
+    private static final class Snapshot {
+        private final List<Bank> banks;
+        private final Map<Integer, Bank> byId = new HashMap<>();
+        private final Map<String, Bank> byBic = new HashMap<>();
+        private final Map<String, Bank> byShortName = new HashMap<>();
+
+        private Snapshot(List<Bank> banks) {
+            List<Bank> copies = new ArrayList<>();
+            for(Bank bank : banks) {
+                Bank copy = copy(bank);
+                copies.add(copy);
+                byId.put(copy.getId(), copy);
+                byBic.put(copy.getBic(), copy);
+                byShortName.put(copy.getShortName(), copy);
+            }
+            this.banks = Collections.unmodifiableList(copies);
+        }
+    }
+}
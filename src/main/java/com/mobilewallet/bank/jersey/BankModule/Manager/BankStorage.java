@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Account;
+import com.mobilewallet.bank.jersey.BankModule.Model.AccountTransaction;
+import com.mobilewallet.bank.jersey.BankModule.Model.Bank;
+import com.mobilewallet.bank.jersey.BankModule.Model.HistoryQuery;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatusChange;
+import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage of banks, accounts and transactions used by the whole application
+ * Implementation is selected in config by STORAGE key {@see StorageManager}
+ * Objects that are not found are returned empty with id 0, all amounts are in minor units {@see Money}
+ * @author Martin Stepanek
+ */
+public interface BankStorage {
+
+    /**
+     * Add new account with initial balance
+     * @param accountNumber String, account number
+     * @param bic String, bank identification code
+     * @return boolean, false if account already exists
+     * @throws SQLException on storage error
+     */
+    boolean linkAccount(String accountNumber, String bic) throws SQLException;
+
+    /**
+     * Add many new accounts with initial balance at once, accounts that already exist or have unknown bank are skipped
+     * @param accounts Map, account number to bic
+     * @return List of added account numbers
+     * @throws SQLException on storage error
+     */
+    List<String> linkAccounts(Map<String, String> accounts) throws SQLException;
+
+    /**
+     * Find which of given account numbers already exist
+     * @param accountNumbers Collection of account numbers
+     * @return Set of existing account numbers
+     * @throws SQLException on storage error
+     */
+    Set<String> getExistingAccountNumbers(Collection<String> accountNumbers) throws SQLException;
+
+    /**
+     * Get all banks
+     * @return ArrayList of Bank
+     * @throws SQLException on storage error
+     */
+    ArrayList<Bank> getAllBanks() throws SQLException;
+
+    /**
+     * Get bank by id
+     * @param bankId int, bank id
+     * @return Bank
+     * @throws SQLException on storage error
+     */
+    Bank getBank(int bankId) throws SQLException;
+
+    /**
+     * Get bank by bic
+     * @param bic String, bank identification code
+     * @return Bank
+     * @throws SQLException on storage error
+     */
+    Bank getBankByBic(String bic) throws SQLException;
+
+    /**
+     * Get account by account number
+     * @param accountNumber String, IBAN
+     * @return Account, account number is null if account does not exist
+     * @throws SQLException on storage error
+     */
+    Account getUserAccountByNumber(String accountNumber) throws SQLException;
+
+    /**
+     * Get account by id
+     * @param userId int, account id
+     * @return Account, account number is null if account does not exist
+     * @throws SQLException on storage error
+     */
+    Account getUserAccount(int userId) throws SQLException;
+
+    /**
+     * Get account for display, it could be read from read replica and be stale, but never older than own writes of account
+     * @param accountNumber String, IBAN
+     * @return Account, account number is null if account does not exist
+     * @throws SQLException on storage error
+     */
+    Account getAccountSnapshot(String accountNumber) throws SQLException;
+
+    /**
+     * Get all accounts
+     * @return ArrayList of Account
+     * @throws SQLException on storage error
+     */
+    ArrayList<Account> getAllAccounts() throws SQLException;
+
+    /**
+     * Update account balance with positive or negative change
+     * @param accountNumber String, account number
+     * @param change long, change in minor units
+     * @throws SQLException on storage error
+     */
+    void updateAccountSum(String accountNumber, long change) throws SQLException;
+
+    /**
+     * Change status of settling payment to received, debit source account and credit all destination accounts at once or not at all
+     * @param paymentId String, payment id of payment in settling state
+     * @param sourceAccount String, account number of payer
+     * @param debit long, total amount taken from source account
+     * @param credits Map, destination account number to amount, every account only once
+     * @param date String, date of realization in format yyyy-MM-dd HH:mm:ss
+     * @return boolean, true if payment was settled, false if nothing is changed because payment is not settling or money can not be moved
+     * @throws SQLException on storage error, nothing is changed
+     */
+    boolean settlePayment(String paymentId, String sourceAccount, long debit, Map<String, Long> credits, String date) throws SQLException;
+
+    /**
+     * Get balances of all accounts
+     * @return Map, account id to balance in minor units
+     * @throws SQLException on storage error
+     */
+    Map<Integer, Long> getAllBalances() throws SQLException;
+
+    /**
+     * Set absolute balances of accounts and statuses of payments at once, used to project state kept in memory by ledger
+     * Status is written only if payment is in one of its earlier states {@see PaymentStatus#getEarlier()},
+     * so applying the same projection again changes nothing
+     * @param balances Map, account id to balance in minor units
+     * @param statuses List of PaymentStatusChange, statuses of payments
+     * @throws SQLException on storage error, nothing is changed
+     */
+    void applyProjection(Map<Integer, Long> balances, List<PaymentStatusChange> statuses) throws SQLException;
+
+    /**
+     * Insert transaction
+     * @param fromId int, id of source account
+     * @param paymentId String, payment id in UUID format
+     * @param amount long, amount in minor units
+     * @param status String, status of transaction
+     * @param message String, message of transaction
+     * @return int, id of inserted transaction
+     * @throws SQLException on storage error
+     */
+    int insertTransaction(int fromId, String paymentId, long amount, String status, String message) throws SQLException;
+
+    /**
+     * Insert new transaction only if transaction with the same payment id does not exist
+     * Duplicate is detected by unique payment id on insert, so redelivered payment order costs one statement
+     * @param fromId int, id of source account
+     * @param paymentId String, payment id in UUID format
+     * @param amount long, amount in minor units
+     * @param status String, status of transaction
+     * @param message String, message of transaction
+     * @return int, id of inserted transaction, 0 if payment already exists
+     * @throws SQLException on storage error
+     */
+    int insertTransactionIfAbsent(int fromId, String paymentId, long amount, String status, String message) throws SQLException;
+
+    /**
+     * Link destination account to transaction
+     * @param accountNumber String, destination account number
+     * @param transactionId int, id of transaction
+     * @param amount long, amount sent to destination in minor units
+     * @param message String, message for destination account
+     * @return int, id of destination
+     * @throws SQLException on storage error
+     */
+    int linkTransactionDestination(String accountNumber, int transactionId, long amount, String message) throws SQLException;
+
+    /**
+     * Get destinations of transaction
+     * @param transactionId int, id of transaction
+     * @return ArrayList of AccountTransaction
+     * @throws SQLException on storage error
+     */
+    ArrayList<AccountTransaction> getTransactionDestinations(int transactionId) throws SQLException;
+
+    /**
+     * Get destinations of transaction with destination account numbers
+     * @param transactionId int, id of transaction
+     * @return ArrayList of AccountTransaction
+     * @throws SQLException on storage error
+     */
+    ArrayList<AccountTransaction> getTransactionDestinationsWithAccounts(int transactionId) throws SQLException;
+
+    /**
+     * Get transaction by payment id
+     * @param paymentId String, payment id in UUID format
+     * @return Transaction
+     * @throws SQLException on storage error
+     */
+    Transaction getTransactionByPaymentId(String paymentId) throws SQLException;
+
+    /**
+     * Get transactions of account with given status, the newest first
+     * @param accountNumber String, account number
+     * @param status String, status of transaction
+     * @return ArrayList of Transaction
+     * @throws SQLException on storage error
+     */
+    ArrayList<Transaction> getTransactionsByAccNumberStatus(String accountNumber, String status) throws SQLException;
+
+    /**
+     * Update transaction status
+     * @param id int, id of transaction
+     * @param status String, new status
+     * @param date String, date of realization in format yyyy-MM-dd HH:mm:ss
+     * @throws SQLException on storage error
+     */
+    void updateTransactionStatus(int id, String status, String date) throws SQLException;
+
+    /**
+     * Change status of payment only if payment is in one of previous states of new status {@see PaymentStatus#getPrevious()}
+     * Check and change is one atomic operation, so from concurrent changes of the same payment only one succeeds
+     * @param paymentId String, payment id in UUID format
+     * @param status PaymentStatus, new status
+     * @param date String, date of realization in format yyyy-MM-dd HH:mm:ss
+     * @return boolean, true if status was changed, false if payment does not exist or is in other state
+     * @throws SQLException on storage error
+     */
+    boolean transitionTransactionStatus(String paymentId, PaymentStatus status, String date) throws SQLException;
+
+    /**
+     * Get all transactions of account without destinations
+     * @param accountId int, id of account
+     * @return ArrayList of Transaction
+     * @throws SQLException on storage error
+     */
+    ArrayList<Transaction> getHistory(int accountId) throws SQLException;
+
+    /**
+     * Get all transactions of account with destinations
+     * @param accountId int, id of account
+     * @return ArrayList of Transaction
+     * @throws SQLException on storage error
+     */
+    ArrayList<Transaction> getHistoryWithDestinations(int accountId) throws SQLException;
+
+    /**
+     * Get one page of history with destinations, the newest first
+     * @param accountId int, id of account
+     * @param query HistoryQuery, page size, cursor and time window
+     * @return ArrayList of Transaction, at most page size + 1 transactions
+     * @throws SQLException on storage error
+     */
+    ArrayList<Transaction> getHistoryPage(int accountId, HistoryQuery query) throws SQLException;
+
+    /**
+     * Get throughput and latency of payment settlement
+     * @return SettlementMetrics
+     */
+    SettlementMetrics getSettlementMetrics();
+
+    /**
+     * Release all resources of storage
+     */
+    void shutdown();
+}
@@ -63,4 +63,37 @@ public class ConfigManager {
 
         return result;
     }
+
+
+    /**
+     * Method to get property value by name with fallback when property is not defined
+     * @param name String, name of property
+     * @param defaultValue String, value returned if property is missing or empty
+     * @return String, property value
+     */
+    public String getPropValues(String name, String defaultValue) {
+        String result = getPropValues(name);
+
+        if(result == null || result.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        return result.trim();
+    }
+
+
+    /**
+     * Method to get integer property value by name with fallback
+     * @param name String, name of property
+     * @param defaultValue int, value returned if property is missing or not a number
+     * @return int, property value
+     */
+    public int getIntPropValues(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(getPropValues(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            logger.error("Property " + name + " is not a number, using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
 }
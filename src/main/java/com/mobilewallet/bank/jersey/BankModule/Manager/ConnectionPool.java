@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of JDBC connections
+ * At most {@link #maxSize} connections are leased at once, idle connections above {@link #minSize} are closed
+ * after {@link #idleTimeout}, connection is validated before it is leased if it was idle for a while
+ * @author Martin Stepanek
+ */
+public class ConnectionPool {
+
+    /**
+     * Idle time after which connection is validated before lease, in milliseconds
+     */
+    private static final long VALIDATION_INTERVAL = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String url;
+    private final String username;
+    private final String password;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long leaseTimeout;
+    private final long idleTimeout;
+    private final int validationTimeout;
+
+    /**
+     * Idle connections, most recently used first
+     */
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+
+    /**
+     * All opened connections, leased and idle, by connection id
+     */
+    private final ConcurrentHashMap<Integer, PooledConnection> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicLong statementCounter = new AtomicLong();
+
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+
+    /**
+     * ConnectionPool constructor, opens {@code minSize} connections and starts idle eviction
+     * @param url String, JDBC url
+     * @param username String, database user
+     * @param password String, database password
+     * @param minSize int, connections kept open even if idle
+     * @param maxSize int, maximum number of connections
+     * @param leaseTimeout long, how long to wait for free connection, in milliseconds
+     * @param idleTimeout long, idle time after which connection above minimum is closed, in milliseconds
+     * @param validationTimeout int, timeout of connection validation, in seconds
+     */
+    public ConnectionPool(String url, String username, String password, int minSize, int maxSize,
+                          long leaseTimeout, long idleTimeout, int validationTimeout) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.leaseTimeout = leaseTimeout;
+        this.idleTimeout = idleTimeout;
+        this.validationTimeout = validationTimeout;
+        this.permits = new Semaphore(this.maxSize, true);
+
+        for(int i = 0; i < this.minSize; i++) {
+            try {
+                idle.offerLast(open());
+            } catch (SQLException e) {
+                logger.error("Error while opening initial connection: ", e);
+            }
+        }
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "db-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        logger.info("Connection pool created, min: " + this.minSize + ", max: " + this.maxSize);
+    }
+
+
+    /**
+     * Lease connection from pool, waits at most {@link #leaseTimeout} for free connection
+     * @return PooledConnection, has to be returned with {@link #release(PooledConnection)}
+     * @throws SQLException if pool is exhausted or connection can not be opened
+     */
+    public PooledConnection lease() throws SQLException {
+        if(closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        try {
+            if(!permits.tryAcquire(leaseTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timeout while waiting for database connection, pool size: " + maxSize);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for database connection", e);
+        }
+
+        try {
+            PooledConnection pc;
+            while((pc = idle.pollFirst()) != null) {
+                if(System.currentTimeMillis() - pc.getLastUsed() < VALIDATION_INTERVAL || pc.isValid(validationTimeout)) {
+                    return pc;
+                }
+                logger.debug("Connection #" + pc.getId() + " is not valid anymore, closing");
+                discard(pc);
+            }
+
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Return leased connection back to pool
+     * Uncommitted work is rolled back, closed connections are thrown away
+     * @param pc PooledConnection, connection obtained by {@link #lease()}
+     */
+    public void release(PooledConnection pc) {
+        if(pc == null) {
+            return;
+        }
+
+        try {
+            Connection conn = pc.getConnection();
+            if(closed || conn.isClosed()) {
+                discard(pc);
+            }
+            else {
+                if(!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                pc.touch();
+                idle.offerFirst(pc);
+            }
+        } catch (SQLException e) {
+            logger.error("Error while returning connection #" + pc.getId() + ", closing it: ", e);
+            discard(pc);
+        } finally {
+            permits.release();
+        }
+    }
+
+
+    /**
+     * Close all idle connections and stop eviction, leased connections are closed when released
+     */
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+
+        PooledConnection pc;
+        while((pc = idle.pollFirst()) != null) {
+            discard(pc);
+        }
+        logger.info("Connection pool closed");
+    }
+
+    /**
+     * Get number of opened physical connections
+     * @return int, leased and idle connections
+     */
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * Get number of idle connections
+     * @return int, idle connections
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get number of statements executed through the pool since start
+     * @return long, number of database round trips
+     */
+    public long getStatementCount() {
+        return statementCounter.get();
+    }
+
+    /**
+     * Get number of opened statements for every opened connection
+     * @return Map, connection id to number of opened statements
+     */
+    public Map<Integer, Integer> getOpenStatementCounts() {
+        Map<Integer, Integer> counts = new TreeMap<>();
+        for(PooledConnection pc : connections.values()) {
+            counts.put(pc.getId(), pc.getOpenStatementCount());
+        }
+
+        return counts;
+    }
+
+
+    /**
+     * Close connections idle longer than {@link #idleTimeout} while more than {@link #minSize} is opened
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+
+        while(iterator.hasNext() && openCount.get() > minSize) {
+            PooledConnection pc = iterator.next();
+            if(now - pc.getLastUsed() > idleTimeout && idle.remove(pc)) {
+                logger.debug("Closing idle connection #" + pc.getId());
+                discard(pc);
+            }
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection conn = DriverManager.getConnection(url, username, password);
+        openCount.incrementAndGet();
+        PooledConnection pc = new PooledConnection(nextId.incrementAndGet(), conn, statementCounter);
+        connections.put(pc.getId(), pc);
+        return pc;
+    }
+
+    private void discard(PooledConnection pc) {
+        connections.remove(pc.getId());
+        pc.closeQuietly();
+        openCount.decrementAndGet();
+    }
+}
@@ -14,14 +14,23 @@ import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
- * Database manager handles all operation with data and database
+ * Database manager handles all operation with data and MySQL database, default {@link BankStorage}
  * @author Martin Stepanek
  */
-public class DatabaseManager {
+public class DatabaseManager implements BankStorage {
 
     /**
      * Table and columns definitions
@@ -48,6 +57,15 @@ public class DatabaseManager {
     public static final String COLUMN_TO_ID = "to_id";
     public static final String COLUMN_TRANSACTION_ID = "transaction_id";
 
+    public static final String ACCOUNT_STRIPE_TABLE = "account_stripe";
+    public static final String COLUMN_ACCOUNT_ID = "account_id";
+    public static final String COLUMN_STRIPE = "stripe";
+
+    public static final String ACCOUNT_RECONCILIATION_TABLE = "account_reconciliation";
+    public static final String COLUMN_OPENING = "opening";
+    public static final String RECONCILIATION_STATE_TABLE = "reconciliation_state";
+    public static final String COLUMN_DATE_CHECKED = "date_checked";
+
 
     /**
      * Database transaction message definitions
@@ -58,33 +76,78 @@ public class DatabaseManager {
     public static final String PENDING = "pending";
     public static final String REQUESTED = "requested";
 
+    /**
+     * MySQL error code of duplicate unique key
+     */
+    private static final int ER_DUP_ENTRY = 1062;
+
     private final Logger logger = LoggerFactory.getLogger(DatabaseManager.class);
 
     /**
      * Initial balance set when creating new account number, used for testing purposes
      */
-    private static final double BALANCE_AMOUNT = 10000;
+    static final long BALANCE_AMOUNT = 10000 * Money.UNIT;
 
     private static DatabaseManager instance;
 
-    private Connection conn;
+    private ConnectionPool pool;
+
+    private final SettlementMetrics settlementMetrics = new SettlementMetrics();
+
+    private final AccountCache accountCache = new AccountCache(ConfigManager.getInstance().getIntPropValues("ACCOUNT_CACHE_SIZE", 10000));
+
+    private AccountStripes stripes;
+
+    // null if no replica is configured
+    private ReplicaRouter replicas;
+    private BalanceReconciler reconciler;
+
+    private boolean serverPrepared;
+
+    // null if status changes are written synchronously
+    private TransactionStatusWriter statusWriter;
 
 
     /**
-     * Method for database connection
+     * Method for database connection, creates connection pool with settings from config
      * @return boolean, status
      */
     private boolean connect() {
         try {
             DriverManager.registerDriver(new com.mysql.jdbc.Driver());
             ConfigManager cm = ConfigManager.getInstance();
-           conn = DriverManager.getConnection(cm.getPropValues("DB_URL"), cm.getPropValues("DB_USERNAME"), cm.getPropValues("DB_PASSWORD"));
-
-            if (conn != null) {
+            pool = new ConnectionPool(cm.getPropValues("DB_URL"), cm.getPropValues("DB_USERNAME"), cm.getPropValues("DB_PASSWORD"),
+                    cm.getIntPropValues("DB_POOL_MIN_SIZE", 2),
+                    cm.getIntPropValues("DB_POOL_MAX_SIZE", 10),
+                    cm.getIntPropValues("DB_POOL_LEASE_TIMEOUT", 5000),
+                    cm.getIntPropValues("DB_POOL_IDLE_TIMEOUT", 300000),
+                    cm.getIntPropValues("DB_POOL_VALIDATION_TIMEOUT", 2));
+
+            if (pool.getOpenCount() > 0) {
                 logger.info("Database successfully connected");
+                serverPrepared = checkServerPrepared();
+                if(Boolean.parseBoolean(cm.getPropValues("MIGRATE_ON_STARTUP", "true"))) {
+                    SchemaMigrator migrator = new SchemaMigrator(pool);
+                    migrator.migrate();
+                    migrator.checkQueryPlans(StatementCatalog.hotQueries());
+                }
+                if(Boolean.parseBoolean(cm.getPropValues("STATUS_WRITE_BEHIND", "true"))) {
+                    statusWriter = new TransactionStatusWriter(pool, cm.getIntPropValues("STATUS_FLUSH_SIZE", 500),
+                            cm.getIntPropValues("STATUS_FLUSH_INTERVAL", 50));
+                }
+                connectReplicas(cm);
+                stripes = new AccountStripes(pool, cm.getPropValues("HOT_ACCOUNTS", ""),
+                        cm.getIntPropValues("ACCOUNT_STRIPES", 8),
+                        cm.getIntPropValues("STRIPE_COMPACTION_INTERVAL", 60000));
+                reconciler = new BalanceReconciler(pool, cm.getIntPropValues("RECONCILE_PARALLELISM", 2),
+                        cm.getIntPropValues("RECONCILE_CHUNK_SIZE", 1000),
+                        cm.getIntPropValues("RECONCILE_OVERLAP", 60000),
+                        cm.getIntPropValues("RECONCILE_MAX_MISMATCHES", 100),
+                        cm.getIntPropValues("RECONCILE_INTERVAL", 0),
+                        cm.getIntPropValues("SETTLING_TIMEOUT", 300000));
                 return true;
             }
-        } catch (SQLException ex) {
+        } catch (SQLException | IOException ex) {
             logger.error("Error: ", ex);
             ex.printStackTrace();
         }
@@ -92,6 +155,83 @@ public class DatabaseManager {
     }
 
 
+    /**
+     * Check that statements are prepared on server, server counts prepares of session in Com_stmt_prepare
+     * Driver emulates prepared statements on client unless useServerPrepStmts=true is in DB_URL
+     * @return boolean, true if server counted prepare of statement
+     * @throws SQLException on SQL error
+     */
+    private boolean checkServerPrepared() throws SQLException {
+        PooledConnection pc = pool.lease();
+        try {
+            Connection conn = pc.getConnection();
+            long before = getSessionStatus(conn, "Com_stmt_prepare");
+            try (PreparedStatement statement = conn.prepareStatement("SELECT 1")) {
+                statement.executeQuery().close();
+            }
+            boolean prepared = getSessionStatus(conn, "Com_stmt_prepare") > before;
+            if(prepared) {
+                logger.info("Statements are prepared on server");
+            }
+            else {
+                logger.warn("Statements are prepared on client, add useServerPrepStmts=true to DB_URL");
+            }
+
+            return prepared;
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    private long getSessionStatus(Connection conn, String name) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet result = statement.executeQuery("SHOW SESSION STATUS LIKE '" + name + "'")) {
+            return result.next() ? result.getLong(2) : 0;
+        }
+    }
+
+
+    /**
+     * Create pools of read replicas from DB_REPLICA_URLS, replicas use the same pool settings as primary
+     * @param cm ConfigManager
+     */
+    private void connectReplicas(ConfigManager cm) {
+        List<String> urls = new ArrayList<>();
+        for(String url : cm.getPropValues("DB_REPLICA_URLS", "").split(",")) {
+            if(!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        if(urls.isEmpty()) {
+            return;
+        }
+
+        List<ConnectionPool> pools = new ArrayList<>();
+        for(String url : urls) {
+            pools.add(new ConnectionPool(url, cm.getPropValues("DB_REPLICA_USERNAME", cm.getPropValues("DB_USERNAME")),
+                    cm.getPropValues("DB_REPLICA_PASSWORD", cm.getPropValues("DB_PASSWORD")),
+                    cm.getIntPropValues("DB_POOL_MIN_SIZE", 2),
+                    cm.getIntPropValues("DB_POOL_MAX_SIZE", 10),
+                    cm.getIntPropValues("DB_POOL_LEASE_TIMEOUT", 5000),
+                    cm.getIntPropValues("DB_POOL_IDLE_TIMEOUT", 300000),
+                    cm.getIntPropValues("DB_POOL_VALIDATION_TIMEOUT", 2)));
+        }
+        replicas = new ReplicaRouter(urls, pools, cm.getIntPropValues("DB_REPLICA_MAX_LAG", 1000),
+                cm.getIntPropValues("DB_REPLICA_CHECK_INTERVAL", 1000));
+    }
+
+
+    /**
+     * Choose pool for read-only query, replica if it is configured and up to date {@see ReplicaRouter}
+     * @param sticky boolean, true if read has to see latest writes
+     * @return ConnectionPool, pool of replica or primary pool
+     */
+    private ConnectionPool readPool(boolean sticky) {
+        ConnectionPool replica = replicas != null ? replicas.choose(sticky) : null;
+        return replica != null ? replica : pool;
+    }
+
+
     /**
      * Database manager constructor
      */
@@ -104,7 +244,7 @@ public class DatabaseManager {
      * Method for returning singleton instance
      * @return DatabaseManager
      */
-    public static DatabaseManager getInstance() {
+    public static synchronized DatabaseManager getInstance() {
         if(instance == null) {
             instance = new DatabaseManager();
         }
@@ -112,6 +252,65 @@ public class DatabaseManager {
         return instance;
     }
 
+
+    /**
+     * Write queued payment statuses and close all database connections
+     */
+    public void shutdown() {
+        if(statusWriter != null) {
+            statusWriter.close();
+        }
+        if(reconciler != null) {
+            reconciler.close();
+        }
+        if(stripes != null) {
+            stripes.close();
+        }
+        if(replicas != null) {
+            replicas.close();
+        }
+        if(pool != null) {
+            pool.close();
+        }
+    }
+
+
+    /**
+     * Get connection pool used by manager
+     * @return ConnectionPool
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+
+    /**
+     * Get number of statements executed since start, every statement is one database round trip
+     * @return long, number of executed statements
+     */
+    public long getStatementCount() {
+        return pool.getStatementCount();
+    }
+
+
+    /**
+     * Check if statements are prepared on server, checked once on connect
+     * @return boolean, false if driver emulates prepared statements
+     */
+    public boolean isServerPrepared() {
+        return serverPrepared;
+    }
+
+
+    /**
+     * Get number of opened statements for every pooled connection
+     * Every statement is prepared once per connection, so count is bounded by size of {@link StatementCatalog}
+     * @return Map, connection id to number of opened statements
+     */
+    public Map<Integer, Integer> getOpenStatementCounts() {
+        return pool.getOpenStatementCounts();
+    }
+
     /**
      * Add new account to database with specific amount of mane on account {@link #BALANCE_AMOUNT}
      * @param accountNumber String, account number
@@ -129,25 +328,136 @@ public class DatabaseManager {
         }
         else {
 
-            Bank bank = getBankByBic(bic);
+            Bank bank = BankDirectory.getInstance().getByBic(bic);
             if(bank.getId() == 0) {
                 logger.error("Bank doesn't exists");
                 status = false;
             }
 
-            String sql = "INSERT INTO " + ACCOUNT_TABLE + " (" + COLUMN_BANK_ID + ", " + COLUMN_ACCOUNT_NUMBER + ", " + COLUMN_BALANCE + ") VALUES (?, ?, ?)";
+            PooledConnection pc = pool.lease();
+            try {
+                statement = pc.prepareWithKeys(StatementCatalog.INSERT_ACCOUNT);
+                statement.setInt(1, bank.getId());
+                statement.setString(2, accountNumber);
+                statement.setBigDecimal(3, Money.toDecimal(BALANCE_AMOUNT));
+
+                int rowsInserted = statement.executeUpdate();
+                if (rowsInserted > 0) {
+                    logger.info("Account: " + accountNumber + " has been successfully added");
+                }
+            } finally {
+                pool.release(pc);
+                accountCache.invalidate(accountNumber);
+                accountWritten(accountNumber);
+            }
+        }
+        return status;
+    }
 
-            statement = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            statement.setInt(1, bank.getId());
-            statement.setString(2, accountNumber);
-            statement.setDouble(3, BALANCE_AMOUNT);
 
-            int rowsInserted = statement.executeUpdate();
-            if (rowsInserted > 0) {
-                logger.info("Account: " + accountNumber + " has been successfully added");
+    /**
+     * Add many new accounts with {@link #BALANCE_AMOUNT}, accounts are inserted by multi-row statements in one database transaction
+     * If any account was added concurrently, accounts are inserted again one by one and existing accounts are skipped
+     * @param accounts Map, account number to bic
+     * @return List of added account numbers
+     * @throws SQLException on SQL error
+     */
+    public List<String> linkAccounts(Map<String, String> accounts) throws SQLException {
+        List<String> numbers = new ArrayList<>();
+        List<Integer> bankIds = new ArrayList<>();
+        for(Map.Entry<String, String> account : accounts.entrySet()) {
+            Bank bank = BankDirectory.getInstance().getByBic(account.getValue());
+            if(bank.getId() == 0) {
+                logger.error("Bank doesn't exists: " + account.getValue());
+                continue;
             }
+            numbers.add(account.getKey());
+            bankIds.add(bank.getId());
         }
-        return status;
+
+        List<String> linked = new ArrayList<>();
+        BigDecimal balance = Money.toDecimal(BALANCE_AMOUNT);
+
+        PooledConnection pc = pool.lease();
+        try {
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+            try {
+                for(int from = 0; from < numbers.size(); ) {
+                    int count = StatementCatalog.chunkSize(numbers.size() - from);
+                    PreparedStatement insert = pc.prepare(StatementCatalog.insertAccounts(count));
+                    int index = 1;
+                    for(int i = from; i < from + count; i++) {
+                        insert.setInt(index++, bankIds.get(i));
+                        insert.setString(index++, numbers.get(i));
+                        insert.setBigDecimal(index++, balance);
+                    }
+                    insert.executeUpdate();
+                    from += count;
+                }
+                conn.commit();
+                linked.addAll(numbers);
+            } catch (SQLException e) {
+                if(e.getErrorCode() != ER_DUP_ENTRY) {
+                    throw e;
+                }
+
+                // account was added meanwhile, one by one insert finds out which
+                conn.rollback();
+                PreparedStatement insert = pc.prepare(StatementCatalog.INSERT_ACCOUNT_IGNORE);
+                for(int i = 0; i < numbers.size(); i++) {
+                    insert.setInt(1, bankIds.get(i));
+                    insert.setString(2, numbers.get(i));
+                    insert.setBigDecimal(3, balance);
+                    if(insert.executeUpdate() > 0) {
+                        linked.add(numbers.get(i));
+                    }
+                }
+                conn.commit();
+            }
+        } finally {
+            pool.release(pc);
+            for(String accountNumber : numbers) {
+                accountCache.invalidate(accountNumber);
+                accountWritten(accountNumber);
+            }
+        }
+
+        logger.info("Accounts: " + linked.size() + " of " + accounts.size() + " have been successfully added");
+        return linked;
+    }
+
+
+    /**
+     * Find existing accounts with IN queries of at most {@link StatementCatalog#MAX_MULTI_ROW_INSERT} account numbers
+     * @param accountNumbers Collection of account numbers
+     * @return Set of existing account numbers
+     * @throws SQLException on SQL error
+     */
+    public Set<String> getExistingAccountNumbers(Collection<String> accountNumbers) throws SQLException {
+        Set<String> existing = new HashSet<>();
+        List<String> numbers = new ArrayList<>(accountNumbers);
+
+        PooledConnection pc = pool.lease();
+        try {
+            for(int from = 0; from < numbers.size(); ) {
+                int count = StatementCatalog.chunkSize(numbers.size() - from);
+                PreparedStatement select = pc.prepare(StatementCatalog.selectAccountIdsByNumbers(count));
+                for(int i = 0; i < count; i++) {
+                    select.setString(i + 1, numbers.get(from + i));
+                }
+                try (ResultSet result = select.executeQuery()) {
+                    while (result.next()) {
+                        existing.add(result.getString(2));
+                    }
+                }
+                from += count;
+            }
+        } finally {
+            pool.release(pc);
+        }
+
+        return existing;
     }
 
 
@@ -157,23 +467,26 @@ public class DatabaseManager {
      * @throws SQLException on SQL error
      */
     public ArrayList<Bank> getAllBanks() throws SQLException {
-        String sql = "SELECT * FROM " + BANK_TABLE;
-
         ArrayList<Bank> banks = new ArrayList<>();
 
-        Statement statement = conn.createStatement();
-        ResultSet result = statement.executeQuery(sql);
-
-        while (result.next()){
-            Bank bank = new Bank();
-            bank.setId(result.getInt(1));
-            bank.setBic(result.getString(2));
-            bank.setShortName(result.getString(3));
-            bank.setName(result.getString(4));
-
-            String output = "Bank: %s - %s - %s";
-            logger.debug(String.format(output, bank.getId(), bank.getBic(), bank.getShortName()));
-            banks.add(bank);
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_ALL_BANKS);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    Bank bank = new Bank();
+                    bank.setId(result.getInt(1));
+                    bank.setBic(result.getString(2));
+                    bank.setShortName(result.getString(3));
+                    bank.setName(result.getString(4));
+
+                    String output = "Bank: %s - %s - %s";
+                    logger.debug(String.format(output, bank.getId(), bank.getBic(), bank.getShortName()));
+                    banks.add(bank);
+                }
+            }
+        } finally {
+            pool.release(pc);
         }
 
         return banks;
@@ -187,25 +500,33 @@ public class DatabaseManager {
      * @throws SQLException on SQL error
      */
     public Account getUserAccountByNumber(String accountNumber) throws SQLException {
-        String sql = "SELECT * FROM " + ACCOUNT_TABLE + " WHERE " + COLUMN_ACCOUNT_NUMBER + "=?";
-
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setString(1, accountNumber);
-        ResultSet result = statement.executeQuery();
-
-        Account acc = new Account();
-
-        while (result.next()){
-            acc.setId(result.getInt(1));
-            acc.setBankId(result.getInt(2));
-            acc.setAccountNumber(result.getString(3));
-            acc.setBalance(result.getDouble(4));
+        Account acc = accountCache.getByNumber(accountNumber);
+        if(acc != null) {
+            return acc;
+        }
 
-            String output = "User: %s - %s - %s";
-//            logger.debug(String.format(output, acc.getId(),  acc.getAccountNumber(), acc.getBalance()));
+        acc = new Account();
+        long token = accountCache.beginLoad(accountNumber);
 
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_ACCOUNT_BY_NUMBER);
+            statement.setString(1, accountNumber);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    acc.setId(result.getInt(1));
+                    acc.setBankId(result.getInt(2));
+                    acc.setAccountNumber(result.getString(3));
+                    acc.setBalance(Money.fromDecimal(result.getBigDecimal(4)));
+                }
+            }
+            addStripes(pc, acc);
+        } finally {
+            pool.release(pc);
         }
 
+        accountCache.completeLoad(acc, accountNumber, token);
+
         return acc;
     }
 
@@ -217,49 +538,402 @@ public class DatabaseManager {
      * @throws SQLException on SQL error
      */
     public Account getUserAccount(int userId) throws SQLException {
-        String sql = "SELECT * FROM " + ACCOUNT_TABLE + " WHERE " + COLUMN_ID + "=?";
+        Account acc = accountCache.getById(userId);
+        if(acc != null) {
+            return acc;
+        }
+
+        acc = new Account();
+        long token = accountCache.beginLoad(null);
 
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setInt(1, userId);
-        ResultSet result = statement.executeQuery();
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_ACCOUNT_BY_ID);
+            statement.setInt(1, userId);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    acc.setId(result.getInt(1));
+                    acc.setBankId(result.getInt(2));
+                    acc.setAccountNumber(result.getString(3));
+                    acc.setBalance(Money.fromDecimal(result.getBigDecimal(4)));
+                }
+            }
+            addStripes(pc, acc);
+        } finally {
+            pool.release(pc);
+        }
 
+        accountCache.completeLoad(acc, null, token);
 
-        Account acc = new Account();
+        return acc;
+    }
 
-        while (result.next()){
-            acc.setId(result.getInt(1));
-            acc.setBankId(result.getInt(2));
-            acc.setAccountNumber(result.getString(3));
-            acc.setBalance(result.getDouble(4));
 
-            String output = "User: %s - %s - %s";
-//            logger.debug(String.format(output, acc.getId(),  acc.getAccountNumber(), acc.getBalance()));
+    /**
+     * Get account for display of balance, read from cache, replica or primary in this order
+     * Account with recent write is always read from primary, so its owner sees own latest writes
+     * @param accountNumber String, account number
+     * @return Account, account number is null if account does not exist
+     * @throws SQLException on SQL error
+     */
+    public Account getAccountSnapshot(String accountNumber) throws SQLException {
+        ConnectionPool source = readPool(replicas == null || replicas.isRecentlyWritten(accountNumber));
+        Account acc = accountCache.getByNumber(accountNumber);
+        if(source == pool || acc != null) {
+            return acc != null ? acc : getUserAccountByNumber(accountNumber);
+        }
+
+        // replica rows are not cached, cache contains only values read from primary
+        acc = new Account();
+        PooledConnection pc = source.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_ACCOUNT_BY_NUMBER);
+            statement.setString(1, accountNumber);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    acc.setId(result.getInt(1));
+                    acc.setBankId(result.getInt(2));
+                    acc.setAccountNumber(result.getString(3));
+                    acc.setBalance(Money.fromDecimal(result.getBigDecimal(4)));
+                }
+            }
+            addStripes(pc, acc);
+        } finally {
+            source.release(pc);
         }
 
         return acc;
     }
 
 
+    /**
+     * Get router of read-only queries
+     * @return ReplicaRouter, null if no replica is configured
+     */
+    public ReplicaRouter getReplicaRouter() {
+        return replicas;
+    }
+
+
+    /**
+     * Remember write of account, its reads go to primary until replicas catch up
+     * @param accountNumber String, account number
+     */
+    private void accountWritten(String accountNumber) {
+        if(replicas != null) {
+            replicas.accountWritten(accountNumber);
+        }
+    }
+
+
+    /**
+     * Add stripes of hot account to its balance, balance of account read from database is not logical balance
+     * {@see AccountStripes}
+     * @param pc PooledConnection, leased connection
+     * @param acc Account, read from database
+     * @throws SQLException on SQL error
+     */
+    private void addStripes(PooledConnection pc, Account acc) throws SQLException {
+        if(stripes != null && stripes.isHot(acc.getAccountNumber())) {
+            acc.setBalance(Money.add(acc.getBalance(), stripes.getStripeSum(pc, acc.getId())));
+        }
+    }
+
+
     /**
      * Update account balance with change, it could be positive or negative number
+     * Credit of hot account is added to one of its stripes {@see AccountStripes}
      * @param accountNumber String, account number
-     * @param change double, an amount to update with
+     * @param change long, an amount to update with in minor units
+     * @throws SQLException on SQL error
+     */
+    public void updateAccountSum(String accountNumber, long change) throws SQLException {
+        int stripedId = change > 0 && stripes != null && stripes.isHot(accountNumber) ? getUserAccountByNumber(accountNumber).getId() : 0;
+
+        PooledConnection pc = pool.lease();
+        try {
+            if(stripedId != 0) {
+                stripes.addCredit(pc, stripedId, change).executeBatch();
+                logger.info("An account: " + accountNumber + " stripe updated with change: " + Money.format(change));
+                return;
+            }
+
+            PreparedStatement statement = pc.prepare(StatementCatalog.UPDATE_ACCOUNT_SUM);
+            statement.setBigDecimal(1, Money.toDecimal(change));
+            statement.setString(2, accountNumber);
+
+            int rowsUpdated = statement.executeUpdate();
+            if (rowsUpdated > 0) {
+                logger.info("An account: " + accountNumber + " balance updated with change: " + Money.format(change));
+            }
+        } finally {
+            pool.release(pc);
+            accountCache.invalidate(accountNumber);
+            accountWritten(accountNumber);
+        }
+    }
+
+
+    /**
+     * Settle payment, change its status from settling to received, debit source account and credit all destination accounts
+     * in one database transaction. Status is changed first, so row of payment is locked before accounts.
+     * Balances are updated in one batch ordered by account id, so concurrent payments lock accounts in the same order
+     * and never deadlock. Nothing is changed if payment is not settling, any account does not exist or source account has not enough money
+     * Hot accounts are credited to stripes and debited with check of their logical balance {@see AccountStripes},
+     * batch is executed before every hot account so the lock order is kept
+     * @param paymentId String, payment id of settling payment
+     * @param sourceAccount String, account number of payer
+     * @param debit long, total amount taken from source account in minor units
+     * @param credits Map, destination account number to amount in minor units, every account only once
+     * @param date String, date of realization in format yyyy-MM-dd HH:mm:ss
+     * @return boolean, true if payment was settled
+     * @throws SQLException on SQL error, whole payment is rolled back
+     */
+    public boolean settlePayment(String paymentId, String sourceAccount, long debit, Map<String, Long> credits, String date) throws SQLException {
+        if(statusWriter == null) {
+            return settle(paymentId, PaymentStatus.RECEIVED.getPrevious(), sourceAccount, debit, credits, date);
+        }
+
+        // status of payment is not decided while it is settled, settling status could be still only queued
+        synchronized (statusWriter.lockFor(paymentId)) {
+            PaymentStatus pending = statusWriter.getPending(paymentId);
+            if(pending != null && pending != PaymentStatus.SETTLING) {
+                logger.error("Payment " + paymentId + " is " + pending.getValue() + ", it was not settled");
+                return false;
+            }
+            boolean settled = settle(paymentId, pending == null ? PaymentStatus.RECEIVED.getPrevious() : PaymentStatus.RECEIVED.getEarlier(),
+                    sourceAccount, debit, credits, date);
+            if(settled) {
+                statusWriter.written(paymentId, PaymentStatus.RECEIVED);
+            }
+            return settled;
+        }
+    }
+
+    /**
+     * Settle payment in one database transaction, status is changed only from given states
+     */
+    private boolean settle(String paymentId, Set<PaymentStatus> settling, String sourceAccount, long debit, Map<String, Long> credits, String date) throws SQLException {
+        long start = System.nanoTime();
+        boolean settled = false;
+
+        // all balance changes by account number, source account could be also destination
+        Map<String, Long> changes = new HashMap<>(credits);
+        Long sourceChange = changes.get(sourceAccount);
+        changes.put(sourceAccount, Money.subtract(sourceChange == null ? Money.ZERO : sourceChange, debit));
+
+        if(replicas != null) {
+            replicas.paymentWritten(paymentId);
+        }
+
+        PooledConnection pc = pool.lease();
+        try {
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+
+            if(!transition(pc, paymentId, PaymentStatus.RECEIVED, settling, date)) {
+                logger.error("Payment " + paymentId + " is not settling, it was not settled");
+                return false;
+            }
+
+            // resolve account ids, ordered map gives lock order
+            TreeMap<Integer, Long> changesById = new TreeMap<>();
+            Set<Integer> hotIds = new HashSet<>();
+            PreparedStatement select = pc.prepare(StatementCatalog.selectAccountIdsByNumbers(changes.size()));
+            int index = 1;
+            for(String accountNumber : changes.keySet()) {
+                select.setString(index++, accountNumber);
+            }
+            try (ResultSet result = select.executeQuery()) {
+                while (result.next()) {
+                    changesById.put(result.getInt(1), changes.get(result.getString(2)));
+                    if(stripes != null && stripes.isHot(result.getString(2))) {
+                        hotIds.add(result.getInt(1));
+                    }
+                }
+            }
+
+            if(changesById.size() != changes.size()) {
+                logger.error("Payment from: " + sourceAccount + " contains account that does not exist");
+            }
+            else {
+                PreparedStatement update = pc.prepare(StatementCatalog.UPDATE_ACCOUNT_SUM_BY_ID);
+                settled = true;
+                for(Map.Entry<Integer, Long> change : changesById.entrySet()) {
+                    BigDecimal amount = Money.toDecimal(change.getValue());
+                    if(hotIds.contains(change.getKey())) {
+                        settled &= executeBatch(update);
+                        if(change.getValue() > 0) {
+                            stripes.addCredit(pc, change.getKey(), change.getValue()).executeBatch();
+                        }
+                        else {
+                            PreparedStatement stripedUpdate = pc.prepare(StatementCatalog.UPDATE_STRIPED_ACCOUNT_SUM_BY_ID);
+                            stripedUpdate.setBigDecimal(1, amount);
+                            stripedUpdate.setInt(2, change.getKey());
+                            stripedUpdate.setBigDecimal(3, amount);
+                            stripedUpdate.setInt(4, change.getKey());
+                            stripedUpdate.setBigDecimal(5, amount);
+                            settled &= stripedUpdate.executeUpdate() > 0;
+                        }
+                        continue;
+                    }
+
+                    update.setBigDecimal(1, amount);
+                    update.setInt(2, change.getKey());
+                    update.setBigDecimal(3, amount);
+                    update.setBigDecimal(4, amount);
+                    update.addBatch();
+                }
+                settled &= executeBatch(update);
+
+                if(settled) {
+                    conn.commit();
+                    for(String accountNumber : changes.keySet()) {
+                        accountCache.invalidate(accountNumber);
+                        accountWritten(accountNumber);
+                    }
+                    logger.info("Payment from: " + sourceAccount + " settled, amount: " + Money.format(debit) + ", destinations: " + credits.size());
+                }
+                else {
+                    logger.error("Account: " + sourceAccount + " has not enough money, payment rolled back");
+                }
+            }
+        } finally {
+            // not committed changes are rolled back when connection is returned
+            pool.release(pc);
+            settlementMetrics.record(credits.size(), System.nanoTime() - start, settled);
+        }
+
+        return settled;
+    }
+
+
+    /**
+     * Execute batch of balance updates
+     * @param update PreparedStatement, batch of balance updates
+     * @return boolean, false if any account was not updated
+     * @throws SQLException on SQL error
+     */
+    private boolean executeBatch(PreparedStatement update) throws SQLException {
+        boolean updated = true;
+        for(int rowsUpdated : update.executeBatch()) {
+            if(rowsUpdated == 0) {
+                updated = false;
+            }
+        }
+
+        return updated;
+    }
+
+
+    /**
+     * Get account stripes
+     * @return AccountStripes, null if database is not connected
+     */
+    public AccountStripes getAccountStripes() {
+        return stripes;
+    }
+
+
+    /**
+     * Get balances of all accounts, rows are streamed so all accounts are never held twice in memory
+     * @return Map, account id to balance in minor units
      * @throws SQLException on SQL error
      */
-    public void updateAccountSum(String accountNumber, double change) throws SQLException {
-        String sql = "UPDATE "+ ACCOUNT_TABLE + " SET " + COLUMN_BALANCE + "= " + COLUMN_BALANCE + " + ? WHERE " + COLUMN_ACCOUNT_NUMBER + "=?";
+    public Map<Integer, Long> getAllBalances() throws SQLException {
+        Map<Integer, Long> balances = new HashMap<>();
 
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setDouble(1, change);
-        statement.setString(2, accountNumber);
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_ACCOUNT_BALANCES);
+            statement.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    balances.put(result.getInt(1), Money.fromDecimal(result.getBigDecimal(2)));
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
 
-        int rowsUpdated = statement.executeUpdate();
-        if (rowsUpdated > 0) {
-            logger.info("An account: " + accountNumber + " balance updated with change: " + change);
+        return balances;
+    }
+
+
+    /**
+     * Set statuses of payments and absolute balances of accounts in one database transaction
+     * Statuses are changed first like in settlement, so rows of payments are locked before accounts,
+     * balances are set in one batch ordered by account id, queued statuses overtaken by written ones are dropped
+     * @param balances Map, account id to balance in minor units
+     * @param statuses List of PaymentStatusChange, statuses of payments
+     * @throws SQLException on SQL error, nothing is changed
+     */
+    public void applyProjection(Map<Integer, Long> balances, List<PaymentStatusChange> statuses) throws SQLException {
+        if(balances.isEmpty() && statuses.isEmpty()) {
+            return;
+        }
+        for(PaymentStatusChange change : statuses) {
+            if(replicas != null) {
+                replicas.paymentWritten(change.getPaymentId());
+            }
+        }
+
+        PooledConnection pc = pool.lease();
+        try {
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+
+            for(PaymentStatusChange change : statuses) {
+                // payment already in this state or later is not changed
+                transition(pc, change.getPaymentId(), change.getStatus(), change.getStatus().getEarlier(), change.getDate());
+            }
+            if(!balances.isEmpty()) {
+                PreparedStatement update = pc.prepare(StatementCatalog.UPDATE_ACCOUNT_BALANCE_BY_ID);
+                for(Map.Entry<Integer, Long> balance : new TreeMap<>(balances).entrySet()) {
+                    update.setBigDecimal(1, Money.toDecimal(balance.getValue()));
+                    update.setInt(2, balance.getKey());
+                    update.addBatch();
+                }
+                update.executeBatch();
+            }
+            conn.commit();
+            if(statusWriter != null) {
+                for(PaymentStatusChange change : statuses) {
+                    synchronized (statusWriter.lockFor(change.getPaymentId())) {
+                        statusWriter.written(change.getPaymentId(), change.getStatus());
+                    }
+                }
+            }
+        } finally {
+            pool.release(pc);
+            for(Integer id : balances.keySet()) {
+                accountCache.invalidate(id);
+                if(replicas != null) {
+                    replicas.accountWritten(id);
+                }
+            }
         }
     }
 
 
+    /**
+     * Get throughput and latency of payment settlement
+     * @return SettlementMetrics
+     */
+    public SettlementMetrics getSettlementMetrics() {
+        return settlementMetrics;
+    }
+
+
+    /**
+     * Get cache of accounts with hit, miss and eviction statistics
+     * @return AccountCache
+     */
+    public AccountCache getAccountCache() {
+        return accountCache;
+    }
+
+
     /**
      * Get bank by id
      * @param bankId int, bank id
@@ -267,19 +941,22 @@ public class DatabaseManager {
      * @throws SQLException on SQL error
      */
     public Bank getBank(int bankId) throws SQLException {
-        String sql = "SELECT * FROM " + BANK_TABLE + " WHERE " + COLUMN_ID + "=?";
-
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setInt(1, bankId);
-        ResultSet result = statement.executeQuery();
-
         Bank bank = new Bank();
 
-        while (result.next()){
-            bank.setId(result.getInt(1));
-            bank.setBic(result.getString(2));
-            bank.setShortName(result.getString(3));
-            bank.setName(result.getString(4));
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_BANK_BY_ID);
+            statement.setInt(1, bankId);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    bank.setId(result.getInt(1));
+                    bank.setBic(result.getString(2));
+                    bank.setShortName(result.getString(3));
+                    bank.setName(result.getString(4));
+                }
+            }
+        } finally {
+            pool.release(pc);
         }
 
         return bank;
@@ -293,19 +970,22 @@ public class DatabaseManager {
      * @throws SQLException
      */
     public Bank getBankByBic(String bic) throws SQLException {
-        String sql = "SELECT * FROM " + BANK_TABLE + " WHERE " + COLUMN_BIC + "=?";
-
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setString(1, bic);
-        ResultSet result = statement.executeQuery();
-
         Bank bank = new Bank();
 
-        while (result.next()){
-            bank.setId(result.getInt(1));
-            bank.setBic(result.getString(2));
-            bank.setShortName(result.getString(3));
-            bank.setName(result.getString(4));
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_BANK_BY_BIC);
+            statement.setString(1, bic);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    bank.setId(result.getInt(1));
+                    bank.setBic(result.getString(2));
+                    bank.setShortName(result.getString(3));
+                    bank.setName(result.getString(4));
+                }
+            }
+        } finally {
+            pool.release(pc);
         }
 
         return bank;
@@ -316,29 +996,38 @@ public class DatabaseManager {
      * Link transaction destination account to current transaction
      * @param accountNumber String, account number
      * @param transactionId int, id of transaction
-     * @param amount double, sum sent to destination
+     * @param amount long, sum sent to destination in minor units
      * @param message message for destination account
      * @return status, 0=> successful
      * @throws SQLException on SQL error
      */
-    public int linkTransactionDestination(String accountNumber, int transactionId, double amount, String message) throws SQLException {
+    public int linkTransactionDestination(String accountNumber, int transactionId, long amount, String message) throws SQLException {
         PreparedStatement statement;
         int toId = getUserAccountByNumber(accountNumber).getId();
-        String sql = "INSERT INTO " + ACCOUNT_TRANSACTION_TABLE + " (" + COLUMN_TO_ID + ", " + COLUMN_TRANSACTION_ID + ", " + COLUMN_AMOUNT + ", " + COLUMN_MESSAGE + ") VALUES (?,?,?,?)";
 
-        statement = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-        statement.setInt(1, toId);
-        statement.setInt(2, transactionId);
-        statement.setDouble(3, amount);
-        statement.setString(4, message);
-        int rowsInserted = statement.executeUpdate();
-        if (rowsInserted > 0) {
-            logger.debug("Transaction destination: " + accountNumber + " has been added");
+        if(replicas != null) {
+            replicas.transactionWritten(transactionId);
         }
 
-        ResultSet rs = statement.getGeneratedKeys();
-        if( rs.next() ) {
-            return rs.getInt(1);
+        PooledConnection pc = pool.lease();
+        try {
+            statement = pc.prepareWithKeys(StatementCatalog.INSERT_TRANSACTION_DESTINATION);
+            statement.setInt(1, toId);
+            statement.setInt(2, transactionId);
+            statement.setBigDecimal(3, Money.toDecimal(amount));
+            statement.setString(4, message);
+            int rowsInserted = statement.executeUpdate();
+            if (rowsInserted > 0) {
+                logger.debug("Transaction destination: " + accountNumber + " has been added");
+            }
+
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                if( rs.next() ) {
+                    return rs.getInt(1);
+                }
+            }
+        } finally {
+            pool.release(pc);
         }
 
         return 0;
@@ -347,26 +1036,67 @@ public class DatabaseManager {
 
     /**
      * Gety transaction destinations for given transaction id
+     * Read from replica if transaction has no recent writes
      * @param transactionId int, id of transaction
      * @return ArrayList of AccountTransaction
      * @throws SQLException on SQL error
      */
     public ArrayList<AccountTransaction> getTransactionDestinations(int transactionId) throws SQLException {
-        String sql = "SELECT * FROM " + ACCOUNT_TRANSACTION_TABLE + " WHERE " + COLUMN_TRANSACTION_ID + "=?";
         ArrayList<AccountTransaction> accountTransactions = new ArrayList<>();
 
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setInt(1, transactionId);
-        ResultSet result = statement.executeQuery();
+        ConnectionPool source = readPool(replicas != null && replicas.isRecentlyWrittenTransaction(transactionId));
+        PooledConnection pc = source.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_TRANSACTION_DESTINATIONS);
+            statement.setInt(1, transactionId);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    AccountTransaction at = new AccountTransaction();
+                    at.setId(result.getInt(1));
+                    at.setToId(result.getInt(2));
+                    at.setTransactionId(result.getInt(3));
+                    at.setAmount(Money.fromDecimal(result.getBigDecimal(4)));
+                    at.setMessage(result.getString(5));
+                    accountTransactions.add(at);
+                }
+            }
+        } finally {
+            source.release(pc);
+        }
 
-        while (result.next()){
-            AccountTransaction at = new AccountTransaction();
-            at.setId(result.getInt(1));
-            at.setToId(result.getInt(2));
-            at.setTransactionId(result.getInt(3));
-            at.setAmount(result.getDouble(4));
-            at.setMessage(result.getString(5));
-            accountTransactions.add(at);
+        return accountTransactions;
+    }
+
+
+    /**
+     * Get transaction destinations for given transaction id together with destination account numbers in one query
+     * Read from replica if transaction has no recent writes
+     * @param transactionId int, id of transaction
+     * @return ArrayList of AccountTransaction with filled destination account number
+     * @throws SQLException on SQL error
+     */
+    public ArrayList<AccountTransaction> getTransactionDestinationsWithAccounts(int transactionId) throws SQLException {
+        ArrayList<AccountTransaction> accountTransactions = new ArrayList<>();
+
+        ConnectionPool source = readPool(replicas != null && replicas.isRecentlyWrittenTransaction(transactionId));
+        PooledConnection pc = source.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_TRANSACTION_DESTINATIONS_WITH_ACCOUNTS);
+            statement.setInt(1, transactionId);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    AccountTransaction at = new AccountTransaction();
+                    at.setId(result.getInt(1));
+                    at.setToId(result.getInt(2));
+                    at.setTransactionId(result.getInt(3));
+                    at.setAmount(Money.fromDecimal(result.getBigDecimal(4)));
+                    at.setMessage(result.getString(5));
+                    at.setToAccountNumber(result.getString(6));
+                    accountTransactions.add(at);
+                }
+            }
+        } finally {
+            source.release(pc);
         }
 
         return accountTransactions;
@@ -377,39 +1107,71 @@ public class DatabaseManager {
      * Insert transaction into database
      * @param fromId id of Account from
      * @param paymentId Payment id, UUID String
-     * @param amount double, amount
+     * @param amount long, amount in minor units
      * @param status String status
      * @param message String message of transaction
      * @return status 0 => successful
      * @throws SQLException on SQL error
      */
-    public int insertTransaction(int fromId, String paymentId, double amount, String status, String message) throws SQLException {
+    public int insertTransaction(int fromId, String paymentId, long amount, String status, String message) throws SQLException {
         PreparedStatement statement;
 
-        String sql = "INSERT INTO " + TRANSACTION_TABLE + " (" + COLUMN_FROM_ID + ", " + COLUMN_PAYMENT_ID + ", " + COLUMN_AMOUNT + ", " + COLUMN_STATUS + ", " + COLUMN_MESSAGE + ") VALUES (?, ?, ?, ?, ?)";
+        if(replicas != null) {
+            replicas.accountWritten(fromId);
+        }
 
-        statement = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-        statement.setInt(1, fromId);
-        statement.setString(2, paymentId);
-        statement.setDouble(3, amount);
-        statement.setString(4, status);
-        statement.setString(5, message);
+        PooledConnection pc = pool.lease();
+        try {
+            statement = pc.prepareWithKeys(StatementCatalog.INSERT_TRANSACTION);
+            statement.setInt(1, fromId);
+            statement.setString(2, paymentId);
+            statement.setBigDecimal(3, Money.toDecimal(amount));
+            statement.setString(4, status);
+            statement.setString(5, message);
 
-        int rowsInserted = statement.executeUpdate();
-        if (rowsInserted > 0) {
-            logger.debug("Transaction: " + paymentId + " has been added");
-        }
+            int rowsInserted = statement.executeUpdate();
+            if (rowsInserted > 0) {
+                logger.debug("Transaction: " + paymentId + " has been added");
+            }
 
 
-        ResultSet rs = statement.getGeneratedKeys();
-        if( rs.next() ) {
-            return rs.getInt(1);
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                if( rs.next() ) {
+                    return rs.getInt(1);
+                }
+            }
+        } finally {
+            pool.release(pc);
         }
 
         return 0;
     }
 
 
+    /**
+     * Insert transaction if payment id is not stored yet
+     * Unique key of payment id decides, duplicate entry error means that payment was already received
+     * @param fromId int, user account id
+     * @param paymentId String, payment id in UUID format
+     * @param amount long, amount in minor units
+     * @param status String, status of transaction
+     * @param message String, message of transaction
+     * @return int, id of inserted transaction, 0 if payment already exists
+     * @throws SQLException on SQL error
+     */
+    public int insertTransactionIfAbsent(int fromId, String paymentId, long amount, String status, String message) throws SQLException {
+        try {
+            return insertTransaction(fromId, paymentId, amount, status, message);
+        } catch (SQLException e) {
+            if(e.getErrorCode() != ER_DUP_ENTRY) {
+                throw e;
+            }
+            logger.debug("Transaction: " + paymentId + " already exists");
+            return 0;
+        }
+    }
+
+
     /**
      * Get transaction by payment id
      * @param paymentId payment id string
@@ -417,31 +1179,34 @@ public class DatabaseManager {
      * @throws SQLException on SQL error
      */
     public Transaction getTransactionByPaymentId(String paymentId) throws SQLException {
-        String sql = "SELECT * FROM " + TRANSACTION_TABLE + " WHERE " + COLUMN_PAYMENT_ID + "=?";
-
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setString(1, paymentId);
-        ResultSet result = statement.executeQuery();
-
         Transaction t = new Transaction();
 
-        while (result.next()){
-            t.setId(result.getInt(1));
-            t.setFromId(result.getInt(2));
-            t.setPaymentId(result.getString(3));
-            t.setAmount(result.getDouble(4));
-            t.setDateCreated(result.getDate(5));
-            t.setDateRealized(result.getDate(6));
-            t.setStatus(result.getString(7));
-            t.setMessage(result.getString(8));
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_TRANSACTION_BY_PAYMENT_ID);
+            statement.setString(1, paymentId);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    t.setId(result.getInt(1));
+                    t.setFromId(result.getInt(2));
+                    t.setPaymentId(result.getString(3));
+                    t.setAmount(Money.fromDecimal(result.getBigDecimal(4)));
+                    t.setDateCreated(result.getDate(5));
+                    t.setDateRealized(result.getDate(6));
+                    t.setStatus(result.getString(7));
+                    t.setMessage(result.getString(8));
+                }
+            }
+        } finally {
+            pool.release(pc);
         }
 
-        return t;
+        return overlayStatus(t);
     }
 
 
     /**
-     * Get all transactions from account number with given status
+     * Get all transactions from account number with given status, dates are read with time, so age of status can be checked
      * @param accountNumber String, account number
      * @param status String, status of transaction
      * @return ArrayList of Transaction
@@ -449,28 +1214,36 @@ public class DatabaseManager {
      */
     public ArrayList<Transaction> getTransactionsByAccNumberStatus(String accountNumber, String status) throws SQLException {
         int fromId = getUserAccountByNumber(accountNumber).getId();
-        String sql = "SELECT * FROM " + TRANSACTION_TABLE + " WHERE " + COLUMN_FROM_ID + "=?" + " AND " + COLUMN_STATUS + "=?" +
-                " ORDER BY " + COLUMN_DATE_CREATED + " DESC";
 
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setInt(1, fromId);
-        statement.setString(2, status);
-        ResultSet result = statement.executeQuery();
+        // query filters by status, so queued statuses have to be in database
+        if(statusWriter != null) {
+            statusWriter.flush();
+        }
 
         ArrayList<Transaction> transactions = new ArrayList<>();
 
-        while (result.next()){
-            Transaction t = new Transaction();
-            t.setId(result.getInt(1));
-            t.setFromId(result.getInt(2));
-            t.setPaymentId(result.getString(3));
-            t.setAmount(result.getDouble(4));
-            t.setDateCreated(result.getDate(5));
-            t.setDateRealized(result.getDate(6));
-            t.setStatus(result.getString(7));
-            t.setMessage(result.getString(8));
-
-            transactions.add(t);
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_TRANSACTIONS_BY_FROM_STATUS);
+            statement.setInt(1, fromId);
+            statement.setString(2, status);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    Transaction t = new Transaction();
+                    t.setId(result.getInt(1));
+                    t.setFromId(result.getInt(2));
+                    t.setPaymentId(result.getString(3));
+                    t.setAmount(Money.fromDecimal(result.getBigDecimal(4)));
+                    t.setDateCreated(result.getTimestamp(5));
+                    t.setDateRealized(result.getTimestamp(6));
+                    t.setStatus(result.getString(7));
+                    t.setMessage(result.getString(8));
+
+                    transactions.add(overlayStatus(t));
+                }
+            }
+        } finally {
+            pool.release(pc);
         }
 
         return transactions;
@@ -485,47 +1258,111 @@ public class DatabaseManager {
      * @throws SQLException on SQL error
      */
     public void updateTransactionStatus(int id, String status, String date) throws SQLException {
-        String sql = "UPDATE "+ TRANSACTION_TABLE + " SET " + COLUMN_STATUS + "= ? " + ", " + COLUMN_DATE_REALIZED + "= ? WHERE " + COLUMN_ID + "=?";
-
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setString(1, status);
-        statement.setString(2, date);
-        statement.setInt(3, id);
+        if(replicas != null) {
+            replicas.transactionWritten(id);
+        }
 
-        int rowsUpdated = statement.executeUpdate();
-        if (rowsUpdated > 0) {
-            logger.debug("A transaction status was updated successfully!");
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.UPDATE_TRANSACTION_STATUS);
+            statement.setString(1, status);
+            statement.setString(2, date);
+            statement.setInt(3, id);
+
+            int rowsUpdated = statement.executeUpdate();
+            if (rowsUpdated > 0) {
+                logger.debug("A transaction status was updated successfully!");
+            }
+        } finally {
+            pool.release(pc);
         }
     }
 
 
     /**
      * Get history of transactions for given account
+     * Read from replica if account has no recent writes, repeated on primary if replica returned recently written transaction
      * @param accountId int, id of account
      * @return ArrayList of Transaction
      * @throws SQLException on SQL error
      */
     public ArrayList<Transaction> getHistory(int accountId) throws SQLException {
-        String sql = "SELECT * FROM " + TRANSACTION_TABLE + " WHERE " + COLUMN_FROM_ID + "=?";
+        ConnectionPool source = readPool(replicas != null && replicas.isRecentlyWritten(accountId));
+        ArrayList<Transaction> transactions = queryHistory(source, accountId);
+        if(source != pool && replicas.containsRecentlyWritten(transactions)) {
+            replicas.reread();
+            transactions = queryHistory(pool, accountId);
+        }
+
+        return transactions;
+    }
 
+
+    private ArrayList<Transaction> queryHistory(ConnectionPool source, int accountId) throws SQLException {
         ArrayList<Transaction> transactions = new ArrayList();
 
-        PreparedStatement statement = conn.prepareStatement(sql);
-        statement.setInt(1, accountId);
-        ResultSet result = statement.executeQuery();
+        PooledConnection pc = source.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_TRANSACTIONS_BY_FROM);
+            statement.setInt(1, accountId);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()){
+                    Transaction t = new Transaction();
+                    t.setId(result.getInt(1));
+                    t.setFromId(result.getInt(2));
+                    t.setPaymentId(result.getString(3));
+                    t.setAmount(Money.fromDecimal(result.getBigDecimal(4)));
+                    t.setDateCreated(result.getDate(5));
+                    t.setDateRealized(result.getDate(6));
+                    t.setStatus(result.getString(7));
+                    t.setMessage(result.getString(8));
+
+                    transactions.add(overlayStatus(t));
+                }
+            }
+        } finally {
+            source.release(pc);
+        }
+
+        return transactions;
+    }
+
+
+    /**
+     * Get history of transactions for given account with all destinations and destination account numbers
+     * Read from replica if account has no recent writes, repeated on primary if replica returned recently written transaction
+     * Whole history is read with one streamed query, rows are ordered by transaction so destinations are appended
+     * to the last read transaction
+     * @param accountId int, id of account
+     * @return ArrayList of Transaction with filled destinations
+     * @throws SQLException on SQL error
+     */
+    public ArrayList<Transaction> getHistoryWithDestinations(int accountId) throws SQLException {
+        ConnectionPool source = readPool(replicas != null && replicas.isRecentlyWritten(accountId));
+        ArrayList<Transaction> transactions = queryHistoryWithDestinations(source, accountId);
+        if(source != pool && replicas.containsRecentlyWritten(transactions)) {
+            replicas.reread();
+            transactions = queryHistoryWithDestinations(pool, accountId);
+        }
+
+        return transactions;
+    }
 
-        while (result.next()){
-            Transaction t = new Transaction();
-            t.setId(result.getInt(1));
-            t.setFromId(result.getInt(2));
-            t.setPaymentId(result.getString(3));
-            t.setAmount(result.getDouble(4));
-            t.setDateCreated(result.getDate(5));
-            t.setDateRealized(result.getDate(6));
-            t.setStatus(result.getString(7));
-            t.setMessage(result.getString(8));
 
-            transactions.add(t);
+    private ArrayList<Transaction> queryHistoryWithDestinations(ConnectionPool source, int accountId) throws SQLException {
+        ArrayList<Transaction> transactions = new ArrayList<>();
+
+        PooledConnection pc = source.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_HISTORY_WITH_DESTINATIONS);
+            // MySQL driver streams rows one by one instead of reading whole result into memory
+            statement.setFetchSize(Integer.MIN_VALUE);
+            statement.setInt(1, accountId);
+            try (ResultSet result = statement.executeQuery()) {
+                readHistoryRows(result, transactions);
+            }
+        } finally {
+            source.release(pc);
         }
 
         return transactions;
@@ -533,32 +1370,203 @@ public class DatabaseManager {
 
 
     /**
-     * Get all accounts
-     * @return ArrayList of Account
+     * Get one page of history for given account with all destinations and destination account numbers
+     * Read from replica if account has no recent writes, repeated on primary if replica returned recently written transaction
+     * Payments are ordered from the newest, page is selected by keyset so the cost does not grow with the age of account
+     * @param accountId int, id of account
+     * @param query HistoryQuery, page size, cursor and time window
+     * @return ArrayList of Transaction with filled destinations, at most page size + 1 transactions,
+     * the extra transaction only signals that next page exists
      * @throws SQLException on SQL error
      */
-    public ArrayList<Account> getAllAccounts() throws SQLException {
-        String sql = "SELECT * FROM " + ACCOUNT_TABLE;
+    public ArrayList<Transaction> getHistoryPage(int accountId, HistoryQuery query) throws SQLException {
+        ConnectionPool source = readPool(replicas != null && replicas.isRecentlyWritten(accountId));
+        ArrayList<Transaction> transactions = queryHistoryPage(source, accountId, query);
+        if(source != pool && replicas.containsRecentlyWritten(transactions)) {
+            replicas.reread();
+            transactions = queryHistoryPage(pool, accountId, query);
+        }
 
-        ArrayList<Account> accounts = new ArrayList<>();
+        return transactions;
+    }
 
-        Statement statement = conn.createStatement();
-        ResultSet result = statement.executeQuery(sql);
 
-        int count = 0;
+    private ArrayList<Transaction> queryHistoryPage(ConnectionPool source, int accountId, HistoryQuery query) throws SQLException {
+        ArrayList<Transaction> transactions = new ArrayList<>();
 
+        PooledConnection pc = source.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_HISTORY_PAGE);
+            statement.setInt(1, accountId);
+            statement.setTimestamp(2, query.getFrom());
+            statement.setTimestamp(3, query.getTo());
+            statement.setTimestamp(4, query.getCursorDate());
+            statement.setTimestamp(5, query.getCursorDate());
+            statement.setInt(6, query.getCursorId());
+            statement.setInt(7, query.getPageSize() + 1);
+            try (ResultSet result = statement.executeQuery()) {
+                readHistoryRows(result, transactions);
+            }
+        } finally {
+            source.release(pc);
+        }
+
+        return transactions;
+    }
+
+
+    /**
+     * Change status of payment by one conditional update, affected rows decide if payment was in one of previous states
+     * If STATUS_WRITE_BEHIND is enabled, status is decided against queued status and change is written later in batch
+     * {@see TransactionStatusWriter}
+     * @param paymentId String, payment id
+     * @param status PaymentStatus, new status
+     * @param date String, Date in Mysql format for Date
+     * @return boolean, true if status was changed
+     * @throws SQLException on SQL error
+     */
+    public boolean transitionTransactionStatus(String paymentId, PaymentStatus status, String date) throws SQLException {
+        Set<PaymentStatus> previous = status.getPrevious();
+        if(previous.isEmpty()) {
+            return false;
+        }
+        if(replicas != null) {
+            replicas.paymentWritten(paymentId);
+        }
+        if(statusWriter != null) {
+            return statusWriter.transition(paymentId, status, date);
+        }
+
+        PooledConnection pc = pool.lease();
+        try {
+            return transition(pc, paymentId, status, date);
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    private boolean transition(PooledConnection pc, String paymentId, PaymentStatus status, String date) throws SQLException {
+        return transition(pc, paymentId, status, status.getPrevious(), date);
+    }
+
+    private boolean transition(PooledConnection pc, String paymentId, PaymentStatus status, Set<PaymentStatus> previous, String date) throws SQLException {
+        PreparedStatement statement = pc.prepare(StatementCatalog.transitionTransactionStatus(previous.size()));
+        statement.setString(1, status.getValue());
+        statement.setString(2, date);
+        statement.setString(3, paymentId);
+        int index = 4;
+        for(PaymentStatus state : previous) {
+            statement.setString(index++, state.getValue());
+        }
+
+        return statement.executeUpdate() > 0;
+    }
+
+
+    /**
+     * Replace status read from database by status waiting in write-behind queue
+     * @param t Transaction, read from database
+     * @return Transaction, the same object
+     */
+    private Transaction overlayStatus(Transaction t) {
+        return statusWriter != null ? statusWriter.overlay(t) : t;
+    }
+
+
+    /**
+     * Get write-behind of payment statuses
+     * @return TransactionStatusWriter, null if statuses are written synchronously
+     */
+    public TransactionStatusWriter getStatusWriter() {
+        return statusWriter;
+    }
+
+
+    /**
+     * Get reconciliation of balances with payments
+     * @return BalanceReconciler, null if database is not connected
+     */
+    public BalanceReconciler getReconciler() {
+        return reconciler;
+    }
+
+
+    /**
+     * Assemble transactions with destinations from joined history rows
+     * Rows of one transaction have to follow each other, destinations are appended to the last read transaction
+     * @param result ResultSet of history query
+     * @param transactions ArrayList, where transactions are added
+     * @throws SQLException on SQL error
+     */
+    private void readHistoryRows(ResultSet result, ArrayList<Transaction> transactions) throws SQLException {
+        Transaction t = null;
         while (result.next()){
-            Account acc = new Account();
-            acc.setId(result.getInt(1));
-            acc.setUserId(result.getString(2));
-            acc.setBalance(result.getDouble(3));
+            int id = result.getInt(1);
+            if(t == null || t.getId() != id) {
+                t = new Transaction();
+                t.setId(id);
+                t.setFromId(result.getInt(2));
+                t.setPaymentId(result.getString(3));
+                t.setAmount(Money.fromDecimal(result.getBigDecimal(4)));
+                t.setDateCreated(result.getTimestamp(5));
+                t.setDateRealized(result.getTimestamp(6));
+                t.setStatus(result.getString(7));
+                t.setMessage(result.getString(8));
+
+                transactions.add(overlayStatus(t));
+            }
+
+            // transaction without destinations has only nulls in joined columns
+            int destinationId = result.getInt(9);
+            if(!result.wasNull()) {
+                AccountTransaction at = new AccountTransaction();
+                at.setId(destinationId);
+                at.setToId(result.getInt(10));
+                at.setTransactionId(id);
+                at.setAmount(Money.fromDecimal(result.getBigDecimal(11)));
+                at.setMessage(result.getString(12));
+                at.setToAccountNumber(result.getString(13));
+                t.getDestinations().add(at);
+            }
+        }
+    }
+
+
+    /**
+     * Get all accounts, all of them are kept in memory, {@link BalanceReconciler} reads accounts in chunks instead
+     * @return ArrayList of Account
+     * @throws SQLException on SQL error
+     */
+    public ArrayList<Account> getAllAccounts() throws SQLException {
+        ArrayList<Account> accounts = new ArrayList<>();
 
-            String output = "User #%d: %s - %s - %s";
-            logger.debug(String.format(output, ++count, acc.getId(), acc.getUserId(), acc.getBalance()));
-            accounts.add(acc);
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_ALL_ACCOUNTS);
+            try (ResultSet result = statement.executeQuery()) {
+                int count = 0;
+
+                while (result.next()){
+                    Account acc = new Account();
+                    acc.setId(result.getInt(1));
+                    acc.setBankId(result.getInt(2));
+                    acc.setAccountNumber(result.getString(3));
+                    acc.setBalance(Money.fromDecimal(result.getBigDecimal(4)));
+                    acc.setDateCreated(result.getTimestamp(5));
+
+                    String output = "User #%d: %s - %s - %s";
+                    logger.debug(String.format(output, ++count, acc.getId(), acc.getAccountNumber(), acc.getBalance()));
+                    accounts.add(acc);
+                }
+            }
+            for(Account acc : accounts) {
+                addStripes(pc, acc);
+            }
+        } finally {
+            pool.release(pc);
         }
 
         return accounts;
     }
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
+import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In memory holds of money of pending payments
+ * Amount of payment is reserved when payment goes pending, converted to debit of kept balance when payment is received
+ * and released when payment is rejected or expired, so available balance (balance minus holds) is checked without database
+ * and the same money is not promised twice.
+ *
+ * Holds and balance of account are loaded from storage on first use of account, later they are kept only in memory.
+ * Credits of account are not followed, kept balance can be only lower than settled one, so it is read again only when
+ * payment does not fit into it. Accounts without holds are kept up to {@link #cachedAccounts} least recently used,
+ * older ones are dropped and loaded again on next use. Payment settling longer than {@link #settlingTimeout}
+ * is not held, its settlement failed without changing balance or moved money already.
+ *
+ * Hold is converted only after settled payment is committed and settlement of account runs in its dispatcher lane,
+ * so settled payment is never missing in both kept balance and holds
+ * @author Martin Stepanek
+ */
+public class HoldLedger {
+
+    /**
+     * Result of reservation
+     */
+    public enum Result {
+        RESERVED,
+        ALREADY_HELD,
+        INSUFFICIENT
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(HoldLedger.class);
+
+    private static HoldLedger instance;
+
+    private final BankStorage storage;
+    private final long settlingTimeout;
+    private final int cachedAccounts;
+    private final ConcurrentHashMap<String, AccountHolds> accounts = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, AccountHolds> recent = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong insufficient = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong converted = new AtomicLong();
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong staleSettling = new AtomicLong();
+
+
+    /**
+     * HoldLedger constructor
+     * @param storage BankStorage, storage of pending payments
+     * @param settlingTimeout long, time after which settling payment is not held, in milliseconds
+     * @param cachedAccounts int, maximum number of accounts without holds kept in memory
+     */
+    HoldLedger(BankStorage storage, long settlingTimeout, int cachedAccounts) {
+        this.storage = storage;
+        this.settlingTimeout = settlingTimeout;
+        this.cachedAccounts = cachedAccounts;
+    }
+
+
+    /**
+     * Method for returning singleton instance
+     * @return HoldLedger
+     */
+    public static synchronized HoldLedger getInstance() {
+        if(instance == null) {
+            ConfigManager config = ConfigManager.getInstance();
+            instance = new HoldLedger(StorageManager.getInstance(), config.getIntPropValues("SETTLING_TIMEOUT", 300000),
+                    config.getIntPropValues("HOLD_CACHED_ACCOUNTS", 10000));
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Reserve amount of payment if available balance of account is big enough
+     * Balance is read from storage only if payment does not fit into kept balance, account could be credited meanwhile
+     * @param accountNumber String, source account of payment
+     * @param paymentId String, payment id in UUID format
+     * @param amount long, amount in minor units
+     * @return Result, ALREADY_HELD if payment is already reserved
+     * @throws SQLException on error while loading holds or balance of account
+     */
+    public Result reserve(String accountNumber, String paymentId, long amount) throws SQLException {
+        while(true) {
+            AccountHolds holds = load(accountNumber);
+            Result result;
+            synchronized (holds) {
+                if(holds.evicted) {
+                    continue;
+                }
+                if(holds.payments.containsKey(paymentId)) {
+                    return Result.ALREADY_HELD;
+                }
+                if(holds.balance - holds.total < amount) {
+                    holds.balance = getBalance(accountNumber);
+                    refreshed.incrementAndGet();
+                }
+                if(holds.balance - holds.total < amount) {
+                    result = Result.INSUFFICIENT;
+                } else {
+                    holds.payments.put(paymentId, amount);
+                    holds.total += amount;
+                    result = Result.RESERVED;
+                }
+            }
+
+            if(result == Result.RESERVED) {
+                reserved.incrementAndGet();
+            } else {
+                insufficient.incrementAndGet();
+            }
+            touch(accountNumber, holds);
+            return result;
+        }
+    }
+
+    /**
+     * Convert reserved amount of received payment to debit of kept balance, payment is already committed
+     * Payment not held was not loaded as pending, so it is already debited in balance loaded from storage
+     * @param accountNumber String, source account of payment
+     * @param paymentId String, payment id in UUID format
+     * @throws SQLException on error while loading holds of account
+     */
+    public void convert(String accountNumber, String paymentId) throws SQLException {
+        while(true) {
+            AccountHolds holds = load(accountNumber);
+            synchronized (holds) {
+                if(holds.evicted) {
+                    continue;
+                }
+                Long amount = holds.payments.remove(paymentId);
+                if(amount == null) {
+                    return;
+                }
+                holds.total -= amount;
+                holds.balance -= amount;
+            }
+
+            converted.incrementAndGet();
+            touch(accountNumber, holds);
+            return;
+        }
+    }
+
+    /**
+     * Release reserved amount of payment that did not move money
+     * @param accountNumber String, source account of payment
+     * @param paymentId String, payment id in UUID format
+     * @throws SQLException on error while loading holds of account
+     */
+    public void release(String accountNumber, String paymentId) throws SQLException {
+        // holds are loaded first, so payment loaded as pending just before its change is released too
+        while(true) {
+            AccountHolds holds = load(accountNumber);
+            synchronized (holds) {
+                if(holds.evicted) {
+                    continue;
+                }
+                Long amount = holds.payments.remove(paymentId);
+                if(amount == null) {
+                    return;
+                }
+                holds.total -= amount;
+            }
+
+            released.incrementAndGet();
+            touch(accountNumber, holds);
+            return;
+        }
+    }
+
+    /**
+     * Get kept balance of account minus all its holds
+     * @param accountNumber String, account number
+     * @return long, available balance in minor units, credits since account was loaded are not included
+     * @throws SQLException on error while loading holds or balance of account
+     */
+    public long getAvailable(String accountNumber) throws SQLException {
+        while(true) {
+            AccountHolds holds = load(accountNumber);
+            long available;
+            synchronized (holds) {
+                if(holds.evicted) {
+                    continue;
+                }
+                available = holds.balance - holds.total;
+            }
+
+            touch(accountNumber, holds);
+            return available;
+        }
+    }
+
+
+    /**
+     * Convert hold statistics to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        long held = 0;
+        long amount = 0;
+        for(AccountHolds holds : accounts.values()) {
+            synchronized (holds) {
+                held += holds.payments.size();
+                amount += holds.total;
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("accounts", accounts.size());
+        json.put("holds", held);
+        json.put("heldAmount", amount);
+        json.put("reserved", reserved.get());
+        json.put("insufficient", insufficient.get());
+        json.put("converted", converted.get());
+        json.put("released", released.get());
+        json.put("balanceReads", refreshed.get());
+        json.put("loadedAccounts", loaded.get());
+        json.put("evictedAccounts", evicted.get());
+        json.put("staleSettling", staleSettling.get());
+
+        return json;
+    }
+
+
+    /**
+     * Get holds of account, balance and pending and settling payments of account are read from storage on first use
+     */
+    private AccountHolds load(String accountNumber) throws SQLException {
+        AccountHolds holds = accounts.get(accountNumber);
+        if(holds == null) {
+            AccountHolds created = new AccountHolds();
+            holds = accounts.putIfAbsent(accountNumber, created);
+            if(holds == null) {
+                holds = created;
+            }
+        }
+
+        synchronized (holds) {
+            if(!holds.loaded) {
+                for(Transaction t : storage.getTransactionsByAccNumberStatus(accountNumber, PaymentStatus.PENDING.getValue())) {
+                    holds.add(t);
+                }
+                long staleBefore = System.currentTimeMillis() - settlingTimeout;
+                for(Transaction t : storage.getTransactionsByAccNumberStatus(accountNumber, PaymentStatus.SETTLING.getValue())) {
+                    if(t.getDateRealized() != null && t.getDateRealized().getTime() < staleBefore) {
+                        staleSettling.incrementAndGet();
+                        logger.warn("Payment " + t.getPaymentId() + " is settling since " + t.getDateRealized() + ", it is not held");
+                        continue;
+                    }
+                    holds.add(t);
+                }
+                holds.balance = getBalance(accountNumber);
+                holds.loaded = true;
+                loaded.incrementAndGet();
+                logger.debug("Holds of account " + accountNumber + " loaded: " + holds.payments.size());
+            }
+        }
+
+        return holds;
+    }
+
+
+    /**
+     * Settled balance of account from storage, caller holds lock of account holds
+     */
+    private long getBalance(String accountNumber) throws SQLException {
+        return storage.getUserAccountByNumber(accountNumber).getBalance();
+    }
+
+    /**
+     * Mark account as recently used and drop least recently used account if it has no holds,
+     * caller does not hold lock of any account holds, dropped holds are looked up again by their users
+     */
+    private void touch(String accountNumber, AccountHolds holds) {
+        Map.Entry<String, AccountHolds> eldest = null;
+        synchronized (recent) {
+            recent.put(accountNumber, holds);
+            if(recent.size() > cachedAccounts) {
+                Iterator<Map.Entry<String, AccountHolds>> it = recent.entrySet().iterator();
+                eldest = it.next();
+                it.remove();
+            }
+        }
+        if(eldest == null) {
+            return;
+        }
+
+        // account with holds stays, it is marked again on its next use
+        synchronized (eldest.getValue()) {
+            if(eldest.getValue().payments.isEmpty() && accounts.remove(eldest.getKey(), eldest.getValue())) {
+                eldest.getValue().evicted = true;
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Holds of one account, guarded by its own monitor
+     */
+    private static final class AccountHolds {
+        private final Map<String, Long> payments = new HashMap<>();
+        private long total = 0;
+        private long balance = 0;
+        private boolean loaded = false;
+        private boolean evicted = false;
+
+        private void add(Transaction t) {
+            if(!payments.containsKey(t.getPaymentId())) {
+                payments.put(t.getPaymentId(), t.getAmount());
+                total += t.getAmount();
+            }
+        }
+    }
+}
@@ -0,0 +1,635 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Account;
+import com.mobilewallet.bank.jersey.BankModule.Model.AccountTransaction;
+import com.mobilewallet.bank.jersey.BankModule.Model.Bank;
+import com.mobilewallet.bank.jersey.BankModule.Model.HistoryQuery;
+import com.mobilewallet.bank.jersey.BankModule.Model.Money;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatusChange;
+import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Storage that keeps all data in memory of the process, used for benchmarks and capacity tests without MySQL
+ * Initial banks and accounts are loaded from {@link #SEED_FILE}, nothing is persisted
+ *
+ * Every account has own lock, settlement locks accounts ordered by id the same way as database locks rows,
+ * so payments of different accounts are settled in parallel. Callers always get copies of stored objects.
+ * @author Martin Stepanek
+ */
+public class InMemoryStorage implements BankStorage {
+
+    private static final String SEED_FILE = "db/memory-seed.txt";
+
+    /**
+     * MySQL state and error code of duplicate unique key, returned for the same conditions as database
+     */
+    private static final String SQL_STATE_DUPLICATE = "23000";
+    private static final int ER_DUP_ENTRY = 1062;
+
+    private final Logger logger = LoggerFactory.getLogger(InMemoryStorage.class);
+
+    private final AtomicInteger accountIds = new AtomicInteger();
+    private final AtomicInteger transactionIds = new AtomicInteger();
+    private final AtomicInteger destinationIds = new AtomicInteger();
+
+    private final ArrayList<Bank> banks = new ArrayList<>();
+
+    private final ConcurrentHashMap<Integer, StoredAccount> accountsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, StoredAccount> accountsByNumber = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Integer, Transaction> transactionsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Transaction> transactionsByPaymentId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, List<Transaction>> transactionsByAccount = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, List<AccountTransaction>> destinationsByTransaction = new ConcurrentHashMap<>();
+
+    private final SettlementMetrics settlementMetrics = new SettlementMetrics();
+
+
+    /**
+     * InMemoryStorage constructor, loads banks and accounts from {@link #SEED_FILE}
+     */
+    public InMemoryStorage() {
+        try {
+            seed();
+            logger.info("In-memory storage loaded with " + banks.size() + " banks and " + accountsById.size() + " accounts");
+        } catch (IOException | SQLException e) {
+            logger.error("Error: ", e);
+            e.printStackTrace();
+        }
+    }
+
+
+    public boolean linkAccount(String accountNumber, String bic) throws SQLException {
+        Bank bank = getBankByBic(bic);
+        if(bank.getId() == 0) {
+            logger.error("Bank doesn't exists");
+            return false;
+        }
+
+        if(addAccount(bank.getId(), accountNumber, DatabaseManager.BALANCE_AMOUNT) == null) {
+            logger.error("Account number already exists");
+            return false;
+        }
+
+        logger.info("Account: " + accountNumber + " has been successfully added");
+        return true;
+    }
+
+    public List<String> linkAccounts(Map<String, String> accounts) {
+        List<String> linked = new ArrayList<>();
+        for(Map.Entry<String, String> account : accounts.entrySet()) {
+            Bank bank = getBankByBic(account.getValue());
+            if(bank.getId() != 0 && addAccount(bank.getId(), account.getKey(), DatabaseManager.BALANCE_AMOUNT) != null) {
+                linked.add(account.getKey());
+            }
+        }
+
+        logger.info("Accounts: " + linked.size() + " of " + accounts.size() + " have been successfully added");
+        return linked;
+    }
+
+    public Set<String> getExistingAccountNumbers(Collection<String> accountNumbers) {
+        Set<String> existing = new HashSet<>();
+        for(String accountNumber : accountNumbers) {
+            if(accountsByNumber.containsKey(accountNumber)) {
+                existing.add(accountNumber);
+            }
+        }
+
+        return existing;
+    }
+
+    public ArrayList<Bank> getAllBanks() {
+        ArrayList<Bank> copies = new ArrayList<>();
+        for(Bank bank : banks) {
+            copies.add(copy(bank));
+        }
+
+        return copies;
+    }
+
+    public Bank getBank(int bankId) {
+        for(Bank bank : banks) {
+            if(bank.getId() == bankId) {
+                return copy(bank);
+            }
+        }
+
+        return new Bank();
+    }
+
+    public Bank getBankByBic(String bic) {
+        for(Bank bank : banks) {
+            if(bank.getBic().equals(bic)) {
+                return copy(bank);
+            }
+        }
+
+        return new Bank();
+    }
+
+    public Account getUserAccountByNumber(String accountNumber) {
+        StoredAccount stored = accountNumber == null ? null : accountsByNumber.get(accountNumber);
+
+        return stored == null ? new Account() : stored.copy();
+    }
+
+    public Account getUserAccount(int userId) {
+        StoredAccount stored = accountsById.get(userId);
+
+        return stored == null ? new Account() : stored.copy();
+    }
+
+    public Account getAccountSnapshot(String accountNumber) {
+        return getUserAccountByNumber(accountNumber);
+    }
+
+    public ArrayList<Account> getAllAccounts() {
+        ArrayList<Account> accounts = new ArrayList<>();
+        for(StoredAccount stored : new TreeMap<>(accountsById).values()) {
+            accounts.add(stored.copy());
+        }
+
+        return accounts;
+    }
+
+    public void updateAccountSum(String accountNumber, long change) {
+        StoredAccount stored = accountsByNumber.get(accountNumber);
+        if(stored == null) {
+            return;
+        }
+
+        stored.lock.lock();
+        try {
+            stored.balance = Money.add(stored.balance, change);
+        } finally {
+            stored.lock.unlock();
+        }
+        logger.info("An account: " + accountNumber + " balance updated with change: " + Money.format(change));
+    }
+
+    /**
+     * Payment is locked while its money is moved, so status changes to received together with balances
+     */
+    public boolean settlePayment(String paymentId, String sourceAccount, long debit, Map<String, Long> credits, String date) {
+        Transaction t = paymentId == null ? null : transactionsByPaymentId.get(paymentId);
+        if(t == null) {
+            return false;
+        }
+
+        synchronized (t) {
+            if(!PaymentStatus.SETTLING.getValue().equals(t.getStatus())) {
+                logger.error("Payment " + paymentId + " is not settling, it was not settled");
+                return false;
+            }
+            if(!moveMoney(sourceAccount, debit, credits)) {
+                return false;
+            }
+            t.setStatus(PaymentStatus.RECEIVED.getValue());
+            t.setDateRealized(Timestamp.valueOf(date));
+        }
+
+        return true;
+    }
+
+    private boolean moveMoney(String sourceAccount, long debit, Map<String, Long> credits) {
+        long start = System.nanoTime();
+        boolean settled = false;
+
+        Map<String, Long> changes = new HashMap<>(credits);
+        Long sourceChange = changes.get(sourceAccount);
+        changes.put(sourceAccount, Money.subtract(sourceChange == null ? Money.ZERO : sourceChange, debit));
+
+        // accounts ordered by id give lock order
+        TreeMap<Integer, StoredAccount> accounts = new TreeMap<>();
+        for(String accountNumber : changes.keySet()) {
+            StoredAccount stored = accountsByNumber.get(accountNumber);
+            if(stored != null) {
+                accounts.put(stored.id, stored);
+            }
+        }
+
+        try {
+            if(accounts.size() != changes.size()) {
+                logger.error("Payment from: " + sourceAccount + " contains account that does not exist");
+                return false;
+            }
+
+            List<StoredAccount> locked = new ArrayList<>();
+            try {
+                for(StoredAccount stored : accounts.values()) {
+                    stored.lock.lock();
+                    locked.add(stored);
+                }
+
+                for(StoredAccount stored : accounts.values()) {
+                    long change = changes.get(stored.accountNumber);
+                    if(change < 0 && Money.add(stored.balance, change) < 0) {
+                        logger.error("Account: " + sourceAccount + " has not enough money, payment rolled back");
+                        return false;
+                    }
+                }
+                for(StoredAccount stored : accounts.values()) {
+                    stored.balance = Money.add(stored.balance, changes.get(stored.accountNumber));
+                }
+                settled = true;
+            } finally {
+                for(StoredAccount stored : locked) {
+                    stored.lock.unlock();
+                }
+            }
+
+            logger.info("Payment from: " + sourceAccount + " settled, amount: " + Money.format(debit) + ", destinations: " + credits.size());
+            return true;
+        } finally {
+            settlementMetrics.record(credits.size(), System.nanoTime() - start, settled);
+        }
+    }
+
+    public Map<Integer, Long> getAllBalances() {
+        Map<Integer, Long> balances = new HashMap<>();
+        for(StoredAccount stored : accountsById.values()) {
+            balances.put(stored.id, stored.copy().getBalance());
+        }
+
+        return balances;
+    }
+
+    public void applyProjection(Map<Integer, Long> balances, List<PaymentStatusChange> statuses) {
+        for(PaymentStatusChange change : statuses) {
+            Transaction t = transactionsByPaymentId.get(change.getPaymentId());
+            if(t != null) {
+                synchronized (t) {
+                    if(change.getStatus().getEarlier().contains(PaymentStatus.fromValue(t.getStatus()))) {
+                        change.applyTo(t);
+                    }
+                }
+            }
+        }
+
+        for(Map.Entry<Integer, Long> balance : balances.entrySet()) {
+            StoredAccount stored = accountsById.get(balance.getKey());
+            if(stored != null) {
+                stored.lock.lock();
+                try {
+                    stored.balance = balance.getValue();
+                } finally {
+                    stored.lock.unlock();
+                }
+            }
+        }
+    }
+
+    public int insertTransaction(int fromId, String paymentId, long amount, String status, String message) throws SQLException {
+        Transaction t = new Transaction();
+        t.setId(transactionIds.incrementAndGet());
+        t.setFromId(fromId);
+        t.setPaymentId(paymentId);
+        t.setAmount(amount);
+        t.setDateCreated(new Timestamp(System.currentTimeMillis()));
+        t.setStatus(status);
+        t.setMessage(message);
+
+        if(transactionsByPaymentId.putIfAbsent(paymentId, t) != null) {
+            throw new SQLException("Duplicate entry '" + paymentId + "' for key 'payment_id'", SQL_STATE_DUPLICATE, ER_DUP_ENTRY);
+        }
+        transactionsById.put(t.getId(), t);
+        List<Transaction> history = transactionsByAccount.get(fromId);
+        if(history == null) {
+            List<Transaction> created = new ArrayList<>();
+            history = transactionsByAccount.putIfAbsent(fromId, created);
+            if(history == null) {
+                history = created;
+            }
+        }
+        synchronized (history) {
+            history.add(t);
+        }
+
+        logger.debug("Transaction: " + paymentId + " has been added");
+        return t.getId();
+    }
+
+    public int insertTransactionIfAbsent(int fromId, String paymentId, long amount, String status, String message) throws SQLException {
+        try {
+            return insertTransaction(fromId, paymentId, amount, status, message);
+        } catch (SQLException e) {
+            if(e.getErrorCode() != ER_DUP_ENTRY) {
+                throw e;
+            }
+            return 0;
+        }
+    }
+
+    public int linkTransactionDestination(String accountNumber, int transactionId, long amount, String message) {
+        AccountTransaction at = new AccountTransaction();
+        at.setId(destinationIds.incrementAndGet());
+        at.setToId(getUserAccountByNumber(accountNumber).getId());
+        at.setTransactionId(transactionId);
+        at.setAmount(amount);
+        at.setMessage(message);
+        at.setToAccountNumber(accountNumber);
+
+        List<AccountTransaction> destinations = destinationsByTransaction.get(transactionId);
+        if(destinations == null) {
+            List<AccountTransaction> created = new ArrayList<>();
+            destinations = destinationsByTransaction.putIfAbsent(transactionId, created);
+            if(destinations == null) {
+                destinations = created;
+            }
+        }
+        synchronized (destinations) {
+            destinations.add(at);
+        }
+
+        logger.debug("Transaction destination: " + accountNumber + " has been added");
+        return at.getId();
+    }
+
+    public ArrayList<AccountTransaction> getTransactionDestinations(int transactionId) {
+        ArrayList<AccountTransaction> destinations = getTransactionDestinationsWithAccounts(transactionId);
+        for(AccountTransaction at : destinations) {
+            at.setToAccountNumber(null);
+        }
+
+        return destinations;
+    }
+
+    public ArrayList<AccountTransaction> getTransactionDestinationsWithAccounts(int transactionId) {
+        ArrayList<AccountTransaction> copies = new ArrayList<>();
+        List<AccountTransaction> destinations = destinationsByTransaction.get(transactionId);
+        if(destinations != null) {
+            synchronized (destinations) {
+                for(AccountTransaction at : destinations) {
+                    copies.add(copy(at));
+                }
+            }
+        }
+
+        return copies;
+    }
+
+    public Transaction getTransactionByPaymentId(String paymentId) {
+        Transaction t = paymentId == null ? null : transactionsByPaymentId.get(paymentId);
+
+        return t == null ? new Transaction() : copy(t);
+    }
+
+    public ArrayList<Transaction> getTransactionsByAccNumberStatus(String accountNumber, String status) {
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for(Transaction t : getHistory(getUserAccountByNumber(accountNumber).getId())) {
+            if(status.equals(t.getStatus())) {
+                transactions.add(t);
+            }
+        }
+        Collections.sort(transactions, NEWEST_FIRST);
+
+        return transactions;
+    }
+
+    public void updateTransactionStatus(int id, String status, String date) {
+        Transaction t = transactionsById.get(id);
+        if(t == null) {
+            return;
+        }
+
+        synchronized (t) {
+            t.setStatus(status);
+            t.setDateRealized(Timestamp.valueOf(date));
+        }
+        logger.debug("A transaction status was updated successfully!");
+    }
+
+    public boolean transitionTransactionStatus(String paymentId, PaymentStatus status, String date) {
+        Transaction t = paymentId == null ? null : transactionsByPaymentId.get(paymentId);
+        if(t == null) {
+            return false;
+        }
+
+        synchronized (t) {
+            PaymentStatus current = PaymentStatus.fromValue(t.getStatus());
+            if(current == null || !current.canChangeTo(status)) {
+                return false;
+            }
+            t.setStatus(status.getValue());
+            t.setDateRealized(Timestamp.valueOf(date));
+        }
+
+        return true;
+    }
+
+    public ArrayList<Transaction> getHistory(int accountId) {
+        ArrayList<Transaction> copies = new ArrayList<>();
+        List<Transaction> history = transactionsByAccount.get(accountId);
+        if(history != null) {
+            synchronized (history) {
+                for(Transaction t : history) {
+                    copies.add(copy(t));
+                }
+            }
+        }
+
+        return copies;
+    }
+
+    public ArrayList<Transaction> getHistoryWithDestinations(int accountId) {
+        ArrayList<Transaction> transactions = getHistory(accountId);
+        for(Transaction t : transactions) {
+            t.setDestinations(getTransactionDestinationsWithAccounts(t.getId()));
+        }
+
+        return transactions;
+    }
+
+    public ArrayList<Transaction> getHistoryPage(int accountId, HistoryQuery query) {
+        ArrayList<Transaction> page = new ArrayList<>();
+        for(Transaction t : getHistory(accountId)) {
+            Date created = t.getDateCreated();
+            boolean inWindow = !created.before(query.getFrom()) && created.before(query.getTo());
+            boolean afterCursor = created.before(query.getCursorDate()) ||
+                    (created.getTime() == query.getCursorDate().getTime() && t.getId() < query.getCursorId());
+            if(inWindow && afterCursor) {
+                page.add(t);
+            }
+        }
+        Collections.sort(page, NEWEST_FIRST);
+
+        ArrayList<Transaction> transactions = new ArrayList<>(page.subList(0, Math.min(page.size(), query.getPageSize() + 1)));
+        for(Transaction t : transactions) {
+            t.setDestinations(getTransactionDestinationsWithAccounts(t.getId()));
+        }
+
+        return transactions;
+    }
+
+    public SettlementMetrics getSettlementMetrics() {
+        return settlementMetrics;
+    }
+
+    public void shutdown() {
+        logger.info("In-memory storage closed, all data are lost");
+    }
+
+
+    /**
+     * Load banks and accounts from {@link #SEED_FILE}
+     */
+    private void seed() throws IOException, SQLException {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(SEED_FILE);
+        if(inputStream == null) {
+            throw new IOException("Seed file '" + SEED_FILE + "' not found in the classpath");
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] values = line.split(";");
+                if(values[0].equals("bank") && values.length == 4) {
+                    Bank bank = new Bank();
+                    bank.setId(banks.size() + 1);
+                    bank.setBic(values[1]);
+                    bank.setShortName(values[2]);
+                    bank.setName(values[3]);
+                    banks.add(bank);
+                }
+                else if(values[0].equals("account") && values.length == 4) {
+                    addAccount(getBankByBic(values[1]).getId(), values[2], Money.parse(values[3]));
+                }
+                else {
+                    throw new SQLException("Wrong line in seed file: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add account if account number does not exist yet
+     * @return StoredAccount, null if account number already exists
+     */
+    private StoredAccount addAccount(int bankId, String accountNumber, long balance) {
+        StoredAccount stored = new StoredAccount(accountIds.incrementAndGet(), bankId, accountNumber, balance);
+        if(accountsByNumber.putIfAbsent(accountNumber, stored) != null) {
+            return null;
+        }
+        accountsById.put(stored.id, stored);
+
+        return stored;
+    }
+
+    private static final Comparator<Transaction> NEWEST_FIRST = new Comparator<Transaction>() {
+        @Override
+        public int compare(Transaction a, Transaction b) {
+            int byDate = b.getDateCreated().compareTo(a.getDateCreated());
+            return byDate != 0 ? byDate : Integer.compare(b.getId(), a.getId());
+        }
+    };
+
+    private static Bank copy(Bank bank) {
+        Bank copy = new Bank();
+        copy.setId(bank.getId());
+        copy.setBic(bank.getBic());
+        copy.setShortName(bank.getShortName());
+        copy.setName(bank.getName());
+
+        return copy;
+    }
+
+    private static Transaction copy(Transaction t) {
+        Transaction copy = new Transaction();
+        synchronized (t) {
+            copy.setId(t.getId());
+            copy.setFromId(t.getFromId());
+            copy.setPaymentId(t.getPaymentId());
+            copy.setAmount(t.getAmount());
+            copy.setDateCreated(t.getDateCreated());
+            copy.setDateRealized(t.getDateRealized());
+            copy.setStatus(t.getStatus());
+            copy.setMessage(t.getMessage());
+        }
+
+        return copy;
+    }
+
+    private static AccountTransaction copy(AccountTransaction at) {
+        AccountTransaction copy = new AccountTransaction();
+        copy.setId(at.getId());
+        copy.setToId(at.getToId());
+        copy.setTransactionId(at.getTransactionId());
+        copy.setAmount(at.getAmount());
+        copy.setMessage(at.getMessage());
+        copy.setToAccountNumber(at.getToAccountNumber());
+
+        return copy;
+    }
+
+
+    /**
+     * Account with own lock, balance is changed and read only under the lock
+     */
+    private static final class StoredAccount {
+        private final int id;
+        private final int bankId;
+        private final String accountNumber;
+        private final Timestamp dateCreated = new Timestamp(System.currentTimeMillis());
+        private final ReentrantLock lock = new ReentrantLock();
+        private long balance;
+
+        private StoredAccount(int id, int bankId, String accountNumber, long balance) {
+            this.id = id;
+            this.bankId = bankId;
+            this.accountNumber = accountNumber;
+            this.balance = balance;
+        }
+
+        private Account copy() {
+            Account acc = new Account();
+            acc.setId(id);
+            acc.setBankId(bankId);
+            acc.setAccountNumber(accountNumber);
+            acc.setDateCreated(dateCreated);
+            lock.lock();
+            try {
+                acc.setBalance(balance);
+            } finally {
+                lock.unlock();
+            }
+
+            return acc;
+        }
+    }
+}
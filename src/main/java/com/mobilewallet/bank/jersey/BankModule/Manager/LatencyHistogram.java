@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in microseconds
+ * Every power of two is split into {@link #SUB_BUCKETS} linear buckets, so percentiles are accurate to 12.5 %
+ * Recording does not allocate, so it can be used on every database call
+ * @author Martin Stepanek
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * Record one latency
+     * @param nanos long, latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long currentMax;
+        while(micros > (currentMax = max.get()) && !max.compareAndSet(currentMax, micros)) {
+            // retry until max is updated by this or other thread
+        }
+    }
+
+    /**
+     * Get number of recorded latencies
+     * @return long, count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get mean latency
+     * @return double, mean in microseconds
+     */
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Get max latency
+     * @return long, max in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+
+    /**
+     * Get latency percentile, upper bound of bucket where percentile falls is returned
+     * @param percentile double, between 0 and 100
+     * @return long, latency in microseconds
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if(total == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= Math.max(1, target)) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+
+    /**
+     * Bucket index of value, values lower than {@link #SUB_BUCKETS} have own bucket
+     */
+    private static int index(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Highest value stored in bucket with given index
+     */
+    private static long upperBound(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+
+        return (1L << exponent) + ((long) (sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
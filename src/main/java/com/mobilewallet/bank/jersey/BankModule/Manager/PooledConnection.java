@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Physical database connection owned by {@link ConnectionPool}
+ * Instance is leased by one thread at a time and must be returned with {@link ConnectionPool#release(PooledConnection)}
+ * Prepared statements are cached per connection and closed together with the connection
+ * Executions of statements are measured by {@link SlowQueryLog}
+ * @author Martin Stepanek
+ */
+public class PooledConnection {
+
+    private final int id;
+    private final Connection connection;
+    private final long created;
+    private volatile long lastUsed;
+
+    /**
+     * Counter of statements executed through all connections of the pool, shared with {@link ConnectionPool}
+     */
+    private final AtomicLong statementCounter;
+
+    /**
+     * Prepared statements of this connection by SQL, statements returning generated keys are stored separately
+     */
+    private final ConcurrentHashMap<String, PreparedStatement> statements = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PreparedStatement> keyStatements = new ConcurrentHashMap<>();
+
+
+    /**
+     * PooledConnection constructor
+     * @param id int, id of connection in pool used for logging
+     * @param connection opened JDBC connection
+     * @param statementCounter AtomicLong, counter of statements shared by whole pool
+     */
+    PooledConnection(int id, Connection connection, AtomicLong statementCounter) {
+        this.id = id;
+        this.connection = connection;
+        this.statementCounter = statementCounter;
+        this.created = System.currentTimeMillis();
+        this.lastUsed = created;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Get prepared statement for given SQL, statement is prepared only on first use on this connection
+     * Statement must not be closed by caller, only its ResultSet
+     * Every call is counted as one database round trip
+     * @param sql String, SQL from {@link StatementCatalog}
+     * @return PreparedStatement with cleared parameters
+     * @throws SQLException on SQL error
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if(statement == null) {
+            statement = SlowQueryLog.getInstance().trace(sql, connection.prepareStatement(sql));
+            statements.put(sql, statement);
+        }
+        else {
+            statement.clearParameters();
+        }
+
+        statementCounter.incrementAndGet();
+        return statement;
+    }
+
+
+    /**
+     * Get prepared statement returning generated keys for given SQL {@see #prepare(String)}
+     * @param sql String, SQL from {@link StatementCatalog}
+     * @return PreparedStatement with cleared parameters
+     * @throws SQLException on SQL error
+     */
+    public PreparedStatement prepareWithKeys(String sql) throws SQLException {
+        PreparedStatement statement = keyStatements.get(sql);
+        if(statement == null) {
+            statement = SlowQueryLog.getInstance().trace(sql, connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS));
+            keyStatements.put(sql, statement);
+        }
+        else {
+            statement.clearParameters();
+        }
+
+        statementCounter.incrementAndGet();
+        return statement;
+    }
+
+
+    /**
+     * Get number of statements opened on this connection
+     * @return int, number of opened statements
+     */
+    public int getOpenStatementCount() {
+        return statements.size() + keyStatements.size();
+    }
+
+
+    /**
+     * Mark connection as used right now
+     */
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Check if connection is still alive, driver will ping the server
+     * @param timeout int, timeout in seconds
+     * @return boolean, true if connection can be used
+     */
+    boolean isValid(int timeout) {
+        try {
+            return !connection.isClosed() && connection.isValid(timeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Close physical connection, errors are ignored as connection is thrown away anyway
+     */
+    void closeQuietly() {
+        closeStatements(statements);
+        closeStatements(keyStatements);
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private void closeStatements(ConcurrentHashMap<String, PreparedStatement> cache) {
+        for(PreparedStatement statement : cache.values()) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        cache.clear();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Account;
+import com.mobilewallet.bank.jersey.BankModule.Model.Bank;
+import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, errors and returned rows of every data method of {@link BankStorage}
+ * Storage is wrapped by dynamic proxy, every method that throws SQLException is measured by own {@link LatencyHistogram}.
+ * Name of running method is kept per thread, so {@link SlowQueryLog} knows which method executed slow statement
+ * @author Martin Stepanek
+ */
+public class QueryMetrics implements InvocationHandler {
+
+    private static final ThreadLocal<String> CURRENT_METHOD = new ThreadLocal<>();
+
+    private final BankStorage storage;
+    private final Map<Method, MethodStats> stats = new HashMap<>();
+
+
+    /**
+     * QueryMetrics constructor
+     * @param storage BankStorage, measured storage
+     */
+    public QueryMetrics(BankStorage storage) {
+        this.storage = storage;
+        for(Method method : BankStorage.class.getMethods()) {
+            if(Arrays.asList(method.getExceptionTypes()).contains(SQLException.class)) {
+                stats.put(method, new MethodStats(method.getName()));
+            }
+        }
+    }
+
+    /**
+     * Create measured storage
+     * @return BankStorage, proxy that measures calls and passes them to storage
+     */
+    public BankStorage proxy() {
+        return (BankStorage) Proxy.newProxyInstance(BankStorage.class.getClassLoader(), new Class<?>[]{BankStorage.class}, this);
+    }
+
+    /**
+     * Get name of storage method running in current thread
+     * @return String, name of method or null
+     */
+    public static String currentMethod() {
+        return CURRENT_METHOD.get();
+    }
+
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        MethodStats methodStats = stats.get(method);
+        if(methodStats == null) {
+            return call(method, args);
+        }
+
+        String outer = CURRENT_METHOD.get();
+        CURRENT_METHOD.set(methodStats.name);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = call(method, args);
+            methodStats.rows.addAndGet(rows(result));
+            failed = false;
+
+            return result;
+        } finally {
+            methodStats.latency.record(System.nanoTime() - start);
+            if(failed) {
+                methodStats.errors.incrementAndGet();
+            }
+            CURRENT_METHOD.set(outer);
+        }
+    }
+
+
+    /**
+     * Convert metrics of all called methods to json, latencies are in microseconds
+     * @return JSONObject, metrics by method name
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        TreeMap<String, MethodStats> byName = new TreeMap<>();
+        for(MethodStats methodStats : stats.values()) {
+            if(methodStats.latency.getCount() > 0) {
+                byName.put(methodStats.name, methodStats);
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        for(MethodStats methodStats : byName.values()) {
+            JSONObject method = new JSONObject();
+            method.put("calls", methodStats.latency.getCount());
+            method.put("errors", methodStats.errors.get());
+            method.put("rows", methodStats.rows.get());
+            method.put("mean", methodStats.latency.getMean());
+            method.put("p50", methodStats.latency.getPercentile(50));
+            method.put("p99", methodStats.latency.getPercentile(99));
+            method.put("max", methodStats.latency.getMax());
+            json.put(methodStats.name, method);
+        }
+
+        return json;
+    }
+
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(storage, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Number of rows in result, objects that were not found have id 0 and are not counted
+     */
+    private static long rows(Object result) {
+        if(result instanceof Collection) {
+            return ((Collection) result).size();
+        }
+        if(result instanceof Map) {
+            return ((Map) result).size();
+        }
+        if(result instanceof Account) {
+            return ((Account) result).getId() != 0 ? 1 : 0;
+        }
+        if(result instanceof Transaction) {
+            return ((Transaction) result).getId() != 0 ? 1 : 0;
+        }
+        if(result instanceof Bank) {
+            return ((Bank) result).getId() != 0 ? 1 : 0;
+        }
+
+        return 0;
+    }
+
+
+    private static final class MethodStats {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+
+        private MethodStats(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Money;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Result of one run of {@link BalanceReconciler}, counters are updated by all chunks of the run
+ * Only first {@link #maxMismatches} mismatches are kept, all of them are counted
+ * @author Martin Stepanek
+ */
+public class ReconciliationReport {
+
+    public static final String RUNNING = "running";
+    public static final String FINISHED = "finished";
+    public static final String FAILED = "failed";
+
+    private final boolean full;
+    private final int maxMismatches;
+    private final long started = System.currentTimeMillis();
+    private volatile long finished = 0;
+    private volatile String status = RUNNING;
+    private volatile String failure;
+
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong mismatchCount = new AtomicLong();
+
+    private final List<Mismatch> mismatches = new ArrayList<>();
+
+
+    /**
+     * ReconciliationReport constructor
+     * @param full boolean, true if all accounts are checked, false if only accounts touched since last run
+     * @param maxMismatches int, maximum number of kept mismatches
+     */
+    ReconciliationReport(boolean full, int maxMismatches) {
+        this.full = full;
+        this.maxMismatches = maxMismatches;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public long getMismatchCount() {
+        return mismatchCount.get();
+    }
+
+    void chunkDone(int accounts) {
+        chunks.incrementAndGet();
+        checked.addAndGet(accounts);
+    }
+
+    void opened() {
+        opened.incrementAndGet();
+    }
+
+    void inFlight() {
+        inFlight.incrementAndGet();
+    }
+
+    void mismatch(int accountId, long balance, long expected) {
+        mismatchCount.incrementAndGet();
+        synchronized (mismatches) {
+            if(mismatches.size() < maxMismatches) {
+                mismatches.add(new Mismatch(accountId, balance, expected));
+            }
+        }
+    }
+
+    void finish() {
+        finished = System.currentTimeMillis();
+        status = FINISHED;
+    }
+
+    void fail(String message) {
+        failure = message;
+        finished = System.currentTimeMillis();
+        status = FAILED;
+    }
+
+
+    /**
+     * Convert result of run to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("full", full);
+        json.put("status", status);
+        if(failure != null) {
+            json.put("failure", failure);
+        }
+        json.put("durationMs", (finished == 0 ? System.currentTimeMillis() : finished) - started);
+        json.put("chunks", chunks.get());
+        json.put("checked", checked.get());
+        json.put("opened", opened.get());
+        json.put("inFlight", inFlight.get());
+        json.put("mismatches", mismatchCount.get());
+
+        JSONArray mismatchesJson = new JSONArray();
+        synchronized (mismatches) {
+            for(Mismatch mismatch : mismatches) {
+                JSONObject mismatchJson = new JSONObject();
+                mismatchJson.put("accountId", mismatch.accountId);
+                mismatchJson.put("balance", Money.format(mismatch.balance));
+                mismatchJson.put("expected", Money.format(mismatch.expected));
+                mismatchJson.put("difference", Money.format(mismatch.balance - mismatch.expected));
+                mismatchesJson.put(mismatchJson);
+            }
+        }
+        json.put("accounts", mismatchesJson);
+        json.put("accountsTruncated", mismatchCount.get() > mismatchesJson.length());
+
+        return json;
+    }
+
+
+    private static final class Mismatch {
+        private final int accountId;
+        private final long balance;
+        private final long expected;
+
+        private Mismatch(int accountId, long balance, long expected) {
+            this.accountId = accountId;
+            this.balance = balance;
+            this.expected = expected;
+        }
+    }
+}
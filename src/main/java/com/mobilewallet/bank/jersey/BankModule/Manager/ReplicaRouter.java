@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routing of read-only queries to database replicas
+ * Replication lag of every replica is checked periodically, replica is used only if its lag is not bigger than {@link #maxLag}.
+ *
+ * Writes of accounts and transactions are remembered for {@link #maxLag} plus check interval, reads of them go to primary,
+ * so account always sees its own latest writes. Other reads could be stale at most by {@link #maxLag}
+ * @author Martin Stepanek
+ */
+public class ReplicaRouter {
+
+    private final Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxLag;
+    private final long stickyWindow;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService monitor;
+
+    /**
+     * Time of last write by account number, account id, transaction id and payment id
+     */
+    private final ConcurrentHashMap<String, Long> accountNumberWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Long> accountWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Long> transactionWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> paymentWrites = new ConcurrentHashMap<>();
+
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong primaryReads = new AtomicLong();
+    private final AtomicLong rereads = new AtomicLong();
+
+
+    /**
+     * ReplicaRouter constructor, starts lag monitor
+     * @param urls List of replica urls
+     * @param pools List of ConnectionPool, pool of every replica url
+     * @param maxLag long, maximum tolerated replication lag in milliseconds
+     * @param checkInterval long, time between lag checks in milliseconds
+     */
+    public ReplicaRouter(List<String> urls, List<ConnectionPool> pools, long maxLag, long checkInterval) {
+        for(int i = 0; i < urls.size(); i++) {
+            replicas.add(new Replica(urls.get(i), pools.get(i)));
+        }
+        this.maxLag = maxLag;
+        // lag could grow unnoticed until the next check
+        this.stickyWindow = maxLag + checkInterval;
+
+        checkLag();
+        monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "db-replica-monitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        monitor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkLag();
+                expireWrites();
+            }
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+
+        logger.info("Read replicas: " + replicas.size() + ", max lag: " + maxLag + " ms");
+    }
+
+
+    /**
+     * Choose pool for read
+     * @param sticky boolean, true if read has to see latest writes
+     * @return ConnectionPool of replica, null if read has to go to primary
+     */
+    public ConnectionPool choose(boolean sticky) {
+        if(!sticky) {
+            int size = replicas.size();
+            int start = next.getAndIncrement();
+            for(int i = 0; i < size; i++) {
+                Replica replica = replicas.get(Math.abs((start + i) % size));
+                if(replica.healthy) {
+                    replicaReads.incrementAndGet();
+                    return replica.pool;
+                }
+            }
+        }
+
+        primaryReads.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Count read that was repeated on primary, because replica returned data older than own writes
+     */
+    public void reread() {
+        rereads.incrementAndGet();
+    }
+
+    public void accountWritten(String accountNumber) {
+        accountNumberWrites.put(accountNumber, System.currentTimeMillis());
+    }
+
+    public void accountWritten(int accountId) {
+        accountWrites.put(accountId, System.currentTimeMillis());
+    }
+
+    public void transactionWritten(int transactionId) {
+        transactionWrites.put(transactionId, System.currentTimeMillis());
+    }
+
+    public void paymentWritten(String paymentId) {
+        paymentWrites.put(paymentId, System.currentTimeMillis());
+    }
+
+    public boolean isRecentlyWritten(String accountNumber) {
+        return isRecent(accountNumberWrites.get(accountNumber));
+    }
+
+    public boolean isRecentlyWritten(int accountId) {
+        return isRecent(accountWrites.get(accountId));
+    }
+
+    public boolean isRecentlyWrittenTransaction(int transactionId) {
+        return isRecent(transactionWrites.get(transactionId));
+    }
+
+    /**
+     * Check if any of transactions read from replica was written recently
+     * @param transactions Collection of Transaction
+     * @return boolean, true if transactions have to be read from primary
+     */
+    public boolean containsRecentlyWritten(Collection<Transaction> transactions) {
+        if(transactionWrites.isEmpty() && paymentWrites.isEmpty()) {
+            return false;
+        }
+        for(Transaction t : transactions) {
+            if(isRecentlyWrittenTransaction(t.getId()) || (t.getPaymentId() != null && isRecent(paymentWrites.get(t.getPaymentId())))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Stop lag monitor and close replica pools
+     */
+    public void close() {
+        monitor.shutdownNow();
+        for(Replica replica : replicas) {
+            replica.pool.close();
+        }
+    }
+
+
+    /**
+     * Convert routing statistics to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("maxLagMs", maxLag);
+        json.put("replicaReads", replicaReads.get());
+        json.put("primaryReads", primaryReads.get());
+        json.put("rereads", rereads.get());
+        json.put("recentWrites", accountNumberWrites.size() + accountWrites.size() + transactionWrites.size() + paymentWrites.size());
+
+        JSONArray replicasJson = new JSONArray();
+        for(Replica replica : replicas) {
+            JSONObject replicaJson = new JSONObject();
+            replicaJson.put("url", replica.url);
+            replicaJson.put("healthy", replica.healthy);
+            replicaJson.put("lagMs", replica.lag);
+            replicasJson.put(replicaJson);
+        }
+        json.put("replicas", replicasJson);
+
+        return json;
+    }
+
+
+    private boolean isRecent(Long written) {
+        return written != null && System.currentTimeMillis() - written <= stickyWindow;
+    }
+
+    /**
+     * Read Seconds_Behind_Master of every replica, replica without running replication is not used
+     * Database that is not replica at all has no status row and is considered up to date
+     */
+    private void checkLag() {
+        for(Replica replica : replicas) {
+            long lag = -1;
+            PooledConnection pc = null;
+            try {
+                pc = replica.pool.lease();
+                PreparedStatement statement = pc.prepare(StatementCatalog.SHOW_REPLICA_STATUS);
+                try (ResultSet result = statement.executeQuery()) {
+                    if(!result.next()) {
+                        lag = 0;
+                    }
+                    else {
+                        long seconds = result.getLong("Seconds_Behind_Master");
+                        lag = result.wasNull() ? -1 : seconds * 1000;
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Error while checking lag of replica " + replica.url + ": ", e);
+            } finally {
+                replica.pool.release(pc);
+            }
+
+            boolean healthy = lag >= 0 && lag <= maxLag;
+            if(healthy != replica.healthy) {
+                logger.info("Replica " + replica.url + (healthy ? " is used" : " is not used") + ", lag: " + lag + " ms");
+            }
+            replica.lag = lag;
+            replica.healthy = healthy;
+        }
+    }
+
+    private void expireWrites() {
+        long oldest = System.currentTimeMillis() - stickyWindow;
+        expire(accountNumberWrites, oldest);
+        expire(accountWrites, oldest);
+        expire(transactionWrites, oldest);
+        expire(paymentWrites, oldest);
+    }
+
+    private static <K> void expire(ConcurrentHashMap<K, Long> writes, long oldest) {
+        for(Map.Entry<K, Long> write : writes.entrySet()) {
+            // newer write of the same key is kept
+            if(write.getValue() < oldest) {
+                writes.remove(write.getKey(), write.getValue());
+            }
+        }
+    }
+
+
+    private static final class Replica {
+        private final String url;
+        private final ConnectionPool pool;
+        private volatile boolean healthy = false;
+        private volatile long lag = -1;
+
+        private Replica(String url, ConnectionPool pool) {
+            this.url = url;
+            this.pool = pool;
+        }
+    }
+}
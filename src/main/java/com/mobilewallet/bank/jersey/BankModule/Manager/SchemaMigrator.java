@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies versioned schema migrations on startup
+ * Migrations are listed in {@link #MIGRATIONS_LIST} in the order of versions, every applied migration is stored
+ * in {@link #SCHEMA_VERSION_TABLE} with checksum of its script. Migrations are not applied if checksum of already
+ * applied script was changed.
+ * @author Martin Stepanek
+ */
+public class SchemaMigrator {
+
+    public static final String SCHEMA_VERSION_TABLE = "schema_version";
+
+    private static final String MIGRATIONS_LIST = "db/migrations.txt";
+    private static final String MIGRATIONS_DIR = "db/migration/";
+
+    /**
+     * Lock that allows only one bank server to migrate database at a time, timeout in seconds
+     */
+    private static final String LOCK_NAME = "bank_schema_migration";
+    private static final int LOCK_TIMEOUT = 60;
+
+    private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS " + SCHEMA_VERSION_TABLE + " (" +
+            "version int(11) NOT NULL, " +
+            "description varchar(100) NOT NULL, " +
+            "checksum varchar(64) NOT NULL, " +
+            "execution_time int(11) NOT NULL, " +
+            "installed_on timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+            "PRIMARY KEY (version))";
+    private static final String SELECT_VERSIONS = "SELECT version, checksum FROM " + SCHEMA_VERSION_TABLE;
+    private static final String INSERT_VERSION = "INSERT INTO " + SCHEMA_VERSION_TABLE + " (version, description, checksum, execution_time) VALUES (?, ?, ?, ?)";
+
+    private final Logger logger = LoggerFactory.getLogger(SchemaMigrator.class);
+
+    private final ConnectionPool pool;
+
+
+    /**
+     * SchemaMigrator constructor
+     * @param pool ConnectionPool, pool of database to migrate
+     */
+    public SchemaMigrator(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+
+    /**
+     * Apply all migrations that were not applied yet
+     * @return int, number of applied migrations
+     * @throws SQLException on SQL error or if applied migration was changed
+     * @throws IOException if migration script can not be read
+     */
+    public int migrate() throws SQLException, IOException {
+        List<Migration> migrations = loadMigrations();
+        int applied = 0;
+
+        PooledConnection pc = pool.lease();
+        Connection conn = pc.getConnection();
+        try {
+            lock(conn);
+            try (Statement statement = conn.createStatement()) {
+                statement.execute(CREATE_VERSION_TABLE);
+            }
+
+            Map<Integer, String> checksums = new HashMap<>();
+            try (Statement statement = conn.createStatement();
+                 ResultSet result = statement.executeQuery(SELECT_VERSIONS)) {
+                while (result.next()) {
+                    checksums.put(result.getInt(1), result.getString(2));
+                }
+            }
+
+            // all applied migrations are validated before anything is changed
+            for(Migration migration : migrations) {
+                String checksum = checksums.get(migration.version);
+                if(checksum != null && !checksum.equals(migration.checksum)) {
+                    throw new SQLException("Migration " + migration.name + " was changed after it was applied, checksum "
+                            + migration.checksum + " does not match " + checksum);
+                }
+            }
+
+            for(Migration migration : migrations) {
+                if(!checksums.containsKey(migration.version)) {
+                    apply(conn, migration);
+                    applied++;
+                }
+            }
+        } finally {
+            unlock(conn);
+            pool.release(pc);
+        }
+
+        logger.info("Database schema is up to date, applied migrations: " + applied);
+        return applied;
+    }
+
+
+    /**
+     * Run EXPLAIN for hot queries and log every query that reads the whole table
+     * @param queries Map, SQL of query to sample parameters
+     * @return List of String, queries with full table scan
+     * @throws SQLException on SQL error
+     */
+    public List<String> checkQueryPlans(Map<String, Object[]> queries) throws SQLException {
+        List<String> fullScans = new ArrayList<>();
+
+        PooledConnection pc = pool.lease();
+        try {
+            for(Map.Entry<String, Object[]> query : queries.entrySet()) {
+                try (PreparedStatement statement = pc.getConnection().prepareStatement("EXPLAIN " + query.getKey())) {
+                    Object[] parameters = query.getValue();
+                    for(int i = 0; i < parameters.length; i++) {
+                        statement.setObject(i + 1, parameters[i]);
+                    }
+
+                    try (ResultSet result = statement.executeQuery()) {
+                        while (result.next()) {
+                            if("ALL".equalsIgnoreCase(result.getString("type"))) {
+                                logger.warn("Full scan of table " + result.getString("table") + " in query: " + query.getKey());
+                                fullScans.add(query.getKey());
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.release(pc);
+        }
+
+        return fullScans;
+    }
+
+
+    private void apply(Connection conn, Migration migration) throws SQLException {
+        logger.info("Applying migration " + migration.name);
+        long start = System.currentTimeMillis();
+
+        try (Statement statement = conn.createStatement()) {
+            for(String sql : migration.statements) {
+                statement.execute(sql);
+            }
+        }
+
+        try (PreparedStatement statement = conn.prepareStatement(INSERT_VERSION)) {
+            statement.setInt(1, migration.version);
+            statement.setString(2, migration.description);
+            statement.setString(3, migration.checksum);
+            statement.setInt(4, (int) (System.currentTimeMillis() - start));
+            statement.executeUpdate();
+        }
+    }
+
+    private void lock(Connection conn) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            statement.setString(1, LOCK_NAME);
+            statement.setInt(2, LOCK_TIMEOUT);
+            try (ResultSet result = statement.executeQuery()) {
+                if(!result.next() || result.getInt(1) != 1) {
+                    throw new SQLException("Timeout while waiting for schema migration lock");
+                }
+            }
+        }
+    }
+
+    private void unlock(Connection conn) {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            statement.setString(1, LOCK_NAME);
+            statement.executeQuery().close();
+        } catch (SQLException e) {
+            logger.error("Error while releasing schema migration lock: ", e);
+        }
+    }
+
+
+    /**
+     * Read all migrations listed in {@link #MIGRATIONS_LIST}
+     * @return List of Migration, ordered by version
+     * @throws IOException if list or script can not be read or versions are not ordered
+     */
+    private List<Migration> loadMigrations() throws IOException {
+        List<Migration> migrations = new ArrayList<>();
+        int lastVersion = 0;
+
+        for(String line : readLines(MIGRATIONS_LIST)) {
+            String name = line.trim();
+            if(name.isEmpty() || name.startsWith("#")) {
+                continue;
+            }
+
+            Migration migration = new Migration(name, readLines(MIGRATIONS_DIR + name));
+            if(migration.version <= lastVersion) {
+                throw new IOException("Migration " + name + " is not ordered by version");
+            }
+            lastVersion = migration.version;
+            migrations.add(migration);
+        }
+
+        return migrations;
+    }
+
+    private List<String> readLines(String resource) throws IOException {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(resource);
+        if(inputStream == null) {
+            throw new IOException("Resource '" + resource + "' not found in the classpath");
+        }
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+
+        return lines;
+    }
+
+
+    /**
+     * One migration script, statements are separated by semicolon at the end of line
+     */
+    private static final class Migration {
+        private final String name;
+        private final int version;
+        private final String description;
+        private final String checksum;
+        private final List<String> statements = new ArrayList<>();
+
+        private Migration(String name, List<String> lines) throws IOException {
+            this.name = name;
+
+            int separator = name.indexOf("__");
+            if(!name.startsWith("V") || separator < 0 || !name.endsWith(".sql")) {
+                throw new IOException("Wrong name of migration " + name + ", expected V<version>__<description>.sql");
+            }
+            try {
+                this.version = Integer.parseInt(name.substring(1, separator));
+            } catch (NumberFormatException e) {
+                throw new IOException("Wrong version of migration " + name);
+            }
+            this.description = name.substring(separator + 2, name.length() - 4).replace('_', ' ');
+
+            StringBuilder content = new StringBuilder();
+            StringBuilder sql = new StringBuilder();
+            for(String line : lines) {
+                content.append(line).append('\n');
+
+                String trimmed = line.trim();
+                if(trimmed.isEmpty() || trimmed.startsWith("--")) {
+                    continue;
+                }
+                sql.append(line).append('\n');
+                if(trimmed.endsWith(";")) {
+                    statements.add(sql.substring(0, sql.lastIndexOf(";")).trim());
+                    sql.setLength(0);
+                }
+            }
+            if(sql.toString().trim().length() > 0) {
+                statements.add(sql.toString().trim());
+            }
+
+            this.checksum = sha256(content.toString());
+        }
+
+        private static String sha256(String content) throws IOException {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for(byte b : hash) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 is not supported", e);
+            }
+        }
+    }
+}
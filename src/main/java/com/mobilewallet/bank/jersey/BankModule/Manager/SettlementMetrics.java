@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and latency of payment settlement, latency is measured separately by number of payment destinations
+ * @author Martin Stepanek
+ */
+public class SettlementMetrics {
+
+    /**
+     * Upper bounds of destination count groups, last group holds all bigger payments
+     */
+    private static final int[] DESTINATION_GROUPS = {1, 5, 20};
+    private static final String[] GROUP_NAMES = {"1", "2-5", "6-20", ">20"};
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[GROUP_NAMES.length];
+    private final AtomicLong settled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long started = System.currentTimeMillis();
+
+
+    public SettlementMetrics() {
+        for(int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record one settlement
+     * @param destinations int, number of payment destinations
+     * @param nanos long, duration of settlement in nanoseconds
+     * @param success boolean, whether payment was settled
+     */
+    public void record(int destinations, long nanos, boolean success) {
+        if(success) {
+            settled.incrementAndGet();
+            latencies[group(destinations)].record(nanos);
+        }
+        else {
+            failed.incrementAndGet();
+        }
+    }
+
+    public long getSettled() {
+        return settled.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Get average number of settled payments per second since start
+     * @return double, payments per second
+     */
+    public double getThroughput() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        return settled.get() * 1000.0 / elapsed;
+    }
+
+
+    /**
+     * Convert metrics to json, latencies are in microseconds
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("settled", settled.get());
+        json.put("failed", failed.get());
+        json.put("throughput", getThroughput());
+
+        JSONObject groups = new JSONObject();
+        for(int i = 0; i < latencies.length; i++) {
+            JSONObject group = new JSONObject();
+            group.put("count", latencies[i].getCount());
+            group.put("mean", latencies[i].getMean());
+            group.put("p50", latencies[i].getPercentile(50));
+            group.put("p99", latencies[i].getPercentile(99));
+            group.put("max", latencies[i].getMax());
+            groups.put(GROUP_NAMES[i], group);
+        }
+        json.put("latencyByDestinations", groups);
+
+        return json;
+    }
+
+    private static int group(int destinations) {
+        for(int i = 0; i < DESTINATION_GROUPS.length; i++) {
+            if(destinations <= DESTINATION_GROUPS[i]) {
+                return i;
+            }
+        }
+
+        return DESTINATION_GROUPS.length;
+    }
+}
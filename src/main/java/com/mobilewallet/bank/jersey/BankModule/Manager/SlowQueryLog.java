@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Log of statements slower than SLOW_QUERY_MS, the last SLOW_QUERY_LOG_SIZE statements are kept in memory
+ * Prepared statements are wrapped by proxy that remembers bind values and measures every execution.
+ * Bind values are redacted, only ids, limits and dates are kept, strings keep last 4 characters and amounts are hidden
+ * @author Martin Stepanek
+ */
+public class SlowQueryLog {
+
+    private final Logger logger = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    private static SlowQueryLog instance;
+
+    private final long thresholdNanos;
+    private final boolean redact;
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+
+
+    /**
+     * SlowQueryLog constructor
+     */
+    private SlowQueryLog() {
+        ConfigManager cm = ConfigManager.getInstance();
+        thresholdNanos = cm.getIntPropValues("SLOW_QUERY_MS", 200) * 1000000L;
+        redact = Boolean.parseBoolean(cm.getPropValues("SLOW_QUERY_REDACT", "true"));
+        entries = new AtomicReferenceArray<>(Math.max(1, cm.getIntPropValues("SLOW_QUERY_LOG_SIZE", 100)));
+    }
+
+
+    /**
+     * Method for returning singleton instance
+     * @return SlowQueryLog
+     */
+    public static synchronized SlowQueryLog getInstance() {
+        if(instance == null) {
+            instance = new SlowQueryLog();
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Wrap statement, so its slow executions are logged
+     * @param sql String, SQL of statement
+     * @param statement PreparedStatement, prepared statement
+     * @return PreparedStatement, proxy or the same statement if slow query log is disabled
+     */
+    public PreparedStatement trace(String sql, PreparedStatement statement) {
+        if(thresholdNanos <= 0) {
+            return statement;
+        }
+
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new StatementTracer(sql, statement));
+    }
+
+
+    /**
+     * Convert logged statements to json, the newest first, elapsed time is in microseconds
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("thresholdMs", thresholdNanos / 1000000);
+        json.put("executed", executed.get());
+        json.put("slow", logged.get());
+
+        JSONArray queries = new JSONArray();
+        long last = logged.get();
+        for(long i = last - 1; i >= Math.max(0, last - entries.length()); i--) {
+            Entry entry = entries.get((int) (i % entries.length()));
+            if(entry == null) {
+                continue;
+            }
+            JSONObject query = new JSONObject();
+            query.put("time", new Timestamp(entry.time).toString());
+            query.put("method", entry.method);
+            query.put("sql", entry.sql);
+            query.put("binds", entry.binds);
+            query.put("batch", entry.batch);
+            query.put("rows", entry.rows);
+            query.put("elapsed", entry.elapsedNanos / 1000);
+            queries.put(query);
+        }
+        json.put("queries", queries);
+
+        return json;
+    }
+
+
+    private void log(String sql, Object[] binds, int bindCount, int batch, long rows, long elapsedNanos) {
+        String bindText = formatBinds(binds, bindCount);
+        Entry entry = new Entry(System.currentTimeMillis(), QueryMetrics.currentMethod(), sql, bindText, batch, rows, elapsedNanos);
+        entries.set((int) (logged.getAndIncrement() % entries.length()), entry);
+
+        logger.warn("Slow query " + elapsedNanos / 1000000 + " ms in " + entry.method + ": " + sql + " " + bindText);
+    }
+
+    private String formatBinds(Object[] binds, int bindCount) {
+        StringBuilder sb = new StringBuilder("[");
+        for(int i = 1; i <= bindCount; i++) {
+            if(i > 1) {
+                sb.append(", ");
+            }
+            sb.append(redact ? redact(binds[i]) : String.valueOf(binds[i]));
+        }
+
+        return sb.append("]").toString();
+    }
+
+    private static String redact(Object value) {
+        if(value == null) {
+            return "NULL";
+        }
+        if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Date) {
+            return value.toString();
+        }
+        if(value instanceof BigDecimal || value instanceof Double || value instanceof Float) {
+            return "<number>";
+        }
+
+        String text = value.toString();
+        return text.length() <= 4 ? "****" : "****" + text.substring(text.length() - 4);
+    }
+
+
+    /**
+     * Proxy of one prepared statement, statement is used only by thread that leased its connection
+     */
+    private final class StatementTracer implements InvocationHandler {
+        private final String sql;
+        private final PreparedStatement statement;
+        private Object[] binds = new Object[8];
+        private int bindCount = 0;
+        private int batch = 0;
+
+        private StatementTracer(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if(args == null && name.startsWith("execute")) {
+                return execute(method);
+            }
+
+            if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+            }
+            else if(name.equals("clearParameters")) {
+                Arrays.fill(binds, null);
+                bindCount = 0;
+            }
+            else if(name.equals("addBatch") && args == null) {
+                batch++;
+            }
+
+            return call(method, args);
+        }
+
+        private Object execute(Method method) throws Throwable {
+            long start = System.nanoTime();
+            Object result = call(method, null);
+            long elapsed = System.nanoTime() - start;
+
+            executed.incrementAndGet();
+            if(elapsed >= thresholdNanos) {
+                log(sql, binds, bindCount, batch, rows(result), elapsed);
+            }
+            if(method.getName().equals("executeBatch")) {
+                batch = 0;
+            }
+
+            return result;
+        }
+
+        private void bind(int index, Object value) {
+            if(index >= binds.length) {
+                binds = Arrays.copyOf(binds, Math.max(index + 1, binds.length * 2));
+            }
+            binds[index] = value;
+            bindCount = Math.max(bindCount, index);
+        }
+
+        private Object call(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Updated rows, unknown for queries
+         */
+        private long rows(Object result) {
+            if(result instanceof Integer || result instanceof Long) {
+                return ((Number) result).longValue();
+            }
+            if(result instanceof int[]) {
+                long rows = 0;
+                for(int count : (int[]) result) {
+                    rows += Math.max(0, count);
+                }
+                return rows;
+            }
+
+            return -1;
+        }
+    }
+
+
+    private static final class Entry {
+        private final long time;
+        private final String method;
+        private final String sql;
+        private final String binds;
+        private final int batch;
+        private final long rows;
+        private final long elapsedNanos;
+
+        private Entry(long time, String method, String sql, String binds, int batch, long rows, long elapsedNanos) {
+            this.time = time;
+            this.method = method;
+            this.sql = sql;
+            this.binds = binds;
+            this.batch = batch;
+            this.rows = rows;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.mobilewallet.bank.jersey.BankModule.Manager.DatabaseManager.*;
+
+/**
+ * All SQL statements used by {@link DatabaseManager}
+ * Statements are built only once and prepared once per connection {@see PooledConnection#prepare(String)}
+ * @author Martin Stepanek
+ */
+final class StatementCatalog {
+
+    /**
+     * Statements with IN list are cached by number of parameters, bigger lists are built every time
+     */
+    private static final int MAX_CACHED_IN_LIST = 64;
+    private static final String[] SELECT_ACCOUNT_IDS_BY_NUMBERS = new String[MAX_CACHED_IN_LIST + 1];
+
+    /**
+     * Multi-row inserts are split to power of two number of rows, so every connection prepares only a few of them
+     */
+    static final int MAX_MULTI_ROW_INSERT = 256;
+    private static final String[] INSERT_ACCOUNTS = new String[MAX_MULTI_ROW_INSERT + 1];
+
+    /**
+     * Conditional status updates by number of previous states
+     */
+    private static final String[] TRANSITION_TRANSACTION_STATUS = new String[PaymentStatus.values().length + 1];
+
+    private StatementCatalog() {}
+
+
+    /**
+     * Select ids of accounts with given account numbers
+     * @param count int, number of account numbers
+     * @return String, SQL with {@code count} parameters
+     */
+    static String selectAccountIdsByNumbers(int count) {
+        if(count <= MAX_CACHED_IN_LIST && SELECT_ACCOUNT_IDS_BY_NUMBERS[count] != null) {
+            return SELECT_ACCOUNT_IDS_BY_NUMBERS[count];
+        }
+
+        String sql = "SELECT " + COLUMN_ID + ", " + COLUMN_ACCOUNT_NUMBER + " FROM " + ACCOUNT_TABLE +
+                " WHERE " + COLUMN_ACCOUNT_NUMBER + " IN (" + parameters(count) + ")";
+        if(count <= MAX_CACHED_IN_LIST) {
+            SELECT_ACCOUNT_IDS_BY_NUMBERS[count] = sql;
+        }
+
+        return sql;
+    }
+
+    /**
+     * Insert many accounts with one statement
+     * @param count int, number of rows, power of two not bigger than {@link #MAX_MULTI_ROW_INSERT}
+     * @return String, SQL with 3 parameters per row
+     */
+    static String insertAccounts(int count) {
+        if(INSERT_ACCOUNTS[count] == null) {
+            StringBuilder sb = new StringBuilder(INSERT_ACCOUNT);
+            for(int i = 1; i < count; i++) {
+                sb.append(", (?, ?, ?)");
+            }
+            INSERT_ACCOUNTS[count] = sb.toString();
+        }
+
+        return INSERT_ACCOUNTS[count];
+    }
+
+    /**
+     * Update status of transaction only if it is in one of previous states
+     * @param count int, number of previous states
+     * @return String, SQL with new status, date realized, payment id and {@code count} previous states
+     */
+    static String transitionTransactionStatus(int count) {
+        if(TRANSITION_TRANSACTION_STATUS[count] == null) {
+            TRANSITION_TRANSACTION_STATUS[count] = "UPDATE " + TRANSACTION_TABLE + " SET " + COLUMN_STATUS + "=?, " + COLUMN_DATE_REALIZED + "=?" +
+                    " WHERE " + COLUMN_PAYMENT_ID + "=? AND " + COLUMN_STATUS + " IN (" + parameters(count) + ")";
+        }
+
+        return TRANSITION_TRANSACTION_STATUS[count];
+    }
+
+    /**
+     * Size of next chunk of multi-row statement
+     * @param remaining int, number of remaining rows
+     * @return int, the biggest power of two not bigger than remaining rows and {@link #MAX_MULTI_ROW_INSERT}
+     */
+    static int chunkSize(int remaining) {
+        return Integer.highestOneBit(Math.min(remaining, MAX_MULTI_ROW_INSERT));
+    }
+
+    /**
+     * Create comma separated list of parameters
+     * @param count int, number of parameters
+     * @return String, e.g. "?, ?, ?"
+     */
+    static String parameters(int count) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Account statements
+     */
+    static final String INSERT_ACCOUNT = "INSERT INTO " + ACCOUNT_TABLE + " (" + COLUMN_BANK_ID + ", " + COLUMN_ACCOUNT_NUMBER + ", " + COLUMN_BALANCE + ") VALUES (?, ?, ?)";
+    static final String INSERT_ACCOUNT_IGNORE = "INSERT IGNORE INTO " + ACCOUNT_TABLE + " (" + COLUMN_BANK_ID + ", " + COLUMN_ACCOUNT_NUMBER + ", " + COLUMN_BALANCE + ") VALUES (?, ?, ?)";
+    static final String SELECT_ACCOUNT_BY_NUMBER = "SELECT * FROM " + ACCOUNT_TABLE + " WHERE " + COLUMN_ACCOUNT_NUMBER + "=?";
+    static final String SELECT_ACCOUNT_BY_ID = "SELECT * FROM " + ACCOUNT_TABLE + " WHERE " + COLUMN_ID + "=?";
+    static final String SELECT_ALL_ACCOUNTS = "SELECT " + COLUMN_ID + ", " + COLUMN_BANK_ID + ", " + COLUMN_ACCOUNT_NUMBER + ", " + COLUMN_BALANCE + ", " + COLUMN_DATE_CREATED +
+            " FROM " + ACCOUNT_TABLE + " ORDER BY " + COLUMN_ID;
+    static final String UPDATE_ACCOUNT_SUM = "UPDATE " + ACCOUNT_TABLE + " SET " + COLUMN_BALANCE + "= " + COLUMN_BALANCE + " + ? WHERE " + COLUMN_ACCOUNT_NUMBER + "=?";
+
+    /**
+     * Settlement change of balance by account id, negative change is applied only if balance stays non negative
+     */
+    static final String UPDATE_ACCOUNT_SUM_BY_ID = "UPDATE " + ACCOUNT_TABLE + " SET " + COLUMN_BALANCE + "= " + COLUMN_BALANCE + " + ? WHERE " + COLUMN_ID + "=?" +
+            " AND (? >= 0 OR " + COLUMN_BALANCE + " + ? >= 0)";
+
+    /**
+     * Balances of all accounts and absolute balance update, used by ledger projection
+     */
+    static final String SELECT_ACCOUNT_BALANCES = "SELECT " + COLUMN_ID + ", " + COLUMN_BALANCE + " FROM " + ACCOUNT_TABLE;
+    static final String UPDATE_ACCOUNT_BALANCE_BY_ID = "UPDATE " + ACCOUNT_TABLE + " SET " + COLUMN_BALANCE + "=? WHERE " + COLUMN_ID + "=?";
+
+    /**
+     * Stripes of hot accounts {@see AccountStripes}
+     * Credit is added to one stripe, debit is checked against balance of account together with all its stripes
+     */
+    static final String INSERT_STRIPE_CREDIT = "INSERT INTO " + ACCOUNT_STRIPE_TABLE + " (" + COLUMN_ACCOUNT_ID + ", " + COLUMN_STRIPE + ", " + COLUMN_BALANCE + ") VALUES (?, ?, ?)" +
+            " ON DUPLICATE KEY UPDATE " + COLUMN_BALANCE + "= " + COLUMN_BALANCE + " + VALUES(" + COLUMN_BALANCE + ")";
+    static final String UPDATE_STRIPED_ACCOUNT_SUM_BY_ID = "UPDATE " + ACCOUNT_TABLE + " SET " + COLUMN_BALANCE + "= " + COLUMN_BALANCE + " + ? WHERE " + COLUMN_ID + "=?" +
+            " AND (? >= 0 OR " + COLUMN_BALANCE + " + (SELECT COALESCE(SUM(s." + COLUMN_BALANCE + "), 0) FROM " + ACCOUNT_STRIPE_TABLE + " s WHERE s." + COLUMN_ACCOUNT_ID + "=?) + ? >= 0)";
+    static final String SELECT_STRIPE_SUM = "SELECT COALESCE(SUM(" + COLUMN_BALANCE + "), 0) FROM " + ACCOUNT_STRIPE_TABLE + " WHERE " + COLUMN_ACCOUNT_ID + "=?";
+    static final String SELECT_STRIPED_ACCOUNTS = "SELECT DISTINCT " + COLUMN_ACCOUNT_ID + " FROM " + ACCOUNT_STRIPE_TABLE + " WHERE " + COLUMN_BALANCE + " <> 0";
+    static final String LOCK_ACCOUNT_BY_ID = "SELECT " + COLUMN_BALANCE + " FROM " + ACCOUNT_TABLE + " WHERE " + COLUMN_ID + "=? FOR UPDATE";
+    static final String LOCK_STRIPE_SUM = SELECT_STRIPE_SUM + " FOR UPDATE";
+    static final String RESET_STRIPES = "UPDATE " + ACCOUNT_STRIPE_TABLE + " SET " + COLUMN_BALANCE + "=0 WHERE " + COLUMN_ACCOUNT_ID + "=?";
+
+    /**
+     * Bank statements
+     */
+    static final String SELECT_ALL_BANKS = "SELECT * FROM " + BANK_TABLE;
+    static final String SELECT_BANK_BY_ID = "SELECT * FROM " + BANK_TABLE + " WHERE " + COLUMN_ID + "=?";
+    static final String SELECT_BANK_BY_BIC = "SELECT * FROM " + BANK_TABLE + " WHERE " + COLUMN_BIC + "=?";
+
+    /**
+     * Transaction statements
+     */
+    static final String INSERT_TRANSACTION = "INSERT INTO " + TRANSACTION_TABLE + " (" + COLUMN_FROM_ID + ", " + COLUMN_PAYMENT_ID + ", " + COLUMN_AMOUNT + ", " + COLUMN_STATUS + ", " + COLUMN_MESSAGE + ") VALUES (?, ?, ?, ?, ?)";
+    static final String SELECT_TRANSACTION_BY_PAYMENT_ID = "SELECT * FROM " + TRANSACTION_TABLE + " WHERE " + COLUMN_PAYMENT_ID + "=?";
+    static final String SELECT_TRANSACTION_STATUS_BY_PAYMENT_ID = "SELECT " + COLUMN_STATUS + " FROM " + TRANSACTION_TABLE + " WHERE " + COLUMN_PAYMENT_ID + "=?";
+    static final String SELECT_TRANSACTIONS_BY_FROM_STATUS = "SELECT * FROM " + TRANSACTION_TABLE + " WHERE " + COLUMN_FROM_ID + "=?" + " AND " + COLUMN_STATUS + "=?" +
+            " ORDER BY " + COLUMN_DATE_CREATED + " DESC";
+    static final String SELECT_TRANSACTIONS_BY_FROM = "SELECT * FROM " + TRANSACTION_TABLE + " WHERE " + COLUMN_FROM_ID + "=?";
+    static final String UPDATE_TRANSACTION_STATUS = "UPDATE " + TRANSACTION_TABLE + " SET " + COLUMN_STATUS + "= ? " + ", " + COLUMN_DATE_REALIZED + "= ? WHERE " + COLUMN_ID + "=?";
+
+    /**
+     * Transaction destination statements
+     */
+    static final String INSERT_TRANSACTION_DESTINATION = "INSERT INTO " + ACCOUNT_TRANSACTION_TABLE + " (" + COLUMN_TO_ID + ", " + COLUMN_TRANSACTION_ID + ", " + COLUMN_AMOUNT + ", " + COLUMN_MESSAGE + ") VALUES (?,?,?,?)";
+    static final String SELECT_TRANSACTION_DESTINATIONS = "SELECT * FROM " + ACCOUNT_TRANSACTION_TABLE + " WHERE " + COLUMN_TRANSACTION_ID + "=?";
+    static final String SELECT_TRANSACTION_DESTINATIONS_WITH_ACCOUNTS = "SELECT at." + COLUMN_ID + ", at." + COLUMN_TO_ID + ", at." + COLUMN_TRANSACTION_ID + ", at." + COLUMN_AMOUNT + ", at." + COLUMN_MESSAGE + ", a." + COLUMN_ACCOUNT_NUMBER +
+            " FROM " + ACCOUNT_TRANSACTION_TABLE + " at LEFT JOIN " + ACCOUNT_TABLE + " a ON a." + COLUMN_ID + " = at." + COLUMN_TO_ID +
+            " WHERE at." + COLUMN_TRANSACTION_ID + "=? ORDER BY at." + COLUMN_ID;
+
+    /**
+     * History with destinations and destination account numbers in one query, one row per destination
+     */
+    static final String SELECT_HISTORY_WITH_DESTINATIONS = "SELECT t." + COLUMN_ID + ", t." + COLUMN_FROM_ID + ", t." + COLUMN_PAYMENT_ID + ", t." + COLUMN_AMOUNT + ", t." + COLUMN_DATE_CREATED +
+            ", t." + COLUMN_DATE_REALIZED + ", t." + COLUMN_STATUS + ", t." + COLUMN_MESSAGE +
+            ", at." + COLUMN_ID + ", at." + COLUMN_TO_ID + ", at." + COLUMN_AMOUNT + ", at." + COLUMN_MESSAGE + ", a." + COLUMN_ACCOUNT_NUMBER +
+            " FROM " + TRANSACTION_TABLE + " t" +
+            " LEFT JOIN " + ACCOUNT_TRANSACTION_TABLE + " at ON at." + COLUMN_TRANSACTION_ID + " = t." + COLUMN_ID +
+            " LEFT JOIN " + ACCOUNT_TABLE + " a ON a." + COLUMN_ID + " = at." + COLUMN_TO_ID +
+            " WHERE t." + COLUMN_FROM_ID + "=? ORDER BY t." + COLUMN_ID + ", at." + COLUMN_ID;
+
+    /**
+     * One page of history with destinations, newest payments first
+     * Payments are selected by keyset (date created, id) on index (from_id, date_created, id), destinations are joined to the page
+     */
+    static final String SELECT_HISTORY_PAGE = "SELECT t." + COLUMN_ID + ", t." + COLUMN_FROM_ID + ", t." + COLUMN_PAYMENT_ID + ", t." + COLUMN_AMOUNT + ", t." + COLUMN_DATE_CREATED +
+            ", t." + COLUMN_DATE_REALIZED + ", t." + COLUMN_STATUS + ", t." + COLUMN_MESSAGE +
+            ", at." + COLUMN_ID + ", at." + COLUMN_TO_ID + ", at." + COLUMN_AMOUNT + ", at." + COLUMN_MESSAGE + ", a." + COLUMN_ACCOUNT_NUMBER +
+            " FROM (SELECT * FROM " + TRANSACTION_TABLE +
+            " WHERE " + COLUMN_FROM_ID + "=? AND " + COLUMN_DATE_CREATED + ">=? AND " + COLUMN_DATE_CREATED + "<?" +
+            " AND (" + COLUMN_DATE_CREATED + "<? OR (" + COLUMN_DATE_CREATED + "=? AND " + COLUMN_ID + "<?))" +
+            " ORDER BY " + COLUMN_DATE_CREATED + " DESC, " + COLUMN_ID + " DESC LIMIT ?) t" +
+            " LEFT JOIN " + ACCOUNT_TRANSACTION_TABLE + " at ON at." + COLUMN_TRANSACTION_ID + " = t." + COLUMN_ID +
+            " LEFT JOIN " + ACCOUNT_TABLE + " a ON a." + COLUMN_ID + " = at." + COLUMN_TO_ID +
+            " ORDER BY t." + COLUMN_DATE_CREATED + " DESC, t." + COLUMN_ID + " DESC, at." + COLUMN_ID;
+
+    /**
+     * Balance reconciliation by account id range, {@see BalanceReconciler}
+     * Logical balance includes stripes, only received payments move money
+     */
+    static final String SELECT_ACCOUNT_ID_RANGE = "SELECT MIN(" + COLUMN_ID + "), MAX(" + COLUMN_ID + ") FROM " + ACCOUNT_TABLE;
+    static final String SELECT_RECONCILE_BALANCES = "SELECT a." + COLUMN_ID + ", a." + COLUMN_BALANCE + " + COALESCE(SUM(s." + COLUMN_BALANCE + "), 0)" +
+            " FROM " + ACCOUNT_TABLE + " a LEFT JOIN " + ACCOUNT_STRIPE_TABLE + " s ON s." + COLUMN_ACCOUNT_ID + " = a." + COLUMN_ID +
+            " WHERE a." + COLUMN_ID + " BETWEEN ? AND ? GROUP BY a." + COLUMN_ID + ", a." + COLUMN_BALANCE;
+    static final String SELECT_RECONCILE_DEBITS = "SELECT " + COLUMN_FROM_ID + ", SUM(" + COLUMN_AMOUNT + ") FROM " + TRANSACTION_TABLE +
+            " WHERE " + COLUMN_FROM_ID + " BETWEEN ? AND ? AND " + COLUMN_STATUS + "=? GROUP BY " + COLUMN_FROM_ID;
+    static final String SELECT_RECONCILE_CREDITS = "SELECT at." + COLUMN_TO_ID + ", SUM(at." + COLUMN_AMOUNT + ") FROM " + ACCOUNT_TRANSACTION_TABLE + " at" +
+            " JOIN " + TRANSACTION_TABLE + " t ON t." + COLUMN_ID + " = at." + COLUMN_TRANSACTION_ID +
+            " WHERE at." + COLUMN_TO_ID + " BETWEEN ? AND ? AND t." + COLUMN_STATUS + "=? GROUP BY at." + COLUMN_TO_ID;
+    static final String SELECT_RECONCILE_IN_FLIGHT = "SELECT " + COLUMN_FROM_ID + " FROM " + TRANSACTION_TABLE +
+            " WHERE " + COLUMN_FROM_ID + " BETWEEN ? AND ? AND " + COLUMN_STATUS + "=? AND " + COLUMN_DATE_REALIZED + ">?" +
+            " UNION SELECT at." + COLUMN_TO_ID + " FROM " + ACCOUNT_TRANSACTION_TABLE + " at" +
+            " JOIN " + TRANSACTION_TABLE + " t ON t." + COLUMN_ID + " = at." + COLUMN_TRANSACTION_ID +
+            " WHERE at." + COLUMN_TO_ID + " BETWEEN ? AND ? AND t." + COLUMN_STATUS + "=? AND t." + COLUMN_DATE_REALIZED + ">?";
+    static final String SELECT_RECONCILE_OPENINGS = "SELECT " + COLUMN_ACCOUNT_ID + ", " + COLUMN_OPENING + " FROM " + ACCOUNT_RECONCILIATION_TABLE +
+            " WHERE " + COLUMN_ACCOUNT_ID + " BETWEEN ? AND ?";
+    static final String INSERT_RECONCILE_OPENING = "INSERT INTO " + ACCOUNT_RECONCILIATION_TABLE + " (" + COLUMN_ACCOUNT_ID + ", " + COLUMN_OPENING + ") VALUES (?, ?)";
+
+    /**
+     * High-water mark of reconciliation, accounts of payments created or realized after it are checked by next run
+     */
+    static final String SELECT_RECONCILE_STATE = "SELECT " + COLUMN_TRANSACTION_ID + ", " + COLUMN_DATE_CHECKED + " FROM " + RECONCILIATION_STATE_TABLE + " WHERE " + COLUMN_ID + "=1";
+    static final String SELECT_MAX_TRANSACTION_ID = "SELECT COALESCE(MAX(" + COLUMN_ID + "), 0) FROM " + TRANSACTION_TABLE;
+    static final String UPDATE_RECONCILE_STATE = "INSERT INTO " + RECONCILIATION_STATE_TABLE + " (" + COLUMN_ID + ", " + COLUMN_TRANSACTION_ID + ", " + COLUMN_DATE_CHECKED + ") VALUES (1, ?, ?)" +
+            " ON DUPLICATE KEY UPDATE " + COLUMN_TRANSACTION_ID + "=VALUES(" + COLUMN_TRANSACTION_ID + "), " + COLUMN_DATE_CHECKED + "=VALUES(" + COLUMN_DATE_CHECKED + ")";
+    static final String SELECT_TOUCHED_ACCOUNTS = "SELECT " + COLUMN_FROM_ID + " FROM " + TRANSACTION_TABLE +
+            " WHERE " + COLUMN_ID + " > ? OR " + COLUMN_DATE_REALIZED + " >= ?" +
+            " UNION SELECT at." + COLUMN_TO_ID + " FROM " + ACCOUNT_TRANSACTION_TABLE + " at" +
+            " JOIN " + TRANSACTION_TABLE + " t ON t." + COLUMN_ID + " = at." + COLUMN_TRANSACTION_ID +
+            " WHERE t." + COLUMN_ID + " > ? OR t." + COLUMN_DATE_REALIZED + " >= ?";
+
+    /**
+     * Replication status of replica, {@see ReplicaRouter}
+     */
+    static final String SHOW_REPLICA_STATUS = "SHOW SLAVE STATUS";
+
+    /**
+     * Queries executed on every payment with sample parameters, their plans are checked on startup
+     * {@see SchemaMigrator#checkQueryPlans(Map)}
+     * @return Map, SQL to parameters
+     */
+    static Map<String, Object[]> hotQueries() {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Map<String, Object[]> queries = new LinkedHashMap<>();
+        queries.put(SELECT_ACCOUNT_BY_NUMBER, new Object[]{""});
+        queries.put(SELECT_TRANSACTION_BY_PAYMENT_ID, new Object[]{""});
+        queries.put(SELECT_TRANSACTION_STATUS_BY_PAYMENT_ID, new Object[]{""});
+        queries.put(SELECT_TRANSACTIONS_BY_FROM_STATUS, new Object[]{0, REQUESTED});
+        queries.put(SELECT_TRANSACTION_DESTINATIONS_WITH_ACCOUNTS, new Object[]{0});
+        queries.put(SELECT_HISTORY_PAGE, new Object[]{0, new Timestamp(0), now, now, now, Integer.MAX_VALUE, 50});
+
+        return Collections.unmodifiableMap(queries);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Ledger.LedgerEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Storage manager selects implementation of {@link BankStorage} by STORAGE key in config
+ * mysql - {@link DatabaseManager}, default
+ * memory - {@link InMemoryStorage}, data are kept only in memory of the process
+ * If QUERY_METRICS is enabled, calls of selected storage are measured by {@link QueryMetrics}
+ * If LEDGER_MODE is enabled, selected storage is wrapped by {@link LedgerEngine} which keeps balances in memory
+ * @author Martin Stepanek
+ */
+public final class StorageManager {
+
+    public static final String MYSQL = "mysql";
+    public static final String MEMORY = "memory";
+
+    private static BankStorage instance;
+    private static DatabaseManager database;
+    private static QueryMetrics queryMetrics;
+
+    private StorageManager() {}
+
+
+    /**
+     * Method for returning singleton instance of configured storage
+     * @return BankStorage
+     */
+    public static synchronized BankStorage getInstance() {
+        if(instance == null) {
+            ConfigManager cm = ConfigManager.getInstance();
+            String type = cm.getPropValues("STORAGE", MYSQL).trim();
+            if(type.equalsIgnoreCase(MEMORY)) {
+                instance = new InMemoryStorage();
+            }
+            else {
+                if(!type.equalsIgnoreCase(MYSQL)) {
+                    Logger logger = LoggerFactory.getLogger(StorageManager.class);
+                    logger.error("Unknown storage: " + type + ", " + MYSQL + " is used");
+                }
+                database = DatabaseManager.getInstance();
+                instance = database;
+            }
+
+            if(Boolean.parseBoolean(cm.getPropValues("QUERY_METRICS", "false"))) {
+                queryMetrics = new QueryMetrics(instance);
+                instance = queryMetrics.proxy();
+            }
+
+            if(Boolean.parseBoolean(cm.getPropValues("LEDGER_MODE", "false"))) {
+                try {
+                    instance = new LedgerEngine(instance, new File(cm.getPropValues("LEDGER_DIR", "ledger")),
+                            cm.getIntPropValues("LEDGER_SNAPSHOT_RECORDS", 100000),
+                            cm.getIntPropValues("LEDGER_PROJECTION_INTERVAL", 100),
+                            cm.getIntPropValues("LEDGER_PROJECTION_BATCH", 1000));
+                } catch (IOException | SQLException e) {
+                    Logger logger = LoggerFactory.getLogger(StorageManager.class);
+                    logger.error("Error while starting ledger, balances are kept only in storage: ", e);
+                    e.printStackTrace();
+                }
+            }
+
+            // pending changes of storage are written before JVM exits
+            final BankStorage storage = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    storage.shutdown();
+                }
+            }, "storage-shutdown"));
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Get MySQL storage behind selected storage and its wrappers
+     * @return DatabaseManager, null if other storage is selected
+     */
+    public static synchronized DatabaseManager getDatabaseManager() {
+        getInstance();
+        return database;
+    }
+
+    /**
+     * Get metrics of storage calls
+     * @return QueryMetrics, null if QUERY_METRICS is disabled
+     */
+    public static synchronized QueryMetrics getQueryMetrics() {
+        getInstance();
+        return queryMetrics;
+    }
+}
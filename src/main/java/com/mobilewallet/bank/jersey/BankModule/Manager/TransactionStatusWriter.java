@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Manager;
+
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatus;
+import com.mobilewallet.bank.jersey.BankModule.Model.PaymentStatusChange;
+import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind of payment status changes
+ * Status is decided in memory against queued status of payment, database is read only if payment has no queued status,
+ * so queue is the authority of payment status and conditional update is not executed on every change.
+ * Changes are written in one JDBC batch when {@link #flushSize} changes are waiting or after {@link #flushInterval},
+ * more changes of the same payment are coalesced, only the last one is written.
+ *
+ * Every change is written conditionally on its earlier states {@see PaymentStatus#getEarlier()}, so change already
+ * overtaken in database, e.g. settling of payment received by settlement, is not written back.
+ * Decision and queueing of one payment run under its lock {@link #lockFor(String)}, storage writing status of payment
+ * directly holds the same lock and marks status as written {@link #written(String, PaymentStatus)}.
+ *
+ * Change stays queued until it is written, so reads have to take status from {@link #overlay(Transaction)},
+ * changes queued when the process dies are lost
+ * @author Martin Stepanek
+ */
+public class TransactionStatusWriter {
+
+    private static final int LOCK_STRIPES = 256;
+
+    private final Logger logger = LoggerFactory.getLogger(TransactionStatusWriter.class);
+
+    private final ConnectionPool pool;
+    private final int flushSize;
+    private final long flushInterval;
+
+    private final ConcurrentHashMap<String, PaymentStatusChange> pending = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Object signal = new Object();
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong statusReads = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong writtenDirectly = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+
+    /**
+     * TransactionStatusWriter constructor, starts flusher thread
+     * @param pool ConnectionPool, pool of database
+     * @param flushSize int, number of queued changes that triggers flush, also maximum size of one batch
+     * @param flushInterval long, maximum time change waits in queue, in milliseconds
+     */
+    public TransactionStatusWriter(ConnectionPool pool, int flushSize, long flushInterval) {
+        this.pool = pool;
+        this.flushSize = Math.max(1, flushSize);
+        this.flushInterval = Math.max(1, flushInterval);
+        for(int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "transaction-status-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+
+    /**
+     * Change status of payment if its current status is one of previous states of new status, change is only queued
+     * Current status is queued status of payment, or status in database if payment has no queued status
+     * @param paymentId String, payment id
+     * @param status PaymentStatus, new status
+     * @param date String, date of realization in format yyyy-MM-dd HH:mm:ss
+     * @return boolean, true if status was changed
+     * @throws SQLException on SQL error while reading status from database
+     */
+    public boolean transition(String paymentId, PaymentStatus status, String date) throws SQLException {
+        synchronized (lockFor(paymentId)) {
+            PaymentStatus current = getStatus(paymentId);
+            if(current == null || !status.getPrevious().contains(current)) {
+                refused.incrementAndGet();
+                return false;
+            }
+            pending.put(paymentId, new PaymentStatusChange(paymentId, status, date));
+        }
+
+        submitted.incrementAndGet();
+        if(pending.size() >= flushSize) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get lock of payment, storage writing status of payment directly holds it, so status is not decided meanwhile
+     * @param paymentId String, payment id
+     * @return Object, lock shared with other payments of the same stripe
+     */
+    public Object lockFor(String paymentId) {
+        return locks[(paymentId.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    /**
+     * Get queued status of payment
+     * @param paymentId String, payment id
+     * @return PaymentStatus, null if payment has no queued status
+     */
+    public PaymentStatus getPending(String paymentId) {
+        PaymentStatusChange change = pending.get(paymentId);
+        return change == null ? null : change.getStatus();
+    }
+
+    /**
+     * Drop queued status of payment overtaken by status written directly to database, caller holds lock of payment
+     * @param paymentId String, payment id
+     * @param status PaymentStatus, status committed in database
+     */
+    public void written(String paymentId, PaymentStatus status) {
+        PaymentStatusChange change = pending.get(paymentId);
+        if(change != null && status.getEarlier().contains(change.getStatus()) && pending.remove(paymentId, change)) {
+            writtenDirectly.incrementAndGet();
+        }
+    }
+
+    /**
+     * Replace status of transaction read from database by queued status
+     * @param t Transaction, read from database
+     * @return Transaction, the same object
+     */
+    public Transaction overlay(Transaction t) {
+        PaymentStatusChange change = t.getPaymentId() == null ? null : pending.get(t.getPaymentId());
+        return change == null ? t : change.applyTo(t);
+    }
+
+    /**
+     * Write all changes queued at the moment of call
+     * @throws SQLException on SQL error, changes not written stay queued
+     */
+    public synchronized void flush() throws SQLException {
+        // ordered by payment id, so concurrent batches lock rows in the same order
+        List<PaymentStatusChange> changes = new ArrayList<>(new TreeMap<>(pending).values());
+        for(int from = 0; from < changes.size(); from += flushSize) {
+            write(changes.subList(from, Math.min(changes.size(), from + flushSize)));
+        }
+    }
+
+    /**
+     * Stop flusher and write all queued changes
+     */
+    public void close() {
+        closed = true;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            flush();
+        } catch (SQLException e) {
+            logger.error("Error while writing transaction statuses, " + pending.size() + " changes lost: ", e);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+
+    /**
+     * Convert writer statistics to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("pending", pending.size());
+        json.put("submitted", submitted.get());
+        json.put("refused", refused.get());
+        json.put("statusReads", statusReads.get());
+        json.put("written", written.get());
+        json.put("writtenDirectly", writtenDirectly.get());
+        json.put("coalesced", Math.max(0, submitted.get() - written.get() - writtenDirectly.get() - pending.size()));
+        json.put("batches", batches.get());
+        json.put("failures", failures.get());
+
+        return json;
+    }
+
+
+    /**
+     * Current status of payment, queued or read from database, caller holds lock of payment
+     */
+    private PaymentStatus getStatus(String paymentId) throws SQLException {
+        PaymentStatusChange change = pending.get(paymentId);
+        if(change != null) {
+            return change.getStatus();
+        }
+
+        statusReads.incrementAndGet();
+        PooledConnection pc = pool.lease();
+        try {
+            PreparedStatement statement = pc.prepare(StatementCatalog.SELECT_TRANSACTION_STATUS_BY_PAYMENT_ID);
+            statement.setString(1, paymentId);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? PaymentStatus.fromValue(result.getString(1)) : null;
+            }
+        } finally {
+            pool.release(pc);
+        }
+    }
+
+    private void flushLoop() {
+        while(!closed) {
+            synchronized (signal) {
+                if(pending.size() < flushSize && !closed) {
+                    try {
+                        signal.wait(flushInterval);
+                    } catch (InterruptedException e) {
+                        // flusher is stopped only by close
+                    }
+                }
+            }
+
+            try {
+                flush();
+            } catch (SQLException e) {
+                failures.incrementAndGet();
+                logger.error("Error while writing transaction statuses: ", e);
+                try {
+                    Thread.sleep(flushInterval);
+                } catch (InterruptedException ie) {
+                    // retried in next loop
+                }
+            }
+        }
+    }
+
+    /**
+     * Write changes in one batch and database transaction, written change is removed from queue only if it
+     * was not replaced by newer change meanwhile
+     */
+    private void write(List<PaymentStatusChange> changes) throws SQLException {
+        PooledConnection pc = pool.lease();
+        try {
+            Connection conn = pc.getConnection();
+            conn.setAutoCommit(false);
+
+            // statements are cached by SQL, statuses with the same number of earlier states share one batch
+            Set<PreparedStatement> statements = new LinkedHashSet<>();
+            for(PaymentStatusChange change : changes) {
+                Set<PaymentStatus> earlier = change.getStatus().getEarlier();
+                PreparedStatement statement = pc.prepare(StatementCatalog.transitionTransactionStatus(earlier.size()));
+                statement.setString(1, change.getStatus().getValue());
+                statement.setString(2, change.getDate());
+                statement.setString(3, change.getPaymentId());
+                int index = 4;
+                for(PaymentStatus state : earlier) {
+                    statement.setString(index++, state.getValue());
+                }
+                statement.addBatch();
+                statements.add(statement);
+            }
+            for(PreparedStatement statement : statements) {
+                statement.executeBatch();
+            }
+            conn.commit();
+        } finally {
+            pool.release(pc);
+        }
+
+        for(PaymentStatusChange change : changes) {
+            pending.remove(change.getPaymentId(), change);
+        }
+        written.addAndGet(changes.size());
+        batches.incrementAndGet();
+        logger.debug("Transaction statuses written: " + changes.size());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatcher of arrived Mqtt messages to lanes, every lane is one thread with bounded queue
+ * Message is parsed before it is dispatched, lane is chosen by hash of its account number, so messages of one account are handled in order of arrival
+ * and messages of different accounts are handled in parallel. Slow message stalls only accounts of its lane.
+ *
+ * If queue of lane is full, dispatching thread waits at most {@link #offerTimeout}, so broker delivery slows down for a while.
+ * Message which still does not fit is not dispatched and caller answers it as busy, callback thread of Mqtt client
+ * is never blocked for longer. Lanes never wait for callback thread, {@link PublishWindow} queues messages instead
+ * of waiting for acknowledgements
+ * @author Martin Stepanek
+ */
+public class MessageDispatcher {
+
+    /**
+     * Handling of one parsed message, called by thread of lane
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    private final Lane[] lanes;
+    private final long offerTimeout;
+    private volatile boolean closed = false;
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+
+    /**
+     * MessageDispatcher constructor, starts thread of every lane
+     * @param name String, name of dispatcher used in names of threads
+     * @param laneCount int, number of lanes
+     * @param queueSize int, maximum number of waiting messages of one lane
+     * @param offerTimeout long, maximum time to wait for space in full lane, in milliseconds
+     */
+    public MessageDispatcher(String name, int laneCount, int queueSize, long offerTimeout) {
+        this.lanes = new Lane[Math.max(1, laneCount)];
+        this.offerTimeout = Math.max(0, offerTimeout);
+
+        for(int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(name + "-lane-" + i, Math.max(1, queueSize));
+            lanes[i].thread.start();
+        }
+    }
+
+
+    /**
+     * Queue message to lane of its account, returns immediately unless queue of lane is full
+     * @param key String, account number of message
+     * @param task Task, handling of message
+     * @return boolean, false if dispatcher is closed or lane stayed full for offer timeout, caller has to answer message as busy
+     * @throws InterruptedException if interrupted while waiting for space in queue
+     */
+    public boolean dispatch(String key, Task task) throws InterruptedException {
+        if(closed) {
+            logger.error("Dispatcher is closed, message of " + key + " is not dispatched");
+            return false;
+        }
+
+        Lane lane = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        if(!lane.queue.offer(task)) {
+            blocked.incrementAndGet();
+            if(!lane.queue.offer(task, offerTimeout, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                logger.error("Lane of " + key + " is full, message is not dispatched");
+                return false;
+            }
+        }
+        dispatched.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stop accepting messages and wait until queued messages are handled
+     * @param timeout long, maximum time to wait for every lane, in milliseconds
+     */
+    public void close(long timeout) {
+        closed = true;
+        for(Lane lane : lanes) {
+            try {
+                lane.thread.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Convert queue depths and counters to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("dispatched", dispatched.get());
+        json.put("blocked", blocked.get());
+        json.put("rejected", rejected.get());
+        json.put("failed", failed.get());
+
+        JSONArray lanesJson = new JSONArray();
+        for(Lane lane : lanes) {
+            JSONObject laneJson = new JSONObject();
+            laneJson.put("depth", lane.queue.size());
+            laneJson.put("capacity", lane.queue.size() + lane.queue.remainingCapacity());
+            laneJson.put("handled", lane.handled.get());
+            lanesJson.put(laneJson);
+        }
+        json.put("lanes", lanesJson);
+
+        return json;
+    }
+
+
+    private final class Lane implements Runnable {
+        private final BlockingQueue<Task> queue;
+        private final Thread thread;
+        private final AtomicLong handled = new AtomicLong();
+
+        private Lane(String name, int queueSize) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(!closed || !queue.isEmpty()) {
+                Task task;
+                try {
+                    task = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(task == null) {
+                    continue;
+                }
+
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    logger.error("Error: ", e);
+                    e.printStackTrace();
+                }
+                handled.incrementAndGet();
+            }
+        }
+    }
+}
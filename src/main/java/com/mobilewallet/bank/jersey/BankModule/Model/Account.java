@@ -16,7 +16,10 @@ public class Account {
     private int bankId;
     private String userId;
     private String accountNumber;
-    private double balance;
+    /**
+     * Balance in minor units, see {@link Money}
+     */
+    private long balance;
     private Date dateCreated;
 
     public int getId() {
@@ -51,11 +54,11 @@ public class Account {
         this.accountNumber = accountNumber;
     }
 
-    public double getBalance() {
+    public long getBalance() {
         return balance;
     }
 
-    public void setBalance(double balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
 
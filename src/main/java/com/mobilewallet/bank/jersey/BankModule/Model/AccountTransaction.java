@@ -13,8 +13,12 @@ public class AccountTransaction {
     private int id;
     private int toId;
     private int transactionId;
-    private double amount;
+    /**
+     * Amount in minor units, see {@link Money}
+     */
+    private long amount;
     private String message;
+    private String toAccountNumber;
 
     public int getId() {
         return id;
@@ -40,11 +44,11 @@ public class AccountTransaction {
         this.transactionId = transactionId;
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
-    public void setAmount(double amount) {
+    public void setAmount(long amount) {
         this.amount = amount;
     }
 
@@ -55,4 +59,12 @@ public class AccountTransaction {
     public void setMessage(String message) {
         this.message = message;
     }
+
+    public String getToAccountNumber() {
+        return toAccountNumber;
+    }
+
+    public void setToAccountNumber(String toAccountNumber) {
+        this.toAccountNumber = toAccountNumber;
+    }
 }
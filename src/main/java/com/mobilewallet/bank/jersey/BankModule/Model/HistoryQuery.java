@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Model;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * One page of history request
+ * History is ordered from the newest payment, next page starts after cursor (date created and id of last payment seen)
+ * Optional time window limits payments by date created, from is inclusive and to is exclusive
+ * @author Martin Stepanek
+ */
+public class HistoryQuery {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+
+    /**
+     * Json keys of history request
+     */
+    public static final String PAGE_SIZE = "pageSize";
+    public static final String CURSOR = "cursor";
+    public static final String CURSOR_DATE = "dateCreated";
+    public static final String CURSOR_ID = "id";
+    public static final String FROM = "from";
+    public static final String TO = "to";
+
+    /**
+     * Bounds used when cursor or time window is not set, so the same query with the same index is used every time
+     */
+    private static final Timestamp MIN_DATE = new Timestamp(0);
+    private static final Timestamp MAX_DATE = Timestamp.valueOf("9999-12-31 23:59:59");
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private Timestamp cursorDate;
+    private int cursorId;
+    private Timestamp from;
+    private Timestamp to;
+
+
+    /**
+     * Create query from history request json
+     * Missing or invalid values are replaced by defaults, so the first page of whole history is returned
+     * @param json JSONObject, history request
+     * @param timeFormat String, format of dates in json
+     * @return HistoryQuery
+     */
+    public static HistoryQuery fromJson(JSONObject json, String timeFormat) {
+        HistoryQuery query = new HistoryQuery();
+
+        if(json == null) {
+            return query;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat(timeFormat);
+        try {
+            if(json.has(PAGE_SIZE)) {
+                query.setPageSize(json.getInt(PAGE_SIZE));
+            }
+            if(json.has(CURSOR)) {
+                JSONObject cursor = json.getJSONObject(CURSOR);
+                query.setCursor(new Timestamp(format.parse(cursor.getString(CURSOR_DATE)).getTime()), cursor.getInt(CURSOR_ID));
+            }
+            if(json.has(FROM)) {
+                query.setFrom(new Timestamp(format.parse(json.getString(FROM)).getTime()));
+            }
+            if(json.has(TO)) {
+                query.setTo(new Timestamp(format.parse(json.getString(TO)).getTime()));
+            }
+        } catch (JSONException | ParseException e) {
+            // wrong values are ignored, defaults are used instead
+        }
+
+        return query;
+    }
+
+    /**
+     * Create cursor json for the next page
+     * @param last Transaction, last transaction of current page
+     * @param timeFormat String, format of dates in json
+     * @return JSONObject, cursor
+     * @throws JSONException on json error
+     */
+    public static JSONObject cursorToJson(Transaction last, String timeFormat) throws JSONException {
+        JSONObject cursor = new JSONObject();
+        cursor.put(CURSOR_DATE, new SimpleDateFormat(timeFormat).format(last.getDateCreated()));
+        cursor.put(CURSOR_ID, last.getId());
+
+        return cursor;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+    }
+
+    public void setCursor(Timestamp cursorDate, int cursorId) {
+        this.cursorDate = cursorDate;
+        this.cursorId = cursorId;
+    }
+
+    public boolean hasCursor() {
+        return cursorDate != null;
+    }
+
+    /**
+     * Get date of last payment seen, payments created after it are not returned
+     * @return Timestamp, cursor date or maximal date if cursor is not set
+     */
+    public Timestamp getCursorDate() {
+        return cursorDate != null ? cursorDate : MAX_DATE;
+    }
+
+    /**
+     * Get id of last payment seen
+     * @return int, cursor id or maximal id if cursor is not set
+     */
+    public int getCursorId() {
+        return cursorDate != null ? cursorId : Integer.MAX_VALUE;
+    }
+
+    public Timestamp getFrom() {
+        return from != null ? from : MIN_DATE;
+    }
+
+    public void setFrom(Timestamp from) {
+        this.from = from;
+    }
+
+    public Timestamp getTo() {
+        return to != null ? to : MAX_DATE;
+    }
+
+    public void setTo(Timestamp to) {
+        this.to = to;
+    }
+}
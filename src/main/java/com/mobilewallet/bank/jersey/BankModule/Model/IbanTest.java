@@ -5,17 +5,22 @@
 
 package com.mobilewallet.bank.jersey.BankModule.Model;
 
-import java.math.BigInteger;
-
 /**
- * Not used yet, could contain IBAN tests to check if format is correct
+ * IBAN format check, used by bulk import of accounts
  */
 public final class IbanTest {
 
     public static final int IBANNUMBER_MIN_SIZE = 15;
     public static final int IBANNUMBER_MAX_SIZE = 34;
-    public static final BigInteger IBANNUMBER_MAGIC_NUMBER = new BigInteger("97");
+    public static final int IBANNUMBER_MAGIC_NUMBER = 97;
+
+    private IbanTest() {}
 
+    /**
+     * Check length, characters and check digits of IBAN
+     * @param accountNumber String, IBAN without spaces
+     * @return boolean, true if IBAN is valid
+     */
     public static boolean ibanTest(String accountNumber) {
         String newAccountNumber = accountNumber.trim();
 
@@ -29,14 +34,19 @@ public final class IbanTest {
         newAccountNumber = newAccountNumber.substring(4) + newAccountNumber.substring(0, 4);
 
         // Replace each letter in the string with two digits, thereby expanding the string, where A = 10, B = 11, ..., Z = 35.
-        StringBuilder numericAccountNumber = new StringBuilder();
+        // Remainder on division by 97 is computed digit by digit, so the number is never built
+        int remainder = 0;
         for (int i = 0;i < newAccountNumber.length();i++) {
-            numericAccountNumber.append(Character.getNumericValue(newAccountNumber.charAt(i)));
+            char c = newAccountNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                remainder = (remainder * 10 + (c - '0')) % IBANNUMBER_MAGIC_NUMBER;
+            } else if (c >= 'A' && c <= 'Z') {
+                remainder = (remainder * 100 + (c - 'A' + 10)) % IBANNUMBER_MAGIC_NUMBER;
+            } else {
+                return false;
+            }
         }
 
-        // Interpret the string as a decimal integer and compute the remainder of that number on division by 97.
-        BigInteger ibanNumber = new BigInteger(numericAccountNumber.toString());
-        return ibanNumber.mod(IBANNUMBER_MAGIC_NUMBER).intValue() == 1;
-
+        return remainder == 1;
     }
 }
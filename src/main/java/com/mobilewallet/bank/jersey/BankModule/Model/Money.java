@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Model;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+
+/**
+ * Exact money arithmetic, all amounts and balances are kept as long in minor units (cents)
+ * Arithmetic works only with primitives and never allocates, conversion from and to decimal is done only
+ * on the boundary of application - database columns and json messages
+ * @author Martin Stepanek
+ */
+public final class Money {
+
+    /**
+     * Number of decimal places of currency and number of minor units in one unit
+     */
+    public static final int SCALE = 2;
+    public static final long UNIT = 100;
+
+    public static final long ZERO = 0;
+
+    private Money() {}
+
+
+    /**
+     * Add two amounts
+     * @param a long, amount in minor units
+     * @param b long, amount in minor units
+     * @return long, sum in minor units
+     * @throws ArithmeticException on overflow
+     */
+    public static long add(long a, long b) {
+        long sum = a + b;
+        // overflow only if both operands have the same sign and sum has different one
+        if(((a ^ sum) & (b ^ sum)) < 0) {
+            throw new ArithmeticException("Money overflow: " + a + " + " + b);
+        }
+
+        return sum;
+    }
+
+    /**
+     * Subtract two amounts
+     * @param a long, amount in minor units
+     * @param b long, amount in minor units
+     * @return long, difference in minor units
+     * @throws ArithmeticException on overflow
+     */
+    public static long subtract(long a, long b) {
+        long difference = a - b;
+        if(((a ^ b) & (a ^ difference)) < 0) {
+            throw new ArithmeticException("Money overflow: " + a + " - " + b);
+        }
+
+        return difference;
+    }
+
+    /**
+     * Negate amount
+     * @param a long, amount in minor units
+     * @return long, negated amount in minor units
+     * @throws ArithmeticException on overflow
+     */
+    public static long negate(long a) {
+        if(a == Long.MIN_VALUE) {
+            throw new ArithmeticException("Money overflow: -" + a);
+        }
+
+        return -a;
+    }
+
+
+    /**
+     * Parse decimal amount, e.g. "12.5" or "-0.01"
+     * Amount with more decimal places than {@link #SCALE} is not valid unless the extra places are zeros
+     * @param value String, decimal amount in units
+     * @return long, amount in minor units
+     * @throws NumberFormatException if value is not valid amount
+     */
+    public static long parse(String value) {
+        if(value == null || value.isEmpty()) {
+            throw new NumberFormatException("Empty amount");
+        }
+
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        char first = value.charAt(0);
+        if(first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+
+        long units = 0;
+        int digits = 0;
+        for(; i < length && value.charAt(i) != '.'; i++, digits++) {
+            char c = value.charAt(i);
+            if(c < '0' || c > '9') {
+                // exponent and other notations are rare, they are left to BigDecimal
+                return fromDecimal(new BigDecimal(value));
+            }
+            units = add(multiply10(units), c - '0');
+        }
+
+        long minor = 0;
+        int places = 0;
+        if(i < length) {
+            for(i++; i < length; i++, places++) {
+                char c = value.charAt(i);
+                if(c < '0' || c > '9') {
+                    return fromDecimal(new BigDecimal(value));
+                }
+                if(places < SCALE) {
+                    minor = minor * 10 + (c - '0');
+                }
+                else if(c != '0') {
+                    throw new NumberFormatException("Amount has more than " + SCALE + " decimal places: " + value);
+                }
+            }
+        }
+        if(digits == 0 && places == 0) {
+            throw new NumberFormatException("Amount has no digits: " + value);
+        }
+        for(; places < SCALE; places++) {
+            minor *= 10;
+        }
+
+        long amount = add(multiply(units, UNIT), minor);
+        return negative ? -amount : amount;
+    }
+
+    /**
+     * Read amount from json, amount could be json number or string
+     * @param json JSONObject, json with amount
+     * @param key String, key of amount
+     * @return long, amount in minor units
+     * @throws JSONException if amount is missing or is not valid amount
+     */
+    public static long fromJson(JSONObject json, String key) throws JSONException {
+        Object value = json.get(key);
+        try {
+            if(value instanceof Integer || value instanceof Long) {
+                return multiply(((Number) value).longValue(), UNIT);
+            }
+
+            return parse(value.toString());
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a valid amount: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Convert decimal amount to minor units
+     * @param value BigDecimal, decimal amount in units
+     * @return long, amount in minor units
+     * @throws ArithmeticException if amount has more decimal places than {@link #SCALE} or does not fit into long
+     */
+    public static long fromDecimal(BigDecimal value) {
+        return value.movePointRight(SCALE).longValueExact();
+    }
+
+    /**
+     * Convert amount to decimal with {@link #SCALE} decimal places, used for database and json
+     * @param amount long, amount in minor units
+     * @return BigDecimal, amount in units
+     */
+    public static BigDecimal toDecimal(long amount) {
+        return BigDecimal.valueOf(amount, SCALE);
+    }
+
+    /**
+     * Format amount as decimal string with {@link #SCALE} decimal places, e.g. "12.50"
+     * @param amount long, amount in minor units
+     * @return String
+     */
+    public static String format(long amount) {
+        return toDecimal(amount).toPlainString();
+    }
+
+
+    private static long multiply10(long value) {
+        return multiply(value, 10);
+    }
+
+    private static long multiply(long value, long factor) {
+        long result = value * factor;
+        if(value != 0 && (result / factor != value || (value > 0) != (result > 0))) {
+            throw new ArithmeticException("Money overflow: " + value + " * " + factor);
+        }
+
+        return result;
+    }
+}
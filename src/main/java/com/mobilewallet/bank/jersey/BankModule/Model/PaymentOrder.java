@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Model;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Payment order parsed and validated once, the same object is used by authentication, status messages and settlement
+ * Order has at least one destination, every amount is positive and total is sum of destinations,
+ * if order has amount it has to be equal to total
+ * @author Martin Stepanek
+ */
+public final class PaymentOrder {
+
+    public static final String DEFAULT_CURRENCY = "EUR";
+
+    private final String paymentId;
+    private final String sourceAccount;
+    /**
+     * Bank id as it was sent, bic from wallet or id from database
+     */
+    private final Object bankId;
+    private final String currency;
+    private final String message;
+    private final List<Destination> destinations;
+    private final long total;
+
+
+    private PaymentOrder(String paymentId, String sourceAccount, Object bankId, String currency, String message,
+                         List<Destination> destinations) throws JSONException {
+        if(paymentId == null || paymentId.isEmpty()) {
+            throw new JSONException("Payment order has no paymentId");
+        }
+        if(sourceAccount == null || sourceAccount.isEmpty()) {
+            throw new JSONException("Payment order " + paymentId + " has no sourceAccount");
+        }
+        if(destinations.isEmpty()) {
+            throw new JSONException("Payment order " + paymentId + " has no paymentDestinations");
+        }
+
+        long sum = Money.ZERO;
+        try {
+            for(Destination destination : destinations) {
+                sum = Money.add(sum, destination.amount);
+            }
+        } catch (ArithmeticException e) {
+            throw new JSONException("Total amount of payment order " + paymentId + " is too big");
+        }
+
+        this.paymentId = paymentId;
+        this.sourceAccount = sourceAccount;
+        this.bankId = bankId;
+        this.currency = currency;
+        this.message = message;
+        this.destinations = Collections.unmodifiableList(destinations);
+        this.total = sum;
+    }
+
+
+    /**
+     * Parse payment order from wallet
+     * @param json JSONObject, payment order
+     * @return PaymentOrder
+     * @throws JSONException if order is malformed, required value is missing or amounts are not valid
+     */
+    public static PaymentOrder fromJson(JSONObject json) throws JSONException {
+        JSONArray array = json.getJSONArray("paymentDestinations");
+        List<Destination> destinations = new ArrayList<>(array.length());
+        for(int i = 0; i < array.length(); i++) {
+            JSONObject destination = array.getJSONObject(i);
+            String accountNumber = destination.getString("destinationAccount");
+            if(accountNumber.isEmpty()) {
+                throw new JSONException("Destination " + i + " has no destinationAccount");
+            }
+            long amount = Money.fromJson(destination, "amount");
+            if(amount <= 0) {
+                throw new JSONException("Amount of destination " + accountNumber + " is not positive");
+            }
+            destinations.add(new Destination(accountNumber, amount));
+        }
+
+        PaymentOrder order = new PaymentOrder(json.optString("paymentId", null), json.optString("sourceAccount", null),
+                json.opt("bankId"), json.optString("currency", DEFAULT_CURRENCY), json.optString("message", null), destinations);
+        if(json.has("amount") && Money.fromJson(json, "amount") != order.total) {
+            throw new JSONException("Amount of payment order " + order.paymentId + " is not sum of its destinations");
+        }
+
+        return order;
+    }
+
+    /**
+     * Create payment order of stored transaction
+     * @param tr Transaction, stored payment
+     * @param source Account, source account of payment
+     * @param destinations List of AccountTransaction, destinations with account numbers
+     * @return PaymentOrder
+     * @throws JSONException if stored payment is not valid order
+     */
+    public static PaymentOrder fromTransaction(Transaction tr, Account source, List<AccountTransaction> destinations) throws JSONException {
+        List<Destination> orderDestinations = new ArrayList<>(destinations.size());
+        for(AccountTransaction at : destinations) {
+            orderDestinations.add(new Destination(at.getToAccountNumber(), at.getAmount()));
+        }
+
+        PaymentOrder order = new PaymentOrder(tr.getPaymentId(), source.getAccountNumber(), source.getBankId(),
+                DEFAULT_CURRENCY, tr.getMessage(), orderDestinations);
+        if(order.total != tr.getAmount()) {
+            throw new JSONException("Amount of payment " + order.paymentId + " is not sum of its destinations");
+        }
+
+        return order;
+    }
+
+
+    public String getPaymentId() {
+        return paymentId;
+    }
+
+    public String getSourceAccount() {
+        return sourceAccount;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public List<Destination> getDestinations() {
+        return destinations;
+    }
+
+    /**
+     * Get total amount of order
+     * @return long, sum of all destinations in minor units
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Get sum of credits for every destination account, account can be more times in destinations
+     * @return Map of account number to amount in minor units
+     */
+    public Map<String, Long> getCredits() {
+        Map<String, Long> credits = new HashMap<>();
+        for(Destination destination : destinations) {
+            Long credit = credits.get(destination.accountNumber);
+            credits.put(destination.accountNumber, Money.add(credit == null ? Money.ZERO : credit, destination.amount));
+        }
+
+        return credits;
+    }
+
+
+    /**
+     * Convert order to payment status message
+     * @param status String, status of payment
+     * @param timeSent String, time of message
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson(String status, String timeSent) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("paymentId", paymentId);
+        json.put("status", status);
+        json.put("amount", Money.toDecimal(total));
+        json.put("bankId", bankId);
+        json.put("sourceAccount", sourceAccount);
+        json.put("currency", currency);
+        json.put("timeSent", timeSent);
+        json.put("message", message);
+
+        JSONArray destinationsJson = new JSONArray();
+        for(Destination destination : destinations) {
+            JSONObject destinationJson = new JSONObject();
+            destinationJson.put("destinationAccount", destination.accountNumber);
+            destinationJson.put("amount", Money.toDecimal(destination.amount));
+            destinationsJson.put(destinationJson);
+        }
+        json.put("paymentDestinations", destinationsJson);
+
+        return json;
+    }
+
+
+    /**
+     * Destination account and its amount
+     */
+    public static final class Destination {
+        private final String accountNumber;
+        private final long amount;
+
+        private Destination(String accountNumber, long amount) {
+            this.accountNumber = accountNumber;
+            this.amount = amount;
+        }
+
+        public String getAccountNumber() {
+            return accountNumber;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Model;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * States of payment and allowed transitions between them
+ * requested -> pending -> settling -> received
+ * requested, pending, settling -> rejected
+ * requested, pending -> expired
+ *
+ * Payment is settling while money is moved, so only one of concurrent confirmations moves money.
+ * Settling payment changes to received in the same storage transaction as money is moved {@see com.mobilewallet.bank.jersey.BankModule.Manager.BankStorage#settlePayment},
+ * if settlement fails it is rejected.
+ * Transition is applied only if payment is still in one of previous states {@see com.mobilewallet.bank.jersey.BankModule.Manager.BankStorage#transitionTransactionStatus}
+ * Transitions never lead back, so status decided in memory is written conditionally on its earlier states and writing it again changes nothing
+ * @author Martin Stepanek
+ */
+public enum PaymentStatus {
+
+    REQUESTED("requested"),
+    PENDING("pending"),
+    SETTLING("settling"),
+    RECEIVED("received"),
+    REJECTED("rejected"),
+    EXPIRED("expired");
+
+    private static final Map<PaymentStatus, Set<PaymentStatus>> PREVIOUS = new EnumMap<>(PaymentStatus.class);
+    private static final Map<PaymentStatus, Set<PaymentStatus>> EARLIER = new EnumMap<>(PaymentStatus.class);
+
+    static {
+        PREVIOUS.put(REQUESTED, Collections.<PaymentStatus>emptySet());
+        PREVIOUS.put(PENDING, Collections.unmodifiableSet(EnumSet.of(REQUESTED)));
+        PREVIOUS.put(SETTLING, Collections.unmodifiableSet(EnumSet.of(PENDING)));
+        PREVIOUS.put(RECEIVED, Collections.unmodifiableSet(EnumSet.of(SETTLING)));
+        PREVIOUS.put(REJECTED, Collections.unmodifiableSet(EnumSet.of(REQUESTED, PENDING, SETTLING)));
+        PREVIOUS.put(EXPIRED, Collections.unmodifiableSet(EnumSet.of(REQUESTED, PENDING)));
+
+        for(PaymentStatus status : values()) {
+            Set<PaymentStatus> earlier = EnumSet.noneOf(PaymentStatus.class);
+            addEarlier(status, earlier);
+            EARLIER.put(status, Collections.unmodifiableSet(earlier));
+        }
+    }
+
+    private static void addEarlier(PaymentStatus status, Set<PaymentStatus> earlier) {
+        for(PaymentStatus previous : PREVIOUS.get(status)) {
+            if(earlier.add(previous)) {
+                addEarlier(previous, earlier);
+            }
+        }
+    }
+
+    private final String value;
+
+    PaymentStatus(String value) {
+        this.value = value;
+    }
+
+
+    /**
+     * Get status as it is stored in database
+     * @return String
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Get states from which payment can change to this state
+     * @return Set of PaymentStatus, empty for initial state
+     */
+    public Set<PaymentStatus> getPrevious() {
+        return PREVIOUS.get(this);
+    }
+
+    /**
+     * Get all states from which payment can get to this state by one or more transitions
+     * @return Set of PaymentStatus, empty for initial state
+     */
+    public Set<PaymentStatus> getEarlier() {
+        return EARLIER.get(this);
+    }
+
+    /**
+     * Check if payment is finished, finished payment can not change anymore
+     * @return boolean, true for received, rejected and expired
+     */
+    public boolean isFinal() {
+        return this == RECEIVED || this == REJECTED || this == EXPIRED;
+    }
+
+    /**
+     * Check if payment can change from this state to given state
+     * @param next PaymentStatus, new state
+     * @return boolean, true if transition is allowed
+     */
+    public boolean canChangeTo(PaymentStatus next) {
+        return PREVIOUS.get(next).contains(this);
+    }
+
+
+    /**
+     * Get state by value stored in database
+     * @param value String, status of transaction
+     * @return PaymentStatus, null if value is unknown
+     */
+    public static PaymentStatus fromValue(String value) {
+        for(PaymentStatus status : values()) {
+            if(status.value.equals(value)) {
+                return status;
+            }
+        }
+
+        return null;
+    }
+}
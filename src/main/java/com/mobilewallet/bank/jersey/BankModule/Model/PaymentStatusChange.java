@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Model;
+
+import java.sql.Timestamp;
+
+/**
+ * Status of payment decided in memory and not written to storage yet
+ * @author Martin Stepanek
+ */
+public final class PaymentStatusChange {
+
+    private final String paymentId;
+    private final PaymentStatus status;
+    private final String date;
+
+
+    /**
+     * PaymentStatusChange constructor
+     * @param paymentId String, payment id in UUID format
+     * @param status PaymentStatus, new status
+     * @param date String, date of realization in format yyyy-MM-dd HH:mm:ss
+     */
+    public PaymentStatusChange(String paymentId, PaymentStatus status, String date) {
+        this.paymentId = paymentId;
+        this.status = status;
+        this.date = date;
+    }
+
+
+    public String getPaymentId() {
+        return paymentId;
+    }
+
+    public PaymentStatus getStatus() {
+        return status;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    /**
+     * Replace status and date of realization of transaction read from storage by this change
+     * @param t Transaction, read from storage
+     * @return Transaction, the same object
+     */
+    public Transaction applyTo(Transaction t) {
+        t.setStatus(status.getValue());
+        t.setDateRealized(Timestamp.valueOf(date));
+
+        return t;
+    }
+}
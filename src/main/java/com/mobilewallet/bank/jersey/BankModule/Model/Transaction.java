@@ -5,6 +5,7 @@
 
 package com.mobilewallet.bank.jersey.BankModule.Model;
 
+import java.util.ArrayList;
 import java.util.Date;
 
 /**
@@ -15,11 +16,15 @@ public class Transaction {
     private int id;
     private int fromId;
     private String paymentId;
-    private double amount;
+    /**
+     * Amount in minor units, see {@link Money}
+     */
+    private long amount;
     private Date dateCreated;
     private Date dateRealized;
     private String status;
     private String message;
+    private ArrayList<AccountTransaction> destinations = new ArrayList<>();
 
     public int getId() {
         return id;
@@ -45,11 +50,11 @@ public class Transaction {
         this.paymentId = paymentId;
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
-    public void setAmount(double amount) {
+    public void setAmount(long amount) {
         this.amount = amount;
     }
 
@@ -84,4 +89,12 @@ public class Transaction {
     public void setMessage(String message) {
         this.message = message;
     }
+
+    public ArrayList<AccountTransaction> getDestinations() {
+        return destinations;
+    }
+
+    public void setDestinations(ArrayList<AccountTransaction> destinations) {
+        this.destinations = destinations;
+    }
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Provisioning;
+
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankDirectory;
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankStorage;
+import com.mobilewallet.bank.jersey.BankModule.Manager.ConfigManager;
+import com.mobilewallet.bank.jersey.BankModule.Manager.StorageManager;
+import com.mobilewallet.bank.jersey.BankModule.Model.IbanTest;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Bulk import of accounts of partner bank
+ * Input is streamed line by line, every line is one account either as CSV "accountNumber[,bic]" or as json
+ * {"accountNumber": "...", "bic": "..."}. If bic is missing, it is taken from account number the same way as in link-account-post.
+ * Empty lines, lines starting with # and CSV header are skipped.
+ *
+ * Valid accounts are collected to batches of {@link #batchSize}, existing accounts of batch are found by one query,
+ * new accounts are inserted by multi-row statements and their link tokens are sent by {@link LinkNotifier}
+ * @author Martin Stepanek
+ */
+public class AccountImporter {
+
+    private static final int MAX_JOBS = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(AccountImporter.class);
+
+    private static AccountImporter instance;
+
+    private final BankStorage storage;
+    private final LinkNotifier notifier;
+    private final int batchSize;
+    private final int maxErrors;
+    private final boolean isDevel;
+
+    /**
+     * Last jobs by id, the oldest job is forgotten
+     */
+    @SuppressWarnings("serial")
+    private final Map<String, ImportJob> jobs = new LinkedHashMap<String, ImportJob>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImportJob> eldest) {
+            return size() > MAX_JOBS;
+        }
+    };
+
+
+    /**
+     * AccountImporter constructor
+     */
+    private AccountImporter() {
+        ConfigManager cm = ConfigManager.getInstance();
+        storage = StorageManager.getInstance();
+        batchSize = Math.max(1, cm.getIntPropValues("IMPORT_BATCH_SIZE", 500));
+        maxErrors = cm.getIntPropValues("IMPORT_MAX_ERRORS", 1000);
+        isDevel = Boolean.valueOf(cm.getPropValues("DEVELOPMENT"));
+        notifier = new LinkNotifier(cm.getPropValues("LINK_ACCOUNT_URL"), cm.getPropValues("LINK_ACCOUNT_BATCH_URL", ""),
+                cm.getIntPropValues("LINK_NOTIFY_BATCH_SIZE", 100),
+                cm.getIntPropValues("LINK_NOTIFY_RATE", 500));
+    }
+
+
+    /**
+     * Method for returning singleton instance
+     * @return AccountImporter
+     */
+    public static synchronized AccountImporter getInstance() {
+        if(instance == null) {
+            instance = new AccountImporter();
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Create and register new job, so its progress could be read while it runs
+     * @param id String, id of job chosen by client, random UUID is used if null or empty
+     * @return ImportJob, null if job with given id already exists
+     */
+    public ImportJob createJob(String id) {
+        String jobId = id == null || id.trim().isEmpty() ? String.valueOf(UUID.randomUUID()) : id.trim();
+
+        synchronized (jobs) {
+            if(jobs.containsKey(jobId)) {
+                return null;
+            }
+            ImportJob job = new ImportJob(jobId, maxErrors);
+            jobs.put(jobId, job);
+
+            return job;
+        }
+    }
+
+    /**
+     * Get job by id
+     * @param id String, id of job
+     * @return ImportJob, null if job does not exist
+     */
+    public ImportJob getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+
+    /**
+     * Import all accounts from input, returns when all accounts are stored, link tokens are sent later
+     * @param job ImportJob, job created by {@link #createJob(String)}
+     * @param input InputStream, CSV or json lines in UTF-8
+     */
+    public void run(ImportJob job, InputStream input) {
+        logger.info("Import: " + job.getId() + " started");
+
+        Map<String, Row> batch = new LinkedHashMap<>();
+        long line = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                Row row = parse(job, line, text.trim());
+                if(row == null) {
+                    continue;
+                }
+
+                if(batch.containsKey(row.accountNumber)) {
+                    job.duplicate(line, row.accountNumber);
+                    continue;
+                }
+                batch.put(row.accountNumber, row);
+
+                if(batch.size() >= batchSize) {
+                    store(job, batch);
+                    batch.clear();
+                }
+            }
+            store(job, batch);
+
+            job.finish();
+            logger.info("Import: " + job.getId() + " finished, lines: " + line);
+        } catch (IOException | SQLException e) {
+            logger.error("Error: Import " + job.getId() + " stopped at line " + line + " - ", e);
+            e.printStackTrace();
+            job.fail("Stopped at line " + line + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop sending of link tokens
+     */
+    public void shutdown() {
+        notifier.close();
+    }
+
+
+    /**
+     * Parse and validate one line
+     * @return Row, null if line is skipped or invalid
+     */
+    private Row parse(ImportJob job, long line, String text) {
+        if(text.isEmpty() || text.startsWith("#") || text.toLowerCase().startsWith("accountnumber")) {
+            return null;
+        }
+        job.rowRead();
+
+        String accountNumber;
+        String bic = "";
+        if(text.startsWith("{")) {
+            try {
+                JSONObject json = new JSONObject(text);
+                accountNumber = json.getString("accountNumber");
+                bic = json.optString("bic", "");
+            } catch (JSONException e) {
+                job.invalid(line, null, "Invalid json: " + e.getMessage());
+                return null;
+            }
+        }
+        else {
+            String[] columns = text.split(",");
+            accountNumber = unquote(columns[0]);
+            if(columns.length > 1) {
+                bic = unquote(columns[1]);
+            }
+        }
+
+        accountNumber = accountNumber.replace(" ", "").toUpperCase();
+        if(!IbanTest.ibanTest(accountNumber)) {
+            job.invalid(line, accountNumber, "Account number is not in valid IBAN format");
+            return null;
+        }
+
+        if(bic.isEmpty()) {
+            bic = accountNumber.substring(4, 8);
+        }
+        if(BankDirectory.getInstance().getByBic(bic).getId() == 0) {
+            job.invalid(line, accountNumber, "Bank doesn't exists: " + bic);
+            return null;
+        }
+
+        return new Row(line, accountNumber, bic);
+    }
+
+    /**
+     * Skip existing accounts of batch, insert new ones and queue their link tokens
+     */
+    private void store(ImportJob job, Map<String, Row> batch) throws SQLException {
+        if(batch.isEmpty()) {
+            return;
+        }
+
+        Set<String> existing = storage.getExistingAccountNumbers(batch.keySet());
+        Map<String, String> accounts = new LinkedHashMap<>();
+        for(Row row : batch.values()) {
+            if(existing.contains(row.accountNumber)) {
+                job.duplicate(row.line, row.accountNumber);
+            }
+            else {
+                accounts.put(row.accountNumber, row.bic);
+            }
+        }
+
+        List<String> linked = storage.linkAccounts(accounts);
+        job.imported(linked.size());
+
+        // accounts added meanwhile by someone else
+        Map<String, Row> skipped = new HashMap<>(batch);
+        skipped.keySet().removeAll(existing);
+        skipped.keySet().removeAll(linked);
+        for(Row row : skipped.values()) {
+            job.duplicate(row.line, row.accountNumber);
+        }
+
+        for(String accountNumber : linked) {
+            notifier.submit(job, accountNumber, generateToken());
+        }
+    }
+
+    /**
+     * Generate link token, shorter in development the same as for single account
+     */
+    private String generateToken() {
+        String uuid = String.valueOf(UUID.randomUUID());
+        return isDevel ? uuid.substring(0, 6) : uuid;
+    }
+
+    private static String unquote(String value) {
+        String trimmed = value.trim();
+        if(trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\"")) {
+            return trimmed.substring(1, trimmed.length() - 1).trim();
+        }
+
+        return trimmed;
+    }
+
+
+    private static final class Row {
+        private final long line;
+        private final String accountNumber;
+        private final String bic;
+
+        private Row(long line, String accountNumber, String bic) {
+            this.line = line;
+            this.accountNumber = accountNumber;
+            this.bic = bic;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Provisioning;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one bulk import of accounts, counters are updated by importer and by link notifier
+ * Only first {@link #maxErrors} row errors are kept, all of them are counted
+ * @author Martin Stepanek
+ */
+public class ImportJob {
+
+    public static final String RUNNING = "running";
+    public static final String FINISHED = "finished";
+    public static final String FAILED = "failed";
+
+    private final String id;
+    private final int maxErrors;
+    private final long started = System.currentTimeMillis();
+    private volatile long finished = 0;
+    private volatile String status = RUNNING;
+    private volatile String failure;
+
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong notified = new AtomicLong();
+    private final AtomicLong notificationsFailed = new AtomicLong();
+
+    private final List<RowError> errors = new ArrayList<>();
+
+
+    /**
+     * ImportJob constructor
+     * @param id String, id of job
+     * @param maxErrors int, maximum number of kept row errors
+     */
+    public ImportJob(String id, int maxErrors) {
+        this.id = id;
+        this.maxErrors = maxErrors;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    void rowRead() {
+        rows.incrementAndGet();
+    }
+
+    void imported(int count) {
+        imported.addAndGet(count);
+    }
+
+    void duplicate(long line, String accountNumber) {
+        duplicates.incrementAndGet();
+        error(line, accountNumber, "Account number already exists");
+    }
+
+    void invalid(long line, String accountNumber, String message) {
+        invalid.incrementAndGet();
+        error(line, accountNumber, message);
+    }
+
+    void notified(int count) {
+        notified.addAndGet(count);
+    }
+
+    void notificationFailed(int count) {
+        notificationsFailed.addAndGet(count);
+    }
+
+    void finish() {
+        finished = System.currentTimeMillis();
+        status = FINISHED;
+    }
+
+    void fail(String message) {
+        failure = message;
+        finished = System.currentTimeMillis();
+        status = FAILED;
+    }
+
+
+    /**
+     * Convert progress of job to json
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("status", status);
+        if(failure != null) {
+            json.put("failure", failure);
+        }
+        json.put("durationMs", (finished == 0 ? System.currentTimeMillis() : finished) - started);
+        json.put("rows", rows.get());
+        json.put("imported", imported.get());
+        json.put("duplicates", duplicates.get());
+        json.put("invalid", invalid.get());
+        json.put("notified", notified.get());
+        json.put("notificationsFailed", notificationsFailed.get());
+        json.put("notificationsPending", imported.get() - notified.get() - notificationsFailed.get());
+
+        JSONArray errorsJson = new JSONArray();
+        synchronized (errors) {
+            for(RowError error : errors) {
+                JSONObject errorJson = new JSONObject();
+                errorJson.put("line", error.line);
+                errorJson.put("accountNumber", error.accountNumber);
+                errorJson.put("message", error.message);
+                errorsJson.put(errorJson);
+            }
+        }
+        json.put("errors", errorsJson);
+        json.put("errorsTruncated", duplicates.get() + invalid.get() > errorsJson.length());
+
+        return json;
+    }
+
+
+    private void error(long line, String accountNumber, String message) {
+        synchronized (errors) {
+            if(errors.size() < maxErrors) {
+                errors.add(new RowError(line, accountNumber, message));
+            }
+        }
+    }
+
+    private static final class RowError {
+        private final long line;
+        private final String accountNumber;
+        private final String message;
+
+        private RowError(long line, String accountNumber, String message) {
+            this.line = line;
+            this.accountNumber = accountNumber;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Provisioning;
+
+import com.mobilewallet.bank.jersey.HttpsCertificateUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends link tokens of imported accounts to wallet server in batches with limited rate
+ * At most {@link #batchSize} tokens are sent in one period, period is set so that rate stays under configured accounts per second.
+ * If batch url is set, whole batch is one POST with array of accounts, otherwise every account is POSTed to link account url
+ * the same way as single linked account {@see com.mobilewallet.bank.jersey.BankModule.BankClient#generateLinkAccString(String)}
+ * @author Martin Stepanek
+ */
+public class LinkNotifier {
+
+    private final Logger logger = LoggerFactory.getLogger(LinkNotifier.class);
+
+    private final String linkAccountUrl;
+    private final String batchUrl;
+    private final int batchSize;
+
+    private final LinkedBlockingQueue<Notification> queue = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService sender;
+    private CloseableHttpAsyncClient httpclient;
+
+
+    /**
+     * LinkNotifier constructor, starts sender
+     * @param linkAccountUrl String, url for one account
+     * @param batchUrl String, url for batch of accounts, empty if wallet server accepts only one account
+     * @param batchSize int, maximum number of accounts sent in one period
+     * @param ratePerSecond int, maximum number of accounts sent per second
+     */
+    public LinkNotifier(String linkAccountUrl, String batchUrl, int batchSize, int ratePerSecond) {
+        this.linkAccountUrl = linkAccountUrl;
+        this.batchUrl = batchUrl;
+        this.batchSize = Math.max(1, batchSize);
+
+        try {
+            httpclient = HttpAsyncClients.custom()
+                    .setSSLContext(HttpsCertificateUtils.getSslContextWithTrustedCertificate())
+                    .build();
+            httpclient.start();
+        } catch (Exception e) {
+            logger.error("Error: Create HttpClient - ", e);
+            e.printStackTrace();
+        }
+
+        long period = Math.max(1, 1000L * this.batchSize / Math.max(1, ratePerSecond));
+        sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "link-notifier");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sender.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sendBatch();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Queue link token of imported account
+     * @param job ImportJob, job that imported account
+     * @param accountNumber String, account number
+     * @param token String, link token
+     */
+    public void submit(ImportJob job, String accountNumber, String token) {
+        queue.add(new Notification(job, accountNumber, token));
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Stop sender, not sent tokens are dropped
+     */
+    public void close() {
+        sender.shutdownNow();
+        try {
+            if(httpclient != null) {
+                httpclient.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error: ", e);
+        }
+    }
+
+
+    private void sendBatch() {
+        List<Notification> batch = new ArrayList<>();
+        queue.drainTo(batch, batchSize);
+        if(batch.isEmpty()) {
+            return;
+        }
+        if(httpclient == null) {
+            failed(batch);
+            return;
+        }
+
+        try {
+            String timestamp = new Timestamp(System.currentTimeMillis()).toString();
+            if(batchUrl != null && !batchUrl.isEmpty()) {
+                JSONArray accounts = new JSONArray();
+                for(Notification notification : batch) {
+                    accounts.put(notification.toJson(timestamp));
+                }
+                JSONObject json = new JSONObject();
+                json.put("accounts", accounts);
+                post(batchUrl, json, batch);
+            }
+            else {
+                for(Notification notification : batch) {
+                    post(linkAccountUrl, notification.toJson(timestamp), Collections.singletonList(notification));
+                }
+            }
+        } catch (JSONException | UnsupportedEncodingException e) {
+            logger.error("Error: ", e);
+            failed(batch);
+        }
+    }
+
+    private void post(String url, JSONObject json, final List<Notification> notifications) throws UnsupportedEncodingException {
+        final HttpPost post = new HttpPost(url);
+        post.setHeader("content-type", "application/json");
+        post.setEntity(new StringEntity(json.toString()));
+
+        httpclient.execute(post, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse httpResponse) {
+                int code = httpResponse.getStatusLine().getStatusCode();
+                try {
+                    EntityUtils.consume(httpResponse.getEntity());
+                } catch (IOException e) {
+                    logger.error("Error: ", e);
+                }
+
+                if(code >= 200 && code < 300) {
+                    for(Notification notification : notifications) {
+                        notification.job.notified(1);
+                    }
+                    logger.debug("Link tokens sent: " + notifications.size());
+                }
+                else {
+                    logger.error(post.getRequestLine() + "->" + httpResponse.getStatusLine());
+                    LinkNotifier.this.failed(notifications);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                logger.error(post.getRequestLine() + "->" + e);
+                LinkNotifier.this.failed(notifications);
+            }
+
+            @Override
+            public void cancelled() {
+                logger.error(post.getRequestLine() + " cancelled");
+                LinkNotifier.this.failed(notifications);
+            }
+        });
+    }
+
+    private void failed(List<Notification> notifications) {
+        for(Notification notification : notifications) {
+            notification.job.notificationFailed(1);
+        }
+    }
+
+
+    private static final class Notification {
+        private final ImportJob job;
+        private final String accountNumber;
+        private final String token;
+
+        private Notification(ImportJob job, String accountNumber, String token) {
+            this.job = job;
+            this.accountNumber = accountNumber;
+            this.token = token;
+        }
+
+        private JSONObject toJson(String timestamp) throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("accountNumber", accountNumber);
+            json.put("token", token);
+            json.put("timestamp", timestamp);
+
+            return json;
+        }
+    }
+}
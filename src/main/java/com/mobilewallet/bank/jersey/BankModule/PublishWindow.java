@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule;
+
+import com.mobilewallet.bank.jersey.BankModule.Manager.LatencyHistogram;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Window of pipelined publishes of asynchronous Mqtt client
+ * At most {@link #maxInFlight} messages wait for acknowledgement of broker, next messages wait in queue and are sent
+ * from completion callback of earlier message. Caller never waits, completion callbacks run on callback thread of Mqtt client,
+ * which can be the caller itself or can be waiting for the caller in {@link MessageDispatcher}.
+ *
+ * At most {@link #queueSize} messages wait. When queue is full, the oldest waiting sheddable message (answer to balance
+ * or history query, wallet can ask again) is dropped. If no sheddable message waits, new sheddable message is dropped
+ * and new payment status is rejected with error.
+ *
+ * Messages are sent in order of publish, but with QoS 2 they can be completed in different order
+ * @author Martin Stepanek
+ */
+public class PublishWindow {
+
+    private final Logger logger = LoggerFactory.getLogger(PublishWindow.class);
+
+    private final IMqttAsyncClient client;
+    private final int maxInFlight;
+    private final int queueSize;
+
+    /**
+     * Guarded by this, waiting messages are kept in two queues, so the oldest sheddable one is found at once,
+     * sequence of message keeps order of publish across both queues
+     */
+    private final ArrayDeque<Outbound> waiting = new ArrayDeque<>();
+    private final ArrayDeque<Outbound> sheddable = new ArrayDeque<>();
+    private long sequence = 0;
+    private int inFlight = 0;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile String lastError;
+
+    private final IMqttActionListener listener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            send(complete((Outbound) token.getUserContext(), null));
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            send(complete((Outbound) token.getUserContext(), exception));
+        }
+    };
+
+
+    /**
+     * PublishWindow constructor
+     * @param client IMqttAsyncClient, client used for sending, its max inflight has to be at least maxInFlight
+     * @param maxInFlight int, maximum number of messages not acknowledged by broker
+     * @param queueSize int, maximum number of messages waiting for window
+     */
+    public PublishWindow(IMqttAsyncClient client, int maxInFlight, int queueSize) {
+        this.client = client;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.queueSize = Math.max(0, queueSize);
+    }
+
+
+    /**
+     * Send message if window is not full, otherwise queue it, never waits
+     * @param topic String, topic path
+     * @param message MqttMessage, message
+     * @param canShed boolean, true if message can be dropped when queue is full
+     * @throws MqttException with reason max inflight if queue is full and message can not be dropped
+     */
+    public void publish(String topic, MqttMessage message, boolean canShed) throws MqttException {
+        Outbound outbound = new Outbound(topic, message);
+        synchronized (this) {
+            if(inFlight >= maxInFlight) {
+                queue(outbound, canShed);
+                return;
+            }
+            inFlight++;
+        }
+
+        send(outbound);
+    }
+
+    /**
+     * Wait until all queued and sent messages are completed
+     * @param timeout long, maximum time to wait, in milliseconds
+     * @return boolean, true if all messages were completed
+     */
+    public synchronized boolean drain(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while(inFlight > 0 || !waiting.isEmpty() || !sheddable.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Convert window state and counters to json, latency of acknowledgement is in microseconds
+     * @return JSONObject
+     * @throws JSONException on json error
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        synchronized (this) {
+            json.put("inFlight", inFlight);
+            json.put("waiting", waiting.size() + sheddable.size());
+        }
+        json.put("maxInFlight", maxInFlight);
+        json.put("queueSize", queueSize);
+        json.put("connected", client.isConnected());
+        json.put("published", published.get());
+        json.put("failed", failed.get());
+        json.put("queued", queued.get());
+        json.put("shed", shed.get());
+        json.put("rejected", rejected.get());
+        if(lastError != null) {
+            json.put("lastError", lastError);
+        }
+
+        JSONObject latencyJson = new JSONObject();
+        latencyJson.put("count", latency.getCount());
+        latencyJson.put("mean", latency.getMean());
+        latencyJson.put("p50", latency.getPercentile(50));
+        latencyJson.put("p99", latency.getPercentile(99));
+        latencyJson.put("max", latency.getMax());
+        json.put("latency", latencyJson);
+
+        return json;
+    }
+
+
+    /**
+     * Queue message, caller holds lock of window
+     * Full queue drops its oldest sheddable message, or the new message if it is sheddable, otherwise new message is rejected
+     */
+    private void queue(Outbound outbound, boolean canShed) throws MqttException {
+        if(waiting.size() + sheddable.size() >= queueSize) {
+            if(sheddable.isEmpty() && !canShed) {
+                rejected.incrementAndGet();
+                logger.error("Error: Publish queue is full of payment statuses, message to " + outbound.topic + " rejected");
+                throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+            }
+            Outbound dropped = sheddable.isEmpty() ? outbound : sheddable.poll();
+            shed.incrementAndGet();
+            logger.debug("Publish queue is full, message to " + dropped.topic + " dropped");
+            if(dropped == outbound) {
+                return;
+            }
+        }
+
+        outbound.sequence = sequence++;
+        if(canShed) {
+            sheddable.add(outbound);
+        }
+        else {
+            waiting.add(outbound);
+        }
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Send message and all next messages whose sending failed immediately, loop is used instead of recursion
+     * because all queued messages fail this way when client is disconnected
+     */
+    private void send(Outbound outbound) {
+        while(outbound != null) {
+            outbound.sent = System.nanoTime();
+            try {
+                client.publish(outbound.topic, outbound.message, outbound, listener);
+                return;
+            } catch (MqttException e) {
+                outbound = complete(outbound, e);
+            }
+        }
+    }
+
+    /**
+     * Record result of message and take its slot for the next queued message
+     * @return Outbound, next message to send, null if queue is empty
+     */
+    private Outbound complete(Outbound outbound, Throwable error) {
+        if(error == null) {
+            published.incrementAndGet();
+            latency.record(System.nanoTime() - outbound.sent);
+        }
+        else {
+            failed.incrementAndGet();
+            lastError = error.toString();
+            logger.error("Error: Publish to " + outbound.topic + " failed - ", error);
+        }
+
+        synchronized (this) {
+            Outbound next = waiting.peek();
+            if(next == null || (sheddable.peek() != null && sheddable.peek().sequence < next.sequence)) {
+                next = sheddable.poll();
+            }
+            else {
+                waiting.poll();
+            }
+            if(next == null) {
+                inFlight--;
+            }
+            notifyAll();
+            return next;
+        }
+    }
+
+
+    private static final class Outbound {
+        private final String topic;
+        private final MqttMessage message;
+        private long sequence;
+        private long sent;
+
+        private Outbound(String topic, MqttMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Test;
+
+import com.mobilewallet.bank.jersey.BankModule.Manager.DatabaseManager;
+import com.mobilewallet.bank.jersey.BankModule.Model.Account;
+import com.mobilewallet.bank.jersey.BankModule.Model.AccountTransaction;
+import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * Benchmark used for testing purposes, compares database round trips and time of one history request
+ * when history is read per transaction and when it is read by one joined query
+ * Usage: HistoryBenchmark accountNumber [iterations], database from config.properties is used
+ * @author Martin Stepanek
+ */
+public class HistoryBenchmark {
+
+    public static void main(String[] args) throws SQLException {
+        if(args.length < 1) {
+            System.out.println("Usage: HistoryBenchmark accountNumber [iterations]");
+            return;
+        }
+
+        String accountNumber = args[0];
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        DatabaseManager dm = DatabaseManager.getInstance();
+        Account account = dm.getUserAccountByNumber(accountNumber);
+
+        // warm up statements on pooled connections
+        perTransaction(dm, account.getId());
+        joined(dm, account.getId());
+
+        long statements = dm.getStatementCount();
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            perTransaction(dm, account.getId());
+        }
+        report("per transaction", iterations, dm.getStatementCount() - statements, System.nanoTime() - start);
+
+        statements = dm.getStatementCount();
+        start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            joined(dm, account.getId());
+        }
+        report("joined query", iterations, dm.getStatementCount() - statements, System.nanoTime() - start);
+
+        dm.shutdown();
+    }
+
+    /**
+     * History as it was read before, destinations and destination accounts are read for every transaction
+     */
+    private static int perTransaction(DatabaseManager dm, int accountId) throws SQLException {
+        int destinations = 0;
+        for(Transaction t : dm.getHistory(accountId)) {
+            for(AccountTransaction at : dm.getTransactionDestinations(t.getId())) {
+                at.setToAccountNumber(dm.getUserAccount(at.getToId()).getAccountNumber());
+                destinations++;
+            }
+        }
+
+        return destinations;
+    }
+
+    private static int joined(DatabaseManager dm, int accountId) throws SQLException {
+        int destinations = 0;
+        ArrayList<Transaction> transactions = dm.getHistoryWithDestinations(accountId);
+        for(Transaction t : transactions) {
+            destinations += t.getDestinations().size();
+        }
+
+        return destinations;
+    }
+
+    private static void report(String name, int iterations, long statements, long nanos) {
+        System.out.println(String.format("%-16s round trips per request: %8.1f, time per request: %8.3f ms",
+                name, (double) statements / iterations, nanos / 1e6 / iterations));
+    }
+}
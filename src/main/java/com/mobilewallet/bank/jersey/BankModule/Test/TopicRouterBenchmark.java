@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule.Test;
+
+import com.mobilewallet.bank.jersey.BankModule.BankClient;
+import com.mobilewallet.bank.jersey.BankModule.TopicRouter;
+
+/**
+ * Benchmark used for testing purposes, compares classification of topics by chain of contains
+ * as it was done in BankClient before and by precompiled topic router.
+ * Chain only classifies topic, so it is measured also with splitting of topic to get bic and account number, router reads them from match
+ * Usage: TopicRouterBenchmark [iterations], no broker or database is needed
+ * @author Martin Stepanek
+ */
+public class TopicRouterBenchmark {
+
+    private static final String[] TOPICS = {
+            BankClient.PAYMENT_ORDERS + "/SUBASKBX",
+            BankClient.REQUEST_BALANCE + "/SUBASKBX/SK3111000000001234567890",
+            BankClient.REQUEST_HISTORY + "/TATRSKBX/SK3111000000001234567890",
+            BankClient.REQUEST_BANK_ACCOUNT + "/GIBASKBX/SK3111000000001234567890",
+            BankClient.REQUEST_BALANCE + "/SUBASKBX",
+            "/bank/unknown/SUBASKBX"
+    };
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        TopicRouter<BankClient.Route> router = BankClient.createTopicRouter();
+
+        for(String topic : TOPICS) {
+            TopicRouter.Match<BankClient.Route> match = router.route(topic);
+            BankClient.Route route = match == null ? null : match.getHandler();
+            if(route != contains(topic)) {
+                throw new IllegalStateException("Routes differ for " + topic + ": " + route + ", " + contains(topic));
+            }
+            System.out.println(topic + " -> " + route + (match == null ? "" : ", bic: " + match.get("bic") + ", account: " + match.get("accountNumber")));
+        }
+
+        // warm up all
+        run(router, iterations / 10, false);
+        run(router, iterations / 10, true);
+        runContains(iterations / 10, false);
+        runContains(iterations / 10, true);
+
+        long start = System.nanoTime();
+        long found = runContains(iterations, false);
+        report("contains chain", iterations, found, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        found = run(router, iterations, false);
+        report("topic router", iterations, found, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        found = runContains(iterations, true);
+        report("chain + split", iterations, found, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        found = run(router, iterations, true);
+        report("router + vars", iterations, found, System.nanoTime() - start);
+    }
+
+    /**
+     * Classification as it was done before, every check scans topic again
+     */
+    private static BankClient.Route contains(String s) {
+        if(s.contains(BankClient.PAYMENT_ORDERS)) {
+            return BankClient.Route.PAYMENT_ORDER;
+        }
+        if(s.contains(BankClient.REQUEST_BALANCE)) {
+            return BankClient.Route.BALANCE;
+        }
+        if(s.contains(BankClient.REQUEST_HISTORY)) {
+            return BankClient.Route.HISTORY;
+        }
+        if(s.contains(BankClient.REQUEST_BANK_ACCOUNT)) {
+            return BankClient.Route.LINK_ACCOUNT;
+        }
+
+        return null;
+    }
+
+    private static long runContains(int iterations, boolean variables) {
+        long found = 0;
+        for(int i = 0; i < iterations; i++) {
+            String topic = TOPICS[i % TOPICS.length];
+            if(contains(topic) != null) {
+                found++;
+                if(variables) {
+                    // "", bank, kind of request..., bic, account number
+                    String[] levels = topic.split("/");
+                    found += levels[levels.length - 1].length() + levels[levels.length - 2].length();
+                }
+            }
+        }
+
+        return found;
+    }
+
+    private static long run(TopicRouter<BankClient.Route> router, int iterations, boolean variables) {
+        long found = 0;
+        for(int i = 0; i < iterations; i++) {
+            TopicRouter.Match<BankClient.Route> match = router.route(TOPICS[i % TOPICS.length]);
+            if(match != null) {
+                found++;
+                if(variables) {
+                    String bic = match.get("bic");
+                    String accountNumber = match.get("accountNumber");
+                    found += bic.length() + (accountNumber == null ? 0 : accountNumber.length());
+                }
+            }
+        }
+
+        return found;
+    }
+
+    private static void report(String name, int iterations, long found, long nanos) {
+        System.out.println(String.format("%-16s routed: %10d, time per topic: %8.1f ns", name, found, (double) nanos / iterations));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2017.
+ * Bank application that is part of school team project.
+ */
+
+package com.mobilewallet.bank.jersey.BankModule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Router of Mqtt topics to handlers, patterns are compiled into trie of topic levels
+ * Level of pattern is literal, variable {name} matching one level, or # as the last level matching all remaining levels (also none).
+ * Topic is resolved in one pass without splitting, values of variables are kept as bounds in topic until they are read.
+ *
+ * Literal level is preferred to variable and variable to #, matching does not go back,
+ * so patterns have to differ in literal level before they differ in variable
+ * @author Martin Stepanek
+ */
+public class TopicRouter<T> {
+
+    private static final String REST = "#";
+
+    private final Node<T> root = new Node<>();
+    private int maxVariables = 0;
+
+
+    /**
+     * Add pattern, e.g. /bank/request/balance/{bic}/{accountNumber}
+     * @param pattern String, levels separated by /
+     * @param handler T, handler returned for matching topics
+     * @throws IllegalArgumentException if the same pattern is already added or # is not the last level
+     */
+    public void add(String pattern, T handler) {
+        String[] levels = pattern.split("/", -1);
+        List<String> names = new ArrayList<>();
+        Node<T> node = root;
+
+        for(int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if(level.equals(REST)) {
+                if(i != levels.length - 1) {
+                    throw new IllegalArgumentException("# has to be the last level of pattern " + pattern);
+                }
+                if(node.rest != null) {
+                    throw new IllegalArgumentException("Pattern " + pattern + " is already routed");
+                }
+                node.rest = new Route<>(handler, names.toArray(new String[names.size()]));
+                maxVariables = Math.max(maxVariables, names.size());
+                return;
+            }
+
+            if(level.startsWith("{") && level.endsWith("}")) {
+                names.add(level.substring(1, level.length() - 1));
+                if(node.variable == null) {
+                    node.variable = new Node<>();
+                }
+                node = node.variable;
+            }
+            else {
+                node = node.literal(level);
+            }
+        }
+
+        if(node.route != null) {
+            throw new IllegalArgumentException("Pattern " + pattern + " is already routed");
+        }
+        node.route = new Route<>(handler, names.toArray(new String[names.size()]));
+        maxVariables = Math.max(maxVariables, names.size());
+    }
+
+
+    /**
+     * Resolve topic to handler and values of variables
+     * @param topic String, topic path of arrived message
+     * @return Match, null if no pattern matches topic
+     */
+    public Match<T> route(String topic) {
+        Node<T> node = root;
+        int[] bounds = null;
+        int count = 0;
+        int start = 0;
+
+        while(true) {
+            int end;
+            Node<T> child = null;
+            int literal = node.find(topic, start);
+            if(literal >= 0) {
+                child = node.children[literal];
+                end = start + node.literals[literal].length();
+            }
+            else {
+                end = topic.indexOf('/', start);
+                if(end < 0) {
+                    end = topic.length();
+                }
+            }
+            if(child == null && node.variable != null) {
+                if(bounds == null) {
+                    bounds = new int[maxVariables * 2];
+                }
+                bounds[count++] = start;
+                bounds[count++] = end;
+                child = node.variable;
+            }
+            if(child == null) {
+                return node.rest == null ? null : new Match<>(node.rest, topic, bounds, start);
+            }
+
+            node = child;
+            if(end == topic.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+
+        if(node.route != null) {
+            return new Match<>(node.route, topic, bounds, -1);
+        }
+        if(node.rest != null) {
+            return new Match<>(node.rest, topic, bounds, topic.length());
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Handler and values of variables of matched topic
+     */
+    public static final class Match<T> {
+        private final Route<T> route;
+        private final String topic;
+        private final int[] bounds;
+        private final int rest;
+
+        private Match(Route<T> route, String topic, int[] bounds, int rest) {
+            this.route = route;
+            this.topic = topic;
+            this.bounds = bounds;
+            this.rest = rest;
+        }
+
+        public T getHandler() {
+            return route.handler;
+        }
+
+        /**
+         * Get value of variable
+         * @param name String, name of variable without braces
+         * @return String, null if pattern does not have the variable
+         */
+        public String get(String name) {
+            for(int i = 0; i < route.names.length; i++) {
+                if(route.names[i].equals(name)) {
+                    return topic.substring(bounds[i * 2], bounds[i * 2 + 1]);
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Get levels matched by #
+         * @return String, remaining levels without leading /, null if pattern does not end with #
+         */
+        public String getRest() {
+            return rest < 0 ? null : topic.substring(rest);
+        }
+    }
+
+
+    private static final class Route<T> {
+        private final T handler;
+        private final String[] names;
+
+        private Route(T handler, String[] names) {
+            this.handler = handler;
+            this.names = names;
+        }
+    }
+
+
+    /**
+     * Level of trie, literal children are compared in place with region of topic
+     */
+    private static final class Node<T> {
+        private String[] literals = new String[0];
+        private Node<T>[] children = newArray(0);
+        private Node<T> variable;
+        private Route<T> route;
+        private Route<T> rest;
+
+        /**
+         * Find literal equal to the whole level starting at start
+         * @return int, index of literal, -1 if level is not literal of this node
+         */
+        private int find(String topic, int start) {
+            for(int i = 0; i < literals.length; i++) {
+                int end = start + literals[i].length();
+                if(topic.startsWith(literals[i], start) && (end == topic.length() || topic.charAt(end) == '/')) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private Node<T> literal(String level) {
+            int index = find(level, 0);
+            Node<T> child = index < 0 ? null : children[index];
+            if(child == null) {
+                child = new Node<>();
+                literals = Arrays.copyOf(literals, literals.length + 1);
+                literals[literals.length - 1] = level;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+
+            return child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newArray(int size) {
+            return (Node<T>[]) new Node<?>[size];
+        }
+    }
+}
@@ -8,8 +8,21 @@ package com.mobilewallet.bank.jersey.BankRest;
 import com.mobilewallet.bank.jersey.BankModule.BankApp;
 import com.mobilewallet.bank.jersey.BankModule.BankClient;
 import com.mobilewallet.bank.jersey.BankModule.*;
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankDirectory;
+import com.mobilewallet.bank.jersey.BankModule.Ledger.LedgerEngine;
+import com.mobilewallet.bank.jersey.BankModule.Manager.BankStorage;
 import com.mobilewallet.bank.jersey.BankModule.Manager.DatabaseManager;
+import com.mobilewallet.bank.jersey.BankModule.Manager.HoldLedger;
+import com.mobilewallet.bank.jersey.BankModule.Manager.QueryMetrics;
+import com.mobilewallet.bank.jersey.BankModule.Manager.ReconciliationReport;
+import com.mobilewallet.bank.jersey.BankModule.Manager.SlowQueryLog;
+import com.mobilewallet.bank.jersey.BankModule.Manager.StorageManager;
+import com.mobilewallet.bank.jersey.BankModule.Model.Account;
+import com.mobilewallet.bank.jersey.BankModule.Model.Bank;
+import com.mobilewallet.bank.jersey.BankModule.Model.HistoryQuery;
 import com.mobilewallet.bank.jersey.BankModule.Model.Transaction;
+import com.mobilewallet.bank.jersey.BankModule.Provisioning.AccountImporter;
+import com.mobilewallet.bank.jersey.BankModule.Provisioning.ImportJob;
 import com.mobilewallet.bank.jersey.BankModule.Test.Client;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.json.JSONArray;
@@ -19,11 +32,13 @@ import org.json.JSONObject;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -74,6 +89,272 @@ public class BankRest {
     }
 
 
+    /**
+     * Settlement throughput and latency by number of payment destinations, latencies are in microseconds
+     * @return json encoded metrics
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/settlement")
+    public String getSettlementMetrics() {
+        try {
+            return StorageManager.getInstance().getSettlementMetrics().toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Latency, errors and returned rows of every storage method, latencies are in microseconds
+     * @return json encoded metrics by method, empty if QUERY_METRICS is disabled
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/queries")
+    public String getQueryMetrics() {
+        try {
+            QueryMetrics metrics = StorageManager.getQueryMetrics();
+            if(metrics == null) {
+                return "{}";
+            }
+            return metrics.toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Last statements slower than SLOW_QUERY_MS with redacted bind values, the newest first
+     * @return json encoded slow statements
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/slow-queries")
+    public String getSlowQueries() {
+        try {
+            return SlowQueryLog.getInstance().toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Queue depths of message dispatch lanes of every bank client
+     * @return json encoded statistics by client id
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/dispatch")
+    public String getDispatchMetrics() {
+        try {
+            JSONObject json = new JSONObject();
+            for(BankClient bankClient : BankApp.getInstance().getBankClients()) {
+                json.put(bankClient.getClientId(), bankClient.getDispatcher().toJson());
+            }
+            return json.toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Published messages of every bank client, in-flight window, queue and latency of acknowledgement in microseconds
+     * @return json encoded statistics by client id
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/publish")
+    public String getPublishMetrics() {
+        try {
+            JSONObject json = new JSONObject();
+            for(BankClient bankClient : BankApp.getInstance().getBankClients()) {
+                json.put(bankClient.getClientId(), bankClient.getPublishWindow().toJson());
+            }
+            return json.toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Holds of pending payments, held amount and reservations rejected for not enough available money
+     * @return json encoded statistics
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/holds")
+    public String getHoldMetrics() {
+        try {
+            return HoldLedger.getInstance().toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Prepared statements, whether they are prepared on server, executed statements and statements opened on every connection
+     * @return json encoded statistics, empty if storage is not MySQL
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/statements")
+    public String getStatementMetrics() {
+        try {
+            DatabaseManager database = StorageManager.getDatabaseManager();
+            if(database == null) {
+                return "{}";
+            }
+            JSONObject json = new JSONObject();
+            json.put("serverPrepared", database.isServerPrepared());
+            json.put("executed", database.getStatementCount());
+            JSONObject open = new JSONObject();
+            for(Map.Entry<Integer, Integer> count : database.getOpenStatementCounts().entrySet()) {
+                open.put(String.valueOf(count.getKey()), count.getValue());
+            }
+            json.put("open", open);
+            return json.toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Account cache statistics, hits, misses and evictions
+     * Only MySQL storage uses account cache, other storages return empty json
+     * @return json encoded statistics
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/account-cache")
+    public String getAccountCacheMetrics() {
+        try {
+            DatabaseManager database = StorageManager.getDatabaseManager();
+            if(database == null) {
+                return "{}";
+            }
+            return database.getAccountCache().toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Striping of hot accounts, credits to stripes and compactions
+     * @return json encoded statistics, empty if storage is not MySQL
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/account-stripes")
+    public String getAccountStripesMetrics() {
+        try {
+            DatabaseManager database = StorageManager.getDatabaseManager();
+            if(database == null || database.getAccountStripes() == null) {
+                return "{}";
+            }
+            return database.getAccountStripes().toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Read replicas, their lag and number of reads routed to replicas and to primary
+     * @return json encoded statistics, empty if no replica is configured
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/replicas")
+    public String getReplicaMetrics() {
+        try {
+            DatabaseManager database = StorageManager.getDatabaseManager();
+            if(database == null || database.getReplicaRouter() == null) {
+                return "{}";
+            }
+            return database.getReplicaRouter().toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Write-behind of payment statuses, queued, refused, written and coalesced changes
+     * @return json encoded statistics, empty if statuses are written synchronously
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/status-writer")
+    public String getStatusWriterMetrics() {
+        try {
+            DatabaseManager database = StorageManager.getDatabaseManager();
+            if(database == null || database.getStatusWriter() == null) {
+                return "{}";
+            }
+            return database.getStatusWriter().toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Ledger statistics, sequences, group commit and projection lag
+     * @return json encoded statistics, empty if ledger mode is disabled
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/metrics/ledger")
+    public String getLedgerMetrics() {
+        try {
+            BankStorage storage = StorageManager.getInstance();
+            if(!(storage instanceof LedgerEngine)) {
+                return "{}";
+            }
+            return ((LedgerEngine) storage).toJson().toString();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return "{}";
+        }
+    }
+
+
+    /**
+     * Reload directory of banks from database, used after bank table was changed
+     * @return status message
+     */
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    @Path("/refresh-banks")
+    public String refreshBanks() {
+        BankDirectory directory = BankDirectory.getInstance();
+        if(directory.refresh()) {
+            return "Bank directory refreshed, banks: " + directory.getBanks().size();
+        }
+
+        return "Bank directory could not be refreshed";
+    }
+
+
     /**
      * Link account in path params
      * Method will generate special id for later adding account to database
@@ -88,9 +369,9 @@ public class BankRest {
         String message = "Bank not found.";
         BankApp bankApp = BankApp.getInstance();
         for(BankClient bankClient : bankApp.getBankClients()) {
-            if(bankClient.getBic().equals(bic)) {
+            if(bankClient.serves(bic)) {
                 try {
-                    String uuid = bankClient.generateLinkAccString(accountNumber);
+                    String uuid = bankClient.generateLinkAccString(bic, accountNumber);
                     if(uuid != "") {
                         message = "Bank account POST sent. UUID is: " + uuid;
                         logger.info(message);
@@ -111,6 +392,107 @@ public class BankRest {
         return message;
     }
 
+    /**
+     * Bulk import of accounts, body is streamed CSV (accountNumber[,bic]) or json lines, one account per line
+     * Request returns when all accounts are stored, progress could be read meanwhile by job id chosen by client
+     * @param jobId String, optional id of job
+     * @param input body of request
+     * @return json encoded progress of job with row errors
+     */
+    @POST
+    @Path("/accounts/import")
+    @Consumes({MediaType.TEXT_PLAIN, "text/csv", "application/x-ndjson"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response importAccounts(@QueryParam("jobId") String jobId, InputStream input) {
+        AccountImporter importer = AccountImporter.getInstance();
+        ImportJob job = importer.createJob(jobId);
+        if(job == null) {
+            return Response.status(Response.Status.CONFLICT).entity("{\"message\":\"Import job already exists\"}").build();
+        }
+
+        importer.run(job, input);
+
+        try {
+            return Response.ok(job.toJson().toString()).build();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return Response.serverError().build();
+        }
+    }
+
+    /**
+     * Progress of bulk import of accounts, counters, link token notifications and row errors
+     * @param jobId String, id of job
+     * @return json encoded progress of job
+     */
+    @GET
+    @Path("/accounts/import/{jobId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getImportJob(@PathParam("jobId") String jobId) {
+        ImportJob job = AccountImporter.getInstance().getJob(jobId);
+        if(job == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        try {
+            return Response.ok(job.toJson().toString()).build();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return Response.serverError().build();
+        }
+    }
+
+
+    /**
+     * Start reconciliation of balances with received payments in background
+     * Only MySQL storage can be reconciled
+     * @param full boolean, true checks all accounts, otherwise only accounts with payments since last run
+     * @return json encoded report of started run, 409 if other run is in progress
+     */
+    @POST
+    @Path("/reconciliation")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startReconciliation(@QueryParam("full") boolean full) {
+        DatabaseManager database = StorageManager.getDatabaseManager();
+        if(database == null || database.getReconciler() == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        ReconciliationReport report = database.getReconciler().start(full);
+        if(report == null) {
+            return Response.status(Response.Status.CONFLICT).build();
+        }
+
+        try {
+            return Response.status(Response.Status.ACCEPTED).entity(report.toJson().toString()).build();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return Response.serverError().build();
+        }
+    }
+
+    /**
+     * Report of the last reconciliation, counters and accounts whose balance does not match their payments
+     * @return json encoded report
+     */
+    @GET
+    @Path("/reconciliation")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getReconciliation() {
+        DatabaseManager database = StorageManager.getDatabaseManager();
+        if(database == null || database.getReconciler() == null || database.getReconciler().getLastReport() == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        try {
+            return Response.ok(database.getReconciler().getLastReport().toJson().toString()).build();
+        } catch (JSONException e) {
+            logger.error("Error: ", e);
+            return Response.serverError().build();
+        }
+    }
+
+
     /**
      * Rest for testing purpose only
      * Link account with query params
@@ -145,9 +527,9 @@ public class BankRest {
         }
 
         for(BankClient bankClient : bankApp.getBankClients()) {
-            if(bankClient.getBic().equals(bic)) {
+            if(bankClient.serves(bic)) {
                 try {
-                    String uuid = bankClient.generateLinkAccString(accountNumber);
+                    String uuid = bankClient.generateLinkAccString(bic, accountNumber);
                     if(uuid != "") {
                         message = "Bank account POST sent. UUID is: " + uuid;
                         logger.info(message);
@@ -174,6 +556,8 @@ public class BankRest {
 
     /**
      * Transaction rest for updating transaction
+     * Change is dispatched to lane of source account of payment {@see MessageDispatcher}, so it is ordered with other
+     * messages of account, response only says whether change was accepted
      * @param tm Transaction message that is decoded from JSON
      * @return Response status
      */
@@ -185,44 +569,50 @@ public class BankRest {
 
         logger.debug("Transaction confirmation for: " + tm.getPaymentId() + ", " + tm.getStatus());
 
-        BankApp bankApp = BankApp.getInstance();
-        DatabaseManager dm = DatabaseManager.getInstance();
-        String bic = "";
+        if(tm.getStatus() == null || !(
+                tm.getStatus().equals(TransactionMessage.CONFIRMED) ||
+                tm.getStatus().equals(TransactionMessage.ERROR) ||
+                tm.getStatus().equals(TransactionMessage.EXPIRED) ||
+                tm.getStatus().equals(TransactionMessage.REJECTED))) {
+            logger.error("Wrong json format or data format.");
+            return Response.status(501).build();
+        }
 
+        final BankStorage dm = StorageManager.getInstance();
+        final String paymentId = tm.getPaymentId();
+        final String status = tm.getStatusForDB();
         try {
-            Transaction tr = dm.getTransactionByPaymentId(tm.getPaymentId());
-            if(tr.getId() != NULL && (
-                    tm.getStatus().equals(TransactionMessage.CONFIRMED) ||
-                    tm.getStatus().equals(TransactionMessage.ERROR) ||
-                    tm.getStatus().equals(TransactionMessage.EXPIRED) ||
-                    tm.getStatus().equals(TransactionMessage.REJECTED))) {
-                bic = dm.getBank(dm.getUserAccount(tr.getFromId()).getBankId()).getBic();
-            }
-            else {
-                logger.error("Wrong json format or data format.");
+            // transaction is read only to find lane of its source account, status is changed by conditional update in lane
+            Transaction tr = dm.getTransactionByPaymentId(paymentId);
+            if(tr.getId() == NULL) {
+                logger.error("Transaction " + paymentId + " does not exist.");
                 return Response.status(501).build();
             }
-            // Check if transaction is already in DB
-            if(!tr.getStatus().equals(DatabaseManager.PENDING)) {
-                logger.error("Transaction can not be processed twice.");
-                return Response.status(501).build();
+            Account account = dm.getUserAccount(tr.getFromId());
+            Bank bank = BankDirectory.getInstance().getById(account.getBankId());
+            final BankClient bankClient = bank == null ? null : BankApp.getInstance().getBankClient(bank.getBic());
+            if(bankClient == null) {
+                logger.error("Bank of transaction " + paymentId + " is not served.");
+                return Response.status(503).build();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        for(BankClient bankClient : bankApp.getBankClients()) {
-            if(bankClient.getBic().equals(bic)) {
-                try {
-                    // Publish update
-                    bankClient.updatePaymentStatus(tm.getPaymentId(), tm.getStatusForDB());
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                } catch (MqttException e) {
-                    e.printStackTrace();
+
+            boolean dispatched = bankClient.getDispatcher().dispatch(account.getAccountNumber(), new MessageDispatcher.Task() {
+                @Override
+                public void run() throws Exception {
+                    if(!bankClient.updatePaymentStatus(paymentId, status)) {
+                        logger.error("Transaction can not be processed twice, it is " + dm.getTransactionByPaymentId(paymentId).getStatus() + ".");
+                    }
                 }
+            });
+            if(!dispatched) {
+                logger.error("Bank is busy, status of transaction " + paymentId + " is not changed.");
+                return Response.status(503).build();
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
         }
         return resp;
     }
@@ -241,40 +631,49 @@ public class BankRest {
         logger.debug("Identity confirmation for: " + im.getAccountNumber() + ", " + im.getAction());
 
         BankApp bankApp = BankApp.getInstance();
-        DatabaseManager dm = DatabaseManager.getInstance();
-        String accountNumber = im.getAccountNumber();
-        String action = im.getAction();
+        final BankStorage dm = StorageManager.getInstance();
+        final String accountNumber = im.getAccountNumber();
+        final String action = im.getAction();
+        final String mqttMessage = im.getMqttMessage();
         String bic = "";
         try {
-            bic = dm.getBank(dm.getUserAccountByNumber(accountNumber).getBankId()).getBic();
+            bic = BankDirectory.getInstance().getById(dm.getUserAccountByNumber(accountNumber).getBankId()).getBic();
         } catch (SQLException e) {
             e.printStackTrace();
         }
 
-        for(BankClient bankClient : bankApp.getBankClients()) {
-            if(bankClient.getBic().equals(bic)) {
+        for(final BankClient bankClient : bankApp.getBankClients()) {
+            if(bankClient.serves(bic)) {
                 try {
-                    // Publish update
-                    if(action.equals(IdentityMessage.BALANCE_ACTION)) {
-                        bankClient.getBalance(accountNumber);
-                    }
-                    if(action.equals(IdentityMessage.HISTORY_ACTION)) {
-                        bankClient.getHistory(accountNumber);
-                    }
-                    if(action.equals(IdentityMessage.TRANSACTION_ACTION)) {
-                        ArrayList<Transaction> transactions = new ArrayList<>();
-                        transactions = dm.getTransactionsByAccNumberStatus(accountNumber, DatabaseManager.REQUESTED);
-                        for(Transaction t : transactions) {
-                            bankClient.paymentOrderRequestByPaymentId(t.getPaymentId());
+                    // Publish update in lane of account, so it is ordered with Mqtt messages of account
+                    boolean dispatched = bankClient.getDispatcher().dispatch(accountNumber, new MessageDispatcher.Task() {
+                        @Override
+                        public void run() throws Exception {
+                            if(action.equals(IdentityMessage.BALANCE_ACTION)) {
+                                bankClient.getBalance(accountNumber);
+                            }
+                            if(action.equals(IdentityMessage.HISTORY_ACTION)) {
+                                // page of history is defined in original Mqtt request, if it is sent back with confirmation
+                                JSONObject request = null;
+                                if(mqttMessage != null && !mqttMessage.isEmpty()) {
+                                    request = new JSONObject(mqttMessage);
+                                }
+                                bankClient.getHistory(accountNumber, HistoryQuery.fromJson(request, BankClient.TIME_FORMAT));
+                            }
+                            if(action.equals(IdentityMessage.TRANSACTION_ACTION)) {
+                                ArrayList<Transaction> transactions = dm.getTransactionsByAccNumberStatus(accountNumber, DatabaseManager.REQUESTED);
+                                for(Transaction t : transactions) {
+                                    bankClient.paymentOrderRequestByPaymentId(t.getPaymentId());
+                                }
+                            }
                         }
+                    });
+                    if(!dispatched) {
+                        logger.error("Bank is busy, " + action + " of " + accountNumber + " is not done.");
+                        resp = Response.status(503).build();
                     }
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                } catch (MqttException e) {
-                    e.printStackTrace();
-                } catch (Exception e) {
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                     e.printStackTrace();
                 }
             }
@@ -6,14 +6,16 @@
 package com.mobilewallet.bank.jersey.BankRest;
 
 import javax.xml.bind.annotation.XmlRootElement;
+import java.math.BigDecimal;
 
 /**
  * This subclass defines destination accounts with amount in transaction
+ * Amount is decimal, so it is transferred exactly, see {@link com.mobilewallet.bank.jersey.BankModule.Model.Money}
  */
 @XmlRootElement
 public class Destination {
     private String destinationAccount;
-    private double amount;
+    private BigDecimal amount;
 
     public String getDestinationAccount() {
         return destinationAccount;
@@ -23,11 +25,11 @@ public class Destination {
         this.destinationAccount = destinationAccount;
     }
 
-    public double getAmount() {
+    public BigDecimal getAmount() {
         return amount;
     }
 
-    public void setAmount(double amount) {
+    public void setAmount(BigDecimal amount) {
         this.amount = amount;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
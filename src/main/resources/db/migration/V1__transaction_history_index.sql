@@ -0,0 +1,2 @@
+-- Keyset pagination of history, payments of account ordered by date created and id
+CREATE INDEX `from_id_date_created` ON `transaction` (`from_id`, `date_created`, `id`);
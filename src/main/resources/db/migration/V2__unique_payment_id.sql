@@ -0,0 +1,2 @@
+-- Payment is looked up by payment id on every status change
+CREATE UNIQUE INDEX `payment_id` ON `transaction` (`payment_id`);
@@ -0,0 +1,2 @@
+-- Account is looked up by account number on every request
+CREATE UNIQUE INDEX `account_number` ON `account` (`account_number`);
@@ -0,0 +1,2 @@
+-- Requested payments of account, see DatabaseManager.getTransactionsByAccNumberStatus
+CREATE INDEX `from_id_status_date_created` ON `transaction` (`from_id`, `status`, `date_created`);
@@ -0,0 +1,7 @@
+-- Money is stored exactly with two decimal places, double values like 440.4200000000001 are rounded to cents
+UPDATE `account` SET `balance` = ROUND(`balance`, 2);
+UPDATE `transaction` SET `amount` = ROUND(`amount`, 2);
+UPDATE `account_transaction` SET `amount` = ROUND(`amount`, 2);
+ALTER TABLE `account` MODIFY `balance` decimal(19,2) NOT NULL DEFAULT '0.00';
+ALTER TABLE `transaction` MODIFY `amount` decimal(19,2) NOT NULL DEFAULT '0.00';
+ALTER TABLE `account_transaction` MODIFY `amount` decimal(19,2) NOT NULL;
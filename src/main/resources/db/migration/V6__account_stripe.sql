@@ -0,0 +1,8 @@
+-- Sub-balances of hot accounts, logical balance is account.balance plus sum of stripes, see AccountStripes
+CREATE TABLE IF NOT EXISTS `account_stripe` (
+  `account_id` int(11) NOT NULL,
+  `stripe` int(11) NOT NULL,
+  `balance` decimal(19,2) NOT NULL DEFAULT '0.00',
+  PRIMARY KEY (`account_id`, `stripe`),
+  CONSTRAINT `account_stripe_ibfk_1` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=cp1250;
@@ -0,0 +1,20 @@
+-- Balance reconciliation, see BalanceReconciler
+-- Opening balance of account is taken when account is checked for the first time, later balance has to be opening plus received payments
+CREATE TABLE IF NOT EXISTS `account_reconciliation` (
+  `account_id` int(11) NOT NULL,
+  `opening` decimal(19,2) NOT NULL,
+  `date_created` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`account_id`),
+  CONSTRAINT `account_reconciliation_ibfk_1` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=cp1250;
+
+-- High-water mark of the last run, only accounts of newer or later realized payments are checked by the next run
+CREATE TABLE IF NOT EXISTS `reconciliation_state` (
+  `id` int(11) NOT NULL,
+  `transaction_id` int(11) NOT NULL,
+  `date_checked` datetime NOT NULL,
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=cp1250;
+
+-- Payments realized since the last run
+CREATE INDEX `date_realized` ON `transaction` (`date_realized`);